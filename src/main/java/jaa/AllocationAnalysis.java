@@ -8,5 +8,31 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.METHOD})
 public @interface AllocationAnalysis {
+    /**
+     * Number of times to invoke the method before measuring. These invocations are not part of the report,
+     * but give the JIT the chance to compile the method - which is when escape analysis happens - so the
+     * report reflects how the method behaves in a warmed up production system.
+     */
+    int warmupIterations() default 0;
 
+    /**
+     * Number of times to invoke the method while measuring. Reports give allocations both in total and
+     * per invocation.
+     */
+    int measurementIterations() default 1;
+
+    /**
+     * Number of threads to invoke the method from, concurrently and against the same instance, each doing
+     * the warmup and measurement iterations. Contention changes how code allocates, so with more than one
+     * thread the method is analyzed with one, two, four and so on threads up to this number, to show how
+     * allocations change as contention grows. Summaries give the lowest and highest bytes per operation of any
+     * one thread, and reports how many bytes of each allocation site each thread allocated.
+     */
+    int threads() default 1;
+
+    /**
+     * Most bytes the method may allocate per invocation, after escape analysis, before the analysis fails;
+     * see {@link AllocationBudget}. Use 0 to keep a method allocation free. Negative means no budget, the default.
+     */
+    double maxBytesPerOp() default -1;
 }
@@ -0,0 +1,43 @@
+package jaa;
+
+import jaa.internal.allocation.AllocationLedger;
+
+import static java.util.Comparator.comparingLong;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Holds analyses to a budget of bytes allocated per operation, after escape analysis, so allocation
+ * regressions fail the build. Budgets are set with {@link AllocationAnalysis#maxBytesPerOp()}, and are
+ * checked by every {@link Jaa} run; see {@link AllocationBudgetRule} to check them from a JUnit test suite.
+ */
+public class AllocationBudget
+{
+    /**
+     * Fail, listing every allocation point, if the ledger allocates more bytes per operation than the budget.
+     *
+     * @param analysis name of what was analyzed, for the failure message
+     * @param ledger allocations remaining after escape analysis
+     * @param maxBytesPerOp the budget; a negative budget is no budget
+     */
+    public static void assertWithinBudget(String analysis, AllocationLedger ledger, double maxBytesPerOp) {
+        if(maxBytesPerOp < 0 || ledger.bytesPerOp() <= maxBytesPerOp) {
+            return;
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append(String.format("%s allocates %.1fb/op, over its budget of %.1fb/op, at:\n",
+                analysis, ledger.bytesPerOp(), maxBytesPerOp));
+        ledger.records().sorted(comparingLong(r -> -r.getTotalBytes())).forEach(r -> {
+            String stackTrace = r.getStackTrace()
+                    .stream()
+                    .filter(s -> s.length() > 1)
+                    .collect(joining("\n\t"));
+            message.append(String.format("  %.1fb/op (%.1f allocs/op) of %s%s\n",
+                    r.getBytesPerOp(),
+                    r.getAllocsPerOp(),
+                    r.getObj(),
+                    stackTrace.isEmpty() ? "" : " at:\n\t" + stackTrace));
+        });
+        throw new AssertionError(message.toString());
+    }
+}
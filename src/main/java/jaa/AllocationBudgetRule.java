@@ -0,0 +1,44 @@
+package jaa;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Checks the {@link AllocationBudget allocation budgets} of the analysis methods in a test class, as part of
+ * a JUnit test suite. Add it as a class rule to a test class that has analysis methods:
+ *
+ * <pre>
+ * {@literal @}ClassRule
+ * public static AllocationBudgetRule budget = new AllocationBudgetRule();
+ * </pre>
+ *
+ * After the tests in the class have run, the analysis methods in it are analyzed, and the class fails if any of
+ * them allocates more than its budget.
+ */
+public class AllocationBudgetRule implements TestRule
+{
+    private final Options.Builder options;
+
+    public AllocationBudgetRule() {
+        this(new Options.Builder());
+    }
+
+    /**
+     * @param options to run the analyses with; the test class is included in them
+     */
+    public AllocationBudgetRule(Options.Builder options) {
+        this.options = options;
+    }
+
+    @Override
+    public Statement apply(Statement base, Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                base.evaluate();
+                new Jaa(options.include(description.getTestClass()).build()).run();
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+package jaa;
+
+import jaa.internal.allocation.AllocationLedger;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AllocationBudget_Test {
+    @Test
+    public void shouldAcceptLedgerWithinBudget() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 160, 10, asList("a.B"));
+        ledger.setOperations(10);
+
+        // When
+        AllocationBudget.assertWithinBudget("a.B#c", ledger, 16);
+        AllocationBudget.assertWithinBudget("a.B#c", ledger, -1);
+
+        // Then no assertion error
+    }
+
+    @Test
+    public void shouldListAllocationPointsWhenOverBudget() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 160, 10, asList("a.B", "a.C"));
+        ledger.record("[J", 240, 10, asList("a.D"));
+        ledger.setOperations(10);
+
+        // When
+        try {
+            AllocationBudget.assertWithinBudget("a.B#c", ledger, 0);
+            fail("Expected the budget to be exceeded");
+        } catch (AssertionError e) {
+            // Then
+            assertThat(e.getMessage(), containsString("a.B#c allocates 40.0b/op, over its budget of 0.0b/op"));
+            assertThat(e.getMessage(), containsString("16.0b/op (1.0 allocs/op) of java/lang/Object at:\n\ta.B\n\ta.C"));
+            assertThat(e.getMessage(), containsString("24.0b/op (1.0 allocs/op) of [J at:\n\ta.D"));
+        }
+    }
+}
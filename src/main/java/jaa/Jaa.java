@@ -1,103 +1,514 @@
 package jaa;
 
+import jaa.internal.allocation.AllocationClasses;
 import jaa.internal.allocation.AllocationLedger;
+import jaa.internal.allocation.AllocationRate;
+import jaa.internal.allocation.AllocationSiteAgent;
+import jaa.internal.allocation.ObjectLifetimes;
+import jaa.internal.allocation.ScalingAnalysis;
+import jaa.internal.allocation.SizeHistogram;
 import jaa.internal.ea.EliminationParser;
 import jaa.internal.infrastructure.Reflection;
+import jaa.internal.runner.AllocationCounterAnalyzer;
+import jaa.internal.runner.AnalysisSettings;
 import jaa.internal.runner.EntryPoint;
+import jaa.internal.runner.IncrementalAnalysis;
 import jaa.internal.runner.JaaResources;
+import jaa.internal.runner.JfrAllocationAnalyzer;
 import jaa.internal.runner.MethodAllocationAnalyzer;
+import jaa.internal.runner.Parameters;
 import jaa.internal.runner.Proc;
+import jaa.internal.runner.WorkerPool;
 
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Predicate;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import static jaa.internal.ea.EliminationParser.predicateThatExcludes;
 import static jaa.internal.runner.MethodAllocationAnalyzer.defaultAllocationInstrumenterJarPath;
 import static jaa.internal.runner.MethodAllocationAnalyzer.defaultReportFolder;
+import static jaa.internal.runner.MethodAllocationAnalyzer.instrumentedJvm;
 import static jaa.internal.runner.Proc.exec;
 import static java.nio.file.Files.createDirectories;
+import static java.util.Arrays.asList;
 import static java.util.Comparator.comparingLong;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 
 public class Jaa
 {
     private final Options options;
+    // Heap region sizes by java executable, each read once from a JVM it starts
+    private final Map<Path, Long> heapRegionSizes = new ConcurrentHashMap<>();
 
     public Jaa(Options options) {
         this.options = options;
     }
 
     public void run() {
+        ExecutorService methodRunner = Executors.newFixedThreadPool(options.concurrency(), daemonThreads("jaa.MethodRunner"));
+        ExecutorService forkRunner = Executors.newCachedThreadPool(daemonThreads("jaa.ForkRunner"));
+        WorkerPool workers = null;
         try {
             final String classPath = System.getProperty("java.class.path");
+
+            if(options.mode() == Options.Mode.ALLOCATION_COUNTERS) {
+                final Path stockJavaExecutable = new JaaResources().runningJavaExecutable();
+                forEachAnalysisMethod(methodRunner, (m, settings, description) -> countAllocations(m, settings, description, classPath, stockJavaExecutable));
+                return;
+            }
+
+            if(options.mode() == Options.Mode.JFR_SAMPLING) {
+                final Path stockJavaExecutable = new JaaResources().runningJavaExecutable();
+                final Path reportFolder = reportFolder();
+                forEachAnalysisMethod(methodRunner, (m, settings, description) -> recordAllocations(m, settings, description, classPath, stockJavaExecutable, reportFolder));
+                return;
+            }
+
             final Path javaExecutable = javaExecutable();
             final Path allocationInstrumenterJar = allocationInstrumenterJarPath();
             final Path reportFolder = reportFolder();
+            final IncrementalAnalysis incremental = options.incremental()
+                    ? new IncrementalAnalysis(reportFolder, options.reportFormat(), javaExecutable, allocationInstrumenterJar)
+                    : null;
+            if(options.jobsPerWorker() > 1) {
+                workers = new WorkerPool(
+                        instrumentedJvm(classPath, javaExecutable, allocationInstrumenterJar),
+                        options.jobsPerWorker(),
+                        options.forkTimeout());
+            }
+            final WorkerPool instrumentedWorkers = workers;
 
-            options
-                    .includes()
-                    .map(Reflection.findClass)
-                    .flatMap(Reflection.methodsWithAnnotation(AllocationAnalysis.class))
-                    .forEach((Method m) -> {
-                        try {
-                            String methodDescription = m.getDeclaringClass().getName() + "#" + m.getName();
-                            System.out.printf("%s running..\n", methodDescription);
-
-                            // 1. One run to analyze what gets eliminated by escape analysis
-                            Proc eaProc = exec(
-                                    javaExecutable.toAbsolutePath().toString(),
-                                    "-classpath", classPath,
-                                    "-XX:+UnlockDiagnosticVMOptions",
-                                    "-XX:+PrintEliminateAllocations",
-                                    EntryPoint.class.getName(),
-                                    "analyze-escapes",
-                                    methodDescription,
-                                    "1");
-                            Predicate<AllocationLedger.Record> excludeEliminatedAllocations = predicateThatExcludes(
-                                    new EliminationParser().parse(eaProc.stdout()));
-                            eaProc.awaitSuccessfulExit();
-
-                            // 2. One run to get an allocation profile
-                            Path fullReportPath = reportFolder.resolve(methodDescription + ".full.json");
-                            AllocationLedger fullLedger = new MethodAllocationAnalyzer()
-                                    .analyze(classPath, javaExecutable, allocationInstrumenterJar, fullReportPath, m);
-
-                            // 3. Combine the two into a report of allocations, sans eliminated ones
-                            Path reportPath = reportFolder.resolve(methodDescription + ".json");
-                            AllocationLedger filteredLedger = fullLedger
-                                    .filter(excludeEliminatedAllocations);
-                            filteredLedger.write(reportPath);
-
-                            int n = 5;
-                            System.out.printf("\n");
-                            System.out.printf("== %s, summary ==\n", methodDescription);
-                            System.out.printf("  Allocates %db total, JVM eliminates %db, %db remaining\n",
-                                    fullLedger.totalBytes(),
-                                    fullLedger.totalBytes() - filteredLedger.totalBytes(),
-                                    filteredLedger.totalBytes());
-                            System.out.printf("  Complete reports in %s\n", reportPath);
-                            System.out.printf("\n");
-                            System.out.printf("== Top %d allocation points: ==\n", n);
-                            filteredLedger.records().sorted(comparingLong(r -> -r.getTotalBytes())).limit(n).forEach(r -> {
-                                System.out.printf("  %db of %s at:\n\t%s\n",
-                                        r.getTotalBytes(),
-                                        r.getObj(),
-                                        r.getStackTrace()
-                                                .stream()
-                                                .filter(s -> s.length() > 1)
-                                                .collect(joining("\n\t")));
-                            });
-                            System.out.println();
-                            System.out.println();
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+            forEachAnalysisMethod(methodRunner, (m, settings, description) -> analyze(m, settings, description, classPath, javaExecutable, allocationInstrumenterJar,
+                    reportFolder, forkRunner, instrumentedWorkers, incremental));
         } catch(Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            methodRunner.shutdownNow();
+            forkRunner.shutdownNow();
+            if(workers != null) {
+                workers.close();
+            }
+            // Interrupting the analyses leaves the child JVMs they started running, if one failed; retired workers
+            // have handed back their last result already, so they can go too
+            Proc.destroyAll();
+        }
+    }
+
+    private interface Analysis {
+        /** @return the allocations remaining after escape analysis */
+        AllocationLedger analyze(Method method, AnalysisSettings settings, String description) throws Exception;
+    }
+
+    private void forEachAnalysisMethod(ExecutorService methodRunner, Analysis analysis) throws InterruptedException {
+        List<Method> methods = options
+                .includes()
+                .map(Reflection.findClass)
+                .flatMap(Reflection.methodsWithAnnotation(AllocationAnalysis.class))
+                .collect(toList());
+
+        // Each method is analyzed once per combination of parameters and thread count, all of them in parallel
+        Map<Method, List<Map<String, String>>> params = new LinkedHashMap<>();
+        Map<Method, List<String>> descriptions = new LinkedHashMap<>();
+        Map<Method, List<Future<AllocationLedger>>> analyses = new LinkedHashMap<>();
+        for (Method m : methods) {
+            List<Integer> threadLadder = AnalysisSettings.threadLadder(m);
+            params.put(m, new ArrayList<>());
+            descriptions.put(m, new ArrayList<>());
+            analyses.put(m, new ArrayList<>());
+            for (Map<String, String> p : Parameters.combinations(m.getDeclaringClass())) {
+                for (int threads : threadLadder) {
+                    AnalysisSettings settings = AnalysisSettings.of(m)
+                            .withParams(p)
+                            .withThreads(threads)
+                            .withSamplingInterval(options.samplingInterval())
+                            .withFrameDetail(options.frameDetail())
+                            .withStackDepth(options.stackDepth())
+                            .withOffHeap(options.offHeapRecording())
+                            .withFlushInterval(options.flushInterval())
+                            .withRateWindow(options.rateWindow())
+                            .withLifetimeSamplingInterval(options.lifetimeSamplingInterval())
+                            .withReportFormat(options.reportFormat());
+                    // Thread counts are reported just like parameters, so scaling with them is reported as well
+                    Map<String, String> labels = new LinkedHashMap<>(p);
+                    if(threadLadder.size() > 1) {
+                        labels.put("threads", Integer.toString(threads));
+                    }
+                    String description = Parameters.describe(m.getDeclaringClass().getName() + "#" + m.getName(), labels);
+                    params.get(m).add(labels);
+                    descriptions.get(m).add(description);
+                    analyses.get(m).add(methodRunner.submit(() -> analysis.analyze(m, settings, description)));
+                }
+            }
+        }
+
+        List<String> overBudget = new ArrayList<>();
+        for (Method m : methods) {
+            List<AllocationLedger> ledgers = new ArrayList<>();
+            for (Future<AllocationLedger> result : analyses.get(m)) {
+                try {
+                    ledgers.add(result.get());
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            if(ledgers.size() > 1) {
+                printScaling(m.getDeclaringClass().getName() + "#" + m.getName(),
+                        ScalingAnalysis.curves(params.get(m), ledgers));
+            }
+
+            double maxBytesPerOp = m.getAnnotation(AllocationAnalysis.class).maxBytesPerOp();
+            for (int i = 0; i < ledgers.size(); i++) {
+                try {
+                    AllocationBudget.assertWithinBudget(descriptions.get(m).get(i), ledgers.get(i), maxBytesPerOp);
+                } catch (AssertionError e) {
+                    overBudget.add(e.getMessage());
+                }
+            }
+        }
+
+        // Budgets are checked once everything is analyzed, so a failure lists every analysis over budget
+        if(!overBudget.isEmpty()) {
+            throw new AssertionError(String.format("Allocation budget exceeded:\n\n%s", String.join("\n", overBudget)));
+        }
+    }
+
+    private void printScaling(String methodDescription, List<ScalingAnalysis.Curve> curves) {
+        if(curves.isEmpty()) {
+            return;
+        }
+        // Superlinear sites first, then the sites allocating the most at the largest parameter value
+        List<ScalingAnalysis.Curve> shown = curves.stream()
+                .filter(c -> !Double.isNaN(c.getExponent()))
+                .sorted(Comparator.comparing((ScalingAnalysis.Curve c) -> !c.isSuperlinear())
+                        .thenComparing(c -> -c.getBytesPerOp()[c.getBytesPerOp().length - 1]))
+                .collect(toList());
+        long superlinear = shown.stream().filter(ScalingAnalysis.Curve::isSuperlinear).count();
+        int n = (int) Math.max(5, superlinear);
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("\n"));
+        summary.append(String.format("== %s, allocation scaling ==\n", methodDescription));
+        summary.append(String.format("  %d of %d allocation points grow faster than linearly\n", superlinear, shown.size()));
+        summary.append(String.format("\n"));
+        shown.stream().limit(n).forEach(c -> {
+            StringBuilder points = new StringBuilder();
+            for (int i = 0; i < c.getN().length; i++) {
+                points.append(String.format("%s%.1fb/op at %s=%s", i == 0 ? "" : ", ",
+                        c.getBytesPerOp()[i], c.getParam(), formatParam(c.getN()[i])));
+            }
+            summary.append(String.format("  %s%s ~ %s^%.2f%s: %s at:\n\t%s\n",
+                    c.isSuperlinear() ? "SUPERLINEAR " : "",
+                    c.getObj(),
+                    c.getParam(),
+                    c.getExponent(),
+                    c.getOtherParams().isEmpty() ? "" : " with " + c.getOtherParams(),
+                    points,
+                    c.getStackTrace()
+                            .stream()
+                            .filter(s -> s.length() > 1)
+                            .collect(joining("\n\t"))));
+        });
+        summary.append(String.format("\n\n"));
+        System.out.print(summary);
+    }
+
+    private static String formatParam(double value) {
+        return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private AllocationLedger countAllocations(Method m, AnalysisSettings settings, String methodDescription,
+                                              String classPath, Path javaExecutable) throws Exception {
+        System.out.printf("%s running..\n", methodDescription);
+
+        AllocationCounterAnalyzer.Result result = new AllocationCounterAnalyzer(options.forkTimeout())
+                .analyze(classPath, javaExecutable, m, settings);
+
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("\n"));
+        summary.append(String.format("== %s, allocation counters ==\n", methodDescription));
+        summary.append(String.format("  %.1fb/op, %db over %d measured iterations, escape analysis active\n",
+                result.bytesPerOp(),
+                result.totalBytes,
+                result.operations));
+        if(settings.threads > 1) {
+            summary.append(String.format("  Per thread, %.1fb/op to %.1fb/op over %d threads\n",
+                    result.minThreadBytesPerOp(),
+                    result.maxThreadBytesPerOp(),
+                    settings.threads));
+        }
+        summary.append(String.format("\n\n"));
+        System.out.print(summary);
+        return result.toLedger();
+    }
+
+    private AllocationLedger recordAllocations(Method m, AnalysisSettings settings, String methodDescription,
+                                               String classPath, Path javaExecutable, Path reportFolder) throws Exception {
+        Path reportPath = reportFolder.resolve(methodDescription + options.reportFormat().suffix());
+        System.out.printf("%s running..\n", methodDescription);
+
+        AllocationLedger ledger = new JfrAllocationAnalyzer(options.forkTimeout())
+                .analyze(classPath, javaExecutable, reportPath, m, settings);
+
+        ledger.setHeapRegionSize(heapRegionSize(javaExecutable));
+        ledger.write(reportPath, options.reportFormat());
+
+        // Escape analysis was active while recording, so everything in the ledger remains
+        printSummary(methodDescription, String.format("Allocates an estimated %db, sampled by JFR with escape analysis active",
+                ledger.totalBytes()), ledger, settings.threads, reportPath);
+        return ledger;
+    }
+
+    private AllocationLedger analyze(Method m, AnalysisSettings settings, String methodDescription, String classPath, Path javaExecutable, Path allocationInstrumenterJar,
+                         Path reportFolder, ExecutorService forkRunner, WorkerPool workers,
+                         IncrementalAnalysis incremental) throws Exception {
+        String methodName = m.getDeclaringClass().getName() + "#" + m.getName();
+        Path fullReportPath = reportFolder.resolve(methodDescription + ".full" + options.reportFormat().suffix());
+        Path reportPath = reportFolder.resolve(methodDescription + options.reportFormat().suffix());
+        MethodAllocationAnalyzer analyzer = new MethodAllocationAnalyzer(options.forkTimeout(), workers);
+
+        String fingerprint = null;
+        if(incremental != null) {
+            fingerprint = incremental.fingerprint(m, String.valueOf(options.whiteBoxJar()), settings.args().toString());
+            if(incremental.isUpToDate(methodDescription, fingerprint)) {
+                System.out.printf("%s unchanged, reusing previous reports..\n", methodDescription);
+                AllocationLedger filteredLedger = AllocationLedger.read(reportPath);
+                filteredLedger.setHeapRegionSize(heapRegionSize(javaExecutable));
+                // Summarized from what was stored, so reusing reports doesn't calibrate the harness
+                printSummary(methodDescription,
+                        eliminationSummary(incremental.fullBytes(methodDescription), filteredLedger),
+                        filteredLedger,
+                        settings.threads,
+                        reportPath);
+                return filteredLedger;
+            }
+        }
+
+        System.out.printf("%s running..\n", methodDescription);
+
+        // 1. One run to analyze what gets eliminated by escape analysis; this runs alongside (2)
+        Future<Predicate<AllocationLedger.Record>> excludeEliminatedAllocations = forkRunner.submit(() -> {
+            List<String> command = new ArrayList<>(asList(
+                    javaExecutable.toAbsolutePath().toString(),
+                    "-classpath", classPath,
+                    "-XX:+UnlockDiagnosticVMOptions",
+                    "-XX:+PrintEliminateAllocations"));
+            AnalysisSettings eaSettings = settings;
+            if(options.whiteBoxJar() != null) {
+                command.add("-Xbootclasspath/a:" + options.whiteBoxJar().toAbsolutePath());
+                command.add("-XX:+WhiteBoxAPI");
+                eaSettings = eaSettings.withForcedCompilation();
+            }
+            command.addAll(asList(EntryPoint.class.getName(), "analyze-escapes", methodName));
+            command.addAll(eaSettings.args());
+            Proc eaProc = exec(options.forkTimeout(), command.toArray(new String[0]));
+            Predicate<AllocationLedger.Record> exclude = predicateThatExcludes(
+                    new EliminationParser().parse(eaProc.stdout()));
+            eaProc.awaitSuccessfulExit();
+            return exclude;
+        });
+
+        // 2. One run to get an allocation profile
+        AllocationLedger fullLedger;
+        try {
+            fullLedger = analyzer.analyze(classPath, javaExecutable, allocationInstrumenterJar, fullReportPath, m, settings);
+        } catch (Exception e) {
+            excludeEliminatedAllocations.cancel(true);
+            throw e;
+        }
+
+        // 3. Combine the two into a report of allocations, sans eliminated ones
+        AllocationLedger filteredLedger;
+        try {
+            filteredLedger = fullLedger
+                    .filter(excludeEliminatedAllocations.get());
+        } catch (ExecutionException e) {
+            throw new RuntimeException(String.format("Escape analysis of %s failed", methodDescription), e.getCause());
+        }
+        filteredLedger.setHeapRegionSize(heapRegionSize(javaExecutable));
+        filteredLedger.write(reportPath, options.reportFormat());
+        if(incremental != null) {
+            incremental.markUpToDate(methodDescription, fingerprint, fullLedger.totalBytes());
+        }
+
+        printSummary(methodDescription, eliminationSummary(fullLedger.totalBytes(), filteredLedger), filteredLedger, settings.threads, reportPath);
+        return filteredLedger;
+    }
+
+    /** @param fullBytes bytes allocated before escape analysis */
+    private static String eliminationSummary(long fullBytes, AllocationLedger filteredLedger) {
+        return String.format("Allocates %db total, JVM eliminates %db, %db remaining",
+                fullBytes,
+                fullBytes - filteredLedger.totalBytes(),
+                filteredLedger.totalBytes());
+    }
+
+    /** @param threads number of threads the method was invoked from concurrently */
+    private void printSummary(String methodDescription, String totals,
+                              AllocationLedger filteredLedger, int threads, Path reportPath) {
+        // Build the summary up front and print it in one go, so summaries from methods
+        // analyzed in parallel don't get interleaved.
+        int n = 5;
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("\n"));
+        summary.append(String.format("== %s, summary ==\n", methodDescription));
+        summary.append(String.format("  %s\n", totals));
+        summary.append(String.format("  %.1fb/op and %.1f allocs/op remaining, over %d measured iterations\n",
+                filteredLedger.bytesPerOp(),
+                filteredLedger.allocsPerOp(),
+                filteredLedger.operations()));
+        long[] threadBytes = filteredLedger.threadBytes();
+        if(threads > 1 && threadBytes != null) {
+            // Threads that allocated nothing remaining are left out at the end, and each did an even share of operations
+            threadBytes = Arrays.copyOf(threadBytes, Math.max(threads, threadBytes.length));
+            double operationsPerThread = filteredLedger.operations() / (double) threads;
+            summary.append(String.format("  Per thread, %.1fb/op to %.1fb/op over %d threads\n",
+                    LongStream.of(threadBytes).min().getAsLong() / operationsPerThread,
+                    LongStream.of(threadBytes).max().getAsLong() / operationsPerThread,
+                    threads));
+        }
+        AllocationRate rate = filteredLedger.rate();
+        if(rate.getWindowMillis() > 0) {
+            // Sites let go of old windows apart from each other, so their peaks may not add up to the peak of all
+            summary.append(String.format("  Peaks at %.0fb/s%s, over %dms windows\n",
+                    rate.getPeakBytesPerSecond(), rate.isPeakExact() ? "" : " or more", rate.getWindowMillis()));
+        }
+        AllocationClasses classes = filteredLedger.allocationClasses();
+        if(classes != null && classes.getOutsideTlabCount() + classes.getHumongousCount() > 0) {
+            summary.append(String.format("  %d humongous allocations of %db, %d of %db likely outside TLABs, with %dMB heap regions\n",
+                    classes.getHumongousCount(), classes.getHumongousBytes(),
+                    classes.getOutsideTlabCount(), classes.getOutsideTlabBytes(),
+                    classes.getRegionSize() >> 20));
+        }
+        long sampledLifetimes = filteredLedger.records().mapToLong(r -> r.getLifetimes().getSampled()).sum();
+        if(sampledLifetimes > 0) {
+            summary.append(String.format("  Promotes an estimated %.0fb to the old generation, from %d sampled lifetimes\n",
+                    filteredLedger.promotedBytes(), sampledLifetimes));
+        }
+        if(filteredLedger.bytesVariance() > 0) {
+            summary.append(String.format("  Estimated from sampled allocations, +/-%.1fb/op at 95%% confidence\n",
+                    filteredLedger.bytesPerOpError()));
+        }
+        summary.append(String.format("  Complete reports in %s\n", reportPath));
+        summary.append(String.format("\n"));
+        summary.append(String.format("== Top %d allocation points: ==\n", n));
+        // Sites allocating humongous objects first, since those cost the most on G1 whatever their share of bytes
+        filteredLedger.records().sorted(comparingLong(Jaa::humongousBytes).reversed()
+                .thenComparing(comparingLong(AllocationLedger.Record::getTotalBytes).reversed())).limit(n).forEach(r -> {
+            summary.append(String.format("  %db (%.1fb/op%s, %.1f allocs/op) of %s%s%s%s%s at:\n\t%s\n",
+                    r.getTotalBytes(),
+                    r.getBytesPerOp(),
+                    r.getBytesVariance() > 0 ? String.format(" +/-%.1f", r.getBytesPerOpError()) : "",
+                    r.getAllocsPerOp(),
+                    r.getObj(),
+                    sizeSummary(r.getSizes()),
+                    classSummary(r.getAllocationClasses()),
+                    rateSummary(r.getRate()),
+                    lifetimeSummary(r.getLifetimes()),
+                    r.getStackTrace()
+                            .stream()
+                            .filter(s -> s.length() > 1)
+                            .collect(joining("\n\t"))));
+        });
+        summary.append(String.format("\n\n"));
+        System.out.print(summary);
+    }
+
+    /** Percentiles are rounded up to the largest size in their power of two bucket, see {@link SizeHistogram}. */
+    private static String sizeSummary(SizeHistogram sizes) {
+        if(sizes.getCount() == 0) {
+            return "";
+        }
+        return String.format(", sized p50 %db, p99 %db, max %db",
+                sizes.percentile(50), sizes.percentile(99), sizes.getMax());
+    }
+
+    private static long humongousBytes(AllocationLedger.Record record) {
+        AllocationClasses classes = record.getAllocationClasses();
+        return classes == null ? 0 : classes.getHumongousBytes();
+    }
+
+    private static String classSummary(AllocationClasses classes) {
+        if(classes == null) {
+            return "";
+        }
+        StringBuilder summary = new StringBuilder();
+        if(classes.getHumongousCount() > 0) {
+            summary.append(String.format(", %d humongous of %db", classes.getHumongousCount(), classes.getHumongousBytes()));
+        }
+        if(classes.getOutsideTlabCount() > 0) {
+            summary.append(String.format(", %d likely outside TLABs of %db", classes.getOutsideTlabCount(), classes.getOutsideTlabBytes()));
+        }
+        return summary.toString();
+    }
+
+    private static String rateSummary(AllocationRate rate) {
+        if(rate.getWindowMillis() == 0) {
+            return "";
+        }
+        return String.format(", peaking at %.0fb/s%s", rate.getPeakBytesPerSecond(), rate.isPeakExact() ? "" : " or more");
+    }
+
+    private static String lifetimeSummary(ObjectLifetimes lifetimes) {
+        if(lifetimes.getSampled() == 0) {
+            return "";
+        }
+        return String.format(", living p50 %dms, p99 %dms, %.0fb promoted",
+                lifetimes.getMillis().percentile(50), lifetimes.getMillis().percentile(99), lifetimes.getPromotedBytes());
+    }
+
+    /** Region size of the G1 heap of the JVMs the given java executable starts, unless given in the options. */
+    private long heapRegionSize(Path javaExecutable) {
+        if(options.heapRegionSize() != 0) {
+            return options.heapRegionSize();
+        }
+        return heapRegionSizes.computeIfAbsent(javaExecutable, this::printedHeapRegionSize);
+    }
+
+    private long printedHeapRegionSize(Path javaExecutable) {
+        ProcessBuilder printFlags = new ProcessBuilder(javaExecutable.toAbsolutePath().toString(), "-XX:+PrintFlagsFinal", "-version")
+                // -version prints to stderr, which would otherwise end up amid the summaries
+                .redirectErrorStream(true);
+        try {
+            Proc proc = new Proc(printFlags.start());
+            proc.deadline(options.forkTimeout());
+            long regionSize;
+            try(Stream<String> flags = proc.stdout()) {
+                regionSize = AllocationClasses.regionSize(flags);
+            }
+            proc.awaitSuccessfulExit();
+            if(regionSize > 0) {
+                return regionSize;
+            }
+        } catch (IOException | AssertionError e) {
+            System.err.printf("Could not read the heap region size of %s, going by this JVM instead: %s\n", javaExecutable, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return AllocationClasses.regionSize();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     private Path reportFolder() throws IOException {
@@ -110,7 +521,13 @@ public class Jaa
         return defaultReportFolder();
     }
 
-    private Path allocationInstrumenterJarPath() {
+    private Path allocationInstrumenterJarPath() throws IOException {
+        if(options.allocationSiteAgent()) {
+            return AllocationSiteAgent.jar(
+                    options.instrumentedPackages().collect(toList()),
+                    options.uninstrumentedPackages().collect(toList()));
+        }
+
         Path allocationInstrumenter = options.allocationInstrumenter();
         if(allocationInstrumenter != null) {
             return allocationInstrumenter;
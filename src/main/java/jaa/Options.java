@@ -1,24 +1,114 @@
 package jaa;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 public class Options
 {
-    private final Set<String> includes;
-    private final Path javaExecutable;
-    private final Path allocationInstrumenter;
-    private final Path reportFolder;
+    public enum Mode
+    {
+        /**
+         * Find out what is allocated where by instrumenting allocations, and filter out the allocations
+         * escape analysis removes in a separate, uninstrumented, run. Requires a debug build of the JVM.
+         */
+        ESCAPE_FILTERED_INSTRUMENTATION,
+
+        /**
+         * Only measure bytes allocated per operation, using the allocation counters HotSpot keeps per thread.
+         * No instrumentation is involved and the method runs on the same regular JVM running JAA, with escape
+         * analysis active, so this is quick and gives exact post-escape-analysis numbers - but says nothing about
+         * where the allocations happen. Useful as a sanity check of the instrumented reports.
+         */
+        ALLOCATION_COUNTERS,
+
+        /**
+         * Find out what is allocated where by recording allocation events with Java Flight Recorder, on the
+         * regular JVM running JAA. Runs at close to full speed with escape analysis active, so it suits long-running
+         * workloads; but JFR samples allocations, so byte counts are estimates and the measurement needs to run
+         * long enough to fill a fair number of TLABs to be meaningful. Requires a JVM with JFR, 8u262 or later.
+         */
+        JFR_SAMPLING
+    }
+
+    /** What instrumented runs record about each frame of the stack traces of allocations. */
+    public enum FrameDetail
+    {
+        /**
+         * Just the class of each frame. This is the cheapest to capture, but allocations from different
+         * methods of a class are told apart only by the frames further up the stack.
+         */
+        CLASSES,
+
+        /**
+         * Class, method and line of each frame, plus the bytecode index on Java 10 and later. Captured with
+         * StackWalker where available, otherwise with regular stack traces, which are slower to capture.
+         */
+        METHODS
+    }
+
+    /** How reports of allocations are written; reading a report tells the formats apart. */
+    public enum ReportFormat
+    {
+        /**
+         * A JSON array of records, each giving its stack trace in full, in {@code .json} files. Readable by
+         * anything that reads JSON.
+         */
+        JSON(".json"),
+
+        /**
+         * A compact binary format, giving each string once and numbers as variable length integers, so reports
+         * with many deep stack traces of the same frames take a fraction of the space. Written to {@code .jaa}
+         * files, and read by JAA only.
+         */
+        BINARY(".jaa");
+
+        private final String suffix;
+
+        ReportFormat(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /** File name suffix of reports in this format. */
+        public String suffix() {
+            return suffix;
+        }
+    }
+
+    private Set<String> includes;
+    private Path javaExecutable;
+    private Path allocationInstrumenter;
+    private Path reportFolder;
+    private int concurrency;
+    private Duration forkTimeout;
+    private int jobsPerWorker;
+    private boolean incremental;
+    private Path whiteBoxJar;
+    private Mode mode;
+    private long samplingInterval;
+    private FrameDetail frameDetail;
+    private int stackDepth;
+    private boolean offHeapRecording;
+    private Duration flushInterval;
+    private Duration rateWindow;
+    private long lifetimeSamplingInterval;
+    private long heapRegionSize;
+    private ReportFormat reportFormat;
+    private boolean allocationSiteAgent;
+    private Set<String> instrumentedPackages;
+    private Set<String> uninstrumentedPackages;
 
     public static class Builder {
 
         private final Options state;
 
         public Builder() {
-            this(new Options(Collections.emptySet(), null, null, null));
+            this(new Options());
         }
 
         private Builder(Options state) {
@@ -33,7 +123,7 @@ public class Options
         public Builder include(Class<?> classWithCodeToAnalyze) {
             HashSet<String> newIncludes = new HashSet<>(state.includes);
             newIncludes.add(classWithCodeToAnalyze.getName());
-            return new Builder(new Options(newIncludes, state.javaExecutable, state.allocationInstrumenter, state.reportFolder));
+            return with(o -> o.includes = newIncludes);
         }
 
         /**
@@ -45,7 +135,7 @@ public class Options
          */
         public Builder withJavaExecutable(Path pathToJavaExecutable)
         {
-            return new Builder(new Options(state.includes, pathToJavaExecutable, state.allocationInstrumenter, state.reportFolder));
+            return with(o -> o.javaExecutable = pathToJavaExecutable);
         }
 
         /**
@@ -59,7 +149,7 @@ public class Options
          */
         public Builder withAllocationInstrumenter(Path pathToAllocationInstrumenterJar)
         {
-            return new Builder(new Options(state.includes, state.javaExecutable, pathToAllocationInstrumenterJar, state.reportFolder));
+            return with(o -> o.allocationInstrumenter = pathToAllocationInstrumenterJar);
         }
 
         /**
@@ -70,20 +160,340 @@ public class Options
          */
         public Builder withReportFolder(Path reportFolder)
         {
-            return new Builder(new Options(state.includes, state.javaExecutable, state.allocationInstrumenter, reportFolder));
+            return with(o -> o.reportFolder = reportFolder);
+        }
+
+        /**
+         * Number of analysis methods to run at the same time. Each method being analyzed runs
+         * its escape analysis JVM and its instrumented JVM side by side, so this will use up
+         * to twice as many child JVMs as the number given. Defaults to 1.
+         *
+         * @param methodsInParallel
+         * @return a new builder
+         */
+        public Builder withConcurrency(int methodsInParallel)
+        {
+            if(methodsInParallel < 1) {
+                throw new IllegalArgumentException("Concurrency must be at least 1, got " + methodsInParallel);
+            }
+            return with(o -> o.concurrency = methodsInParallel);
+        }
+
+        /**
+         * Maximum wall-clock time each child JVM is allowed to run before it is killed and
+         * the analysis of that method fails. Defaults to 30 minutes.
+         *
+         * @param timeout
+         * @return a new builder
+         */
+        public Builder withForkTimeout(Duration timeout)
+        {
+            if(timeout == null || timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException("Fork timeout must be positive, got " + timeout);
+            }
+            return with(o -> o.forkTimeout = timeout);
+        }
+
+        /**
+         * Reuse each instrumented JVM for up to this many analyses before replacing it, rather than
+         * starting a new JVM for every method. This removes JVM startup and JDK instrumentation from the
+         * cost of each analysis, at the price of analyses sharing a JVM. Defaults to 1, meaning every
+         * analysis gets a fresh JVM.
+         *
+         * Escape analysis always gets a fresh JVM, since HotSpot only reports eliminated allocations
+         * when it compiles a method, which a warm JVM will already have done for code shared between methods.
+         *
+         * @param jobsPerWorker
+         * @return a new builder
+         */
+        public Builder withJobsPerWorker(int jobsPerWorker)
+        {
+            if(jobsPerWorker < 1) {
+                throw new IllegalArgumentException("Jobs per worker must be at least 1, got " + jobsPerWorker);
+            }
+            return with(o -> o.jobsPerWorker = jobsPerWorker);
+        }
+
+        /**
+         * Skip analyzing methods whose bytecode, and the bytecode of everything they call on the classpath,
+         * is unchanged since the reports in the report folder were produced by the same JVM. The existing
+         * reports are used instead. Requires a report folder that is kept between runs. Defaults to off.
+         *
+         * @param incremental
+         * @return a new builder
+         */
+        public Builder withIncrementalAnalysis(boolean incremental)
+        {
+            return with(o -> o.incremental = incremental);
+        }
+
+        /**
+         * Path to the WhiteBox API jar (wb.jar) from the HotSpot test library, built for the same JVM as the
+         * java executable. When given, the escape analysis JVM forces C2 compilation of each analysis method
+         * after its warmup iterations and waits for it to finish before running the measurement iterations,
+         * so escape analysis results don't depend on whether warmup happened to trigger compilation.
+         *
+         * @param pathToWhiteBoxJar
+         * @return a new builder
+         */
+        public Builder withWhiteBoxJar(Path pathToWhiteBoxJar)
+        {
+            return with(o -> o.whiteBoxJar = pathToWhiteBoxJar);
+        }
+
+        /**
+         * How to analyze allocations, see {@link Mode}. Defaults to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param mode
+         * @return a new builder
+         */
+        public Builder withMode(Mode mode)
+        {
+            return with(o -> o.mode = mode);
+        }
+
+        /**
+         * Rather than recording every allocation in instrumented runs, capture the stack trace of about one
+         * allocation per this many bytes allocated, picked at random so that an allocation is as likely to be
+         * sampled as any other of the same size. Reported bytes and allocations are then estimates scaled up from
+         * the samples, given with 95% confidence bounds; the larger the interval, the faster allocation-heavy
+         * methods run, and the looser the bounds. Defaults to 0, recording every allocation.
+         *
+         * Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param bytes mean number of bytes allocated between samples
+         * @return a new builder
+         */
+        public Builder withSamplingInterval(long bytes)
+        {
+            if(bytes < 0) {
+                throw new IllegalArgumentException("Sampling interval can't be negative, got " + bytes);
+            }
+            return with(o -> o.samplingInterval = bytes);
+        }
+
+        /**
+         * What to record about each stack frame of allocations, see {@link FrameDetail}. Defaults to
+         * {@link FrameDetail#CLASSES}. Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param frameDetail
+         * @return a new builder
+         */
+        public Builder withFrameDetail(FrameDetail frameDetail)
+        {
+            return with(o -> o.frameDetail = frameDetail);
+        }
+
+        /**
+         * Number of frames of the stack traces of allocations to record, counting from the allocating frame.
+         * Defaults to 15. With {@link #withAllocationSiteAgent()}, a depth of 1 means allocations are attributed
+         * to their allocation site without walking the stack at all.
+         *
+         * @param frames
+         * @return a new builder
+         */
+        public Builder withStackDepth(int frames)
+        {
+            if(frames < 1) {
+                throw new IllegalArgumentException("Stack depth must be at least 1, got " + frames);
+            }
+            return with(o -> o.stackDepth = frames);
+        }
+
+        /**
+         * Count allocations off the heap of the analysis JVM, so that however many allocation sites the analyzed
+         * method allocates at, counting them doesn't grow the heap or cause garbage collections the method
+         * wouldn't cause on its own. Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @return a new builder
+         */
+        public Builder withOffHeapRecording()
+        {
+            return with(o -> o.offHeapRecording = true);
+        }
+
+        /**
+         * Write the report of allocations a segment at a time, this often, while the analyzed method runs; each
+         * segment holding the allocations counted since the previous one, which are then forgotten. Memory use
+         * then stays bounded however long the method runs, and a report of all allocations up to the last segment
+         * survives the analysis JVM dying. Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param interval time between segments, or zero to write the report all at once at the end, the default
+         * @return a new builder
+         */
+        public Builder withFlushInterval(Duration interval)
+        {
+            if(interval.isNegative()) {
+                throw new IllegalArgumentException("Flush interval can't be negative, got " + interval);
+            }
+            return with(o -> o.flushInterval = interval);
+        }
+
+        /**
+         * Count allocations per window of time of the given length, as well as in total, so bursts of allocation
+         * show up rather than being averaged out: the report gives each site's bytes per window, and the summary
+         * the peak allocation rate next to totals. Only the last 64 windows of each site are kept between report
+         * segments, see {@link #withFlushInterval(Duration)}, though the peak is over the whole run. Only applies
+         * to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param window length of each window, like 100 milliseconds, or zero not to count allocations per window, the default
+         * @return a new builder
+         */
+        public Builder withRateWindow(Duration window)
+        {
+            if(window.isNegative()) {
+                throw new IllegalArgumentException("Rate window can't be negative, got " + window);
+            }
+            return with(o -> o.rateWindow = window);
+        }
+
+        /**
+         * Track how long about one object per this many bytes allocated lives, in time and in garbage collections
+         * survived, by holding weak references to the objects picked. The report gives lifetimes per site, and an
+         * estimate of the bytes each site has promoted to the old generation, telling sites that make short lived
+         * garbage apart from those that cost long pauses. Each object tracked costs a reference object, so the
+         * interval should be large enough to only track a small fraction of allocations. Defaults to 0, tracking none.
+         *
+         * Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}.
+         *
+         * @param bytes mean number of bytes allocated between objects tracked
+         * @return a new builder
+         */
+        public Builder withLifetimeSampling(long bytes)
+        {
+            if(bytes < 0) {
+                throw new IllegalArgumentException("Lifetime sampling interval can't be negative, got " + bytes);
+            }
+            return with(o -> o.lifetimeSamplingInterval = bytes);
+        }
+
+        /**
+         * Region size of the G1 heap the analyzed code will run on, like given by {@code -XX:G1HeapRegionSize}.
+         * Allocations of half a region or more are humongous, and get regions of their own; the report counts
+         * allocations of each site by whether they are humongous, likely outside TLABs, or in TLABs, and the
+         * summary ranks sites allocating humongous objects first. Defaults to the region size of the JVMs the
+         * analysis runs on, as they print it, or the region size G1 would pick for their heap if they don't run G1.
+         * In {@link Mode#JFR_SAMPLING} mode, JFR tells which allocations went outside TLABs, so only the humongous
+         * ones go by the region size.
+         *
+         * @param bytes region size, a power of two of at least 1 MB
+         * @return a new builder
+         */
+        public Builder withHeapRegionSize(long bytes)
+        {
+            if(Long.bitCount(bytes) != 1 || bytes < (1 << 20)) {
+                throw new IllegalArgumentException("Heap region size must be a power of two of at least 1 MB, got " + bytes);
+            }
+            return with(o -> o.heapRegionSize = bytes);
+        }
+
+        /**
+         * Format to write reports of allocations in, see {@link ReportFormat}. Defaults to {@link ReportFormat#JSON}.
+         * Reports are named by their format, so switching format makes incremental runs analyze methods again.
+         *
+         * @param format
+         * @return a new builder
+         */
+        public Builder withReportFormat(ReportFormat format)
+        {
+            return with(o -> o.reportFormat = format);
+        }
+
+        /**
+         * Instrument allocations with JAA's own agent rather than the google allocation instrumenter. The agent
+         * only instruments the packages given to {@link #withInstrumentedPackages(String...)}, or all packages
+         * but those given to {@link #withUninstrumentedPackages(String...)}, and never the JDK; so allocations
+         * made in uninstrumented code, the JDK included, are not seen, but that code runs at full speed.
+         *
+         * Only applies to {@link Mode#ESCAPE_FILTERED_INSTRUMENTATION}. Replaces any allocation instrumenter
+         * given with {@link #withAllocationInstrumenter(Path)}.
+         *
+         * @return a new builder
+         */
+        public Builder withAllocationSiteAgent()
+        {
+            return with(o -> o.allocationSiteAgent = true);
+        }
+
+        /**
+         * Packages the allocation site agent instruments, like com.example; sub-packages are included.
+         * Defaults to all packages.
+         *
+         * @param packages
+         * @return a new builder
+         */
+        public Builder withInstrumentedPackages(String ... packages)
+        {
+            HashSet<String> newPackages = new HashSet<>(state.instrumentedPackages);
+            newPackages.addAll(Arrays.asList(packages));
+            return with(o -> o.instrumentedPackages = newPackages);
+        }
+
+        /**
+         * Packages the allocation site agent leaves alone, even if they are in an instrumented package;
+         * sub-packages are excluded too.
+         *
+         * @param packages
+         * @return a new builder
+         */
+        public Builder withUninstrumentedPackages(String ... packages)
+        {
+            HashSet<String> newPackages = new HashSet<>(state.uninstrumentedPackages);
+            newPackages.addAll(Arrays.asList(packages));
+            return with(o -> o.uninstrumentedPackages = newPackages);
         }
 
         public Options build()
         {
             return state;
         }
+
+        private Builder with(Consumer<Options> change)
+        {
+            Options next = new Options(state);
+            change.accept(next);
+            return new Builder(next);
+        }
     }
 
-    private Options(Set<String> includes, Path javaExecutable, Path allocationInstrumenter, Path reportFolder) {
-        this.includes = includes;
-        this.javaExecutable = javaExecutable;
-        this.allocationInstrumenter = allocationInstrumenter;
-        this.reportFolder = reportFolder;
+    private Options() {
+        this.includes = Collections.emptySet();
+        this.concurrency = 1;
+        this.forkTimeout = Duration.ofMinutes(30);
+        this.jobsPerWorker = 1;
+        this.mode = Mode.ESCAPE_FILTERED_INSTRUMENTATION;
+        this.frameDetail = FrameDetail.CLASSES;
+        this.stackDepth = 15;
+        this.flushInterval = Duration.ZERO;
+        this.rateWindow = Duration.ZERO;
+        this.reportFormat = ReportFormat.JSON;
+        this.instrumentedPackages = Collections.emptySet();
+        this.uninstrumentedPackages = Collections.emptySet();
+    }
+
+    private Options(Options source) {
+        this.includes = source.includes;
+        this.javaExecutable = source.javaExecutable;
+        this.allocationInstrumenter = source.allocationInstrumenter;
+        this.reportFolder = source.reportFolder;
+        this.concurrency = source.concurrency;
+        this.forkTimeout = source.forkTimeout;
+        this.jobsPerWorker = source.jobsPerWorker;
+        this.incremental = source.incremental;
+        this.whiteBoxJar = source.whiteBoxJar;
+        this.mode = source.mode;
+        this.samplingInterval = source.samplingInterval;
+        this.frameDetail = source.frameDetail;
+        this.stackDepth = source.stackDepth;
+        this.offHeapRecording = source.offHeapRecording;
+        this.flushInterval = source.flushInterval;
+        this.rateWindow = source.rateWindow;
+        this.lifetimeSamplingInterval = source.lifetimeSamplingInterval;
+        this.heapRegionSize = source.heapRegionSize;
+        this.reportFormat = source.reportFormat;
+        this.allocationSiteAgent = source.allocationSiteAgent;
+        this.instrumentedPackages = source.instrumentedPackages;
+        this.uninstrumentedPackages = source.uninstrumentedPackages;
     }
 
     public Stream<String> includes() {
@@ -101,4 +511,76 @@ public class Options
     public Path reportFolder() {
         return reportFolder;
     }
+
+    public int concurrency() {
+        return concurrency;
+    }
+
+    public Duration forkTimeout() {
+        return forkTimeout;
+    }
+
+    public int jobsPerWorker() {
+        return jobsPerWorker;
+    }
+
+    public boolean incremental() {
+        return incremental;
+    }
+
+    public Path whiteBoxJar() {
+        return whiteBoxJar;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public long samplingInterval() {
+        return samplingInterval;
+    }
+
+    public FrameDetail frameDetail() {
+        return frameDetail;
+    }
+
+    public int stackDepth() {
+        return stackDepth;
+    }
+
+    public boolean offHeapRecording() {
+        return offHeapRecording;
+    }
+
+    public Duration flushInterval() {
+        return flushInterval;
+    }
+
+    public Duration rateWindow() {
+        return rateWindow;
+    }
+
+    public long lifetimeSamplingInterval() {
+        return lifetimeSamplingInterval;
+    }
+
+    public long heapRegionSize() {
+        return heapRegionSize;
+    }
+
+    public ReportFormat reportFormat() {
+        return reportFormat;
+    }
+
+    public boolean allocationSiteAgent() {
+        return allocationSiteAgent;
+    }
+
+    public Stream<String> instrumentedPackages() {
+        return instrumentedPackages.stream().sorted();
+    }
+
+    public Stream<String> uninstrumentedPackages() {
+        return uninstrumentedPackages.stream().sorted();
+    }
 }
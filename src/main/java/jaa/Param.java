@@ -0,0 +1,20 @@
+package jaa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of an analysis class as a parameter. Each analysis in the class is run once for every
+ * combination of parameter values, with the field set before {@link SetUp} methods are called.
+ *
+ * Values are given as strings and converted to the type of the field; primitives, their boxed types,
+ * strings and enums are supported. When a parameter is numeric, JAA reports how allocations grow with it,
+ * and points out allocation sites that grow faster than linearly.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD})
+public @interface Param {
+    String[] value();
+}
@@ -0,0 +1,221 @@
+package jaa;
+
+import jaa.internal.allocation.AllocationLedger;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.Comparator.comparingDouble;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Compares two folders of allocation reports, say one from the main branch and one from a pull request,
+ * and tells which analyses allocate more, or less, per operation in the candidate than in the baseline.
+ *
+ * Allocation points are matched by what they allocate and their stack trace. An analysis has regressed when
+ * its bytes per operation grow by more than both noise thresholds: an absolute number of bytes per operation,
+ * and a percentage of the baseline.
+ *
+ * Run from the command line with
+ *
+ * <pre>
+ * java -cp ... jaa.ReportDiff [--bytes-threshold=1] [--percent-threshold=5] baseline-folder candidate-folder
+ * </pre>
+ *
+ * which exits with status 1 if any analysis regressed, and 2 on bad arguments.
+ */
+public class ReportDiff
+{
+    private static final String FULL_REPORT = ".full";
+    private static final Pattern LAMBDA = Pattern.compile("\\$\\$Lambda(\\$[0-9]+)?/(0x)?[0-9a-f]+");
+
+    public static void main(String ... argv) throws IOException {
+        double bytesThreshold = 1;
+        double percentThreshold = 5;
+        List<Path> folders = new ArrayList<>();
+        try {
+            for (String arg : argv) {
+                if(arg.startsWith("--bytes-threshold=")) {
+                    bytesThreshold = Double.parseDouble(arg.substring("--bytes-threshold=".length()));
+                } else if(arg.startsWith("--percent-threshold=")) {
+                    percentThreshold = Double.parseDouble(arg.substring("--percent-threshold=".length()));
+                } else if(arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    folders.add(Paths.get(arg));
+                }
+            }
+            if(folders.size() != 2) {
+                throw new IllegalArgumentException("Expected a baseline and a candidate report folder");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: jaa.ReportDiff [--bytes-threshold=<b/op>] [--percent-threshold=<%>] <baseline folder> <candidate folder>");
+            System.exit(2);
+            return;
+        }
+
+        boolean regressed = new ReportDiff(bytesThreshold, percentThreshold)
+                .diff(folders.get(0), folders.get(1), System.out);
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private final double bytesThreshold;
+    private final double percentThreshold;
+
+    /**
+     * @param bytesThreshold changes of at most this many bytes per operation are noise
+     * @param percentThreshold changes of at most this percentage of the baseline are noise
+     */
+    public ReportDiff(double bytesThreshold, double percentThreshold) {
+        this.bytesThreshold = bytesThreshold;
+        this.percentThreshold = percentThreshold;
+    }
+
+    /**
+     * Compare the reports in two folders, printing per-analysis and per-allocation point changes.
+     *
+     * @return true if any analysis in the candidate regressed
+     */
+    public boolean diff(Path baselineFolder, Path candidateFolder, PrintStream out) throws IOException {
+        Map<String, Path> baseline = reports(baselineFolder);
+        Map<String, Path> candidate = reports(candidateFolder);
+        TreeSet<String> analyses = new TreeSet<>(baseline.keySet());
+        analyses.addAll(candidate.keySet());
+
+        int regressed = 0, improved = 0, unchanged = 0, added = 0, removed = 0;
+        StringBuilder report = new StringBuilder();
+        for (String analysis : analyses) {
+            if(!candidate.containsKey(analysis)) {
+                removed++;
+                report.append(String.format("== %s, removed ==\n\n", analysis));
+                continue;
+            }
+            AllocationLedger after = AllocationLedger.read(candidate.get(analysis));
+            if(!baseline.containsKey(analysis)) {
+                added++;
+                report.append(String.format("== %s, added ==\n  %.1fb/op, %.1f allocs/op\n\n",
+                        analysis, after.bytesPerOp(), after.allocsPerOp()));
+                continue;
+            }
+            AllocationLedger before = AllocationLedger.read(baseline.get(analysis));
+
+            String verdict;
+            double delta = after.bytesPerOp() - before.bytesPerOp();
+            if(isSignificant(delta, before.bytesPerOp())) {
+                if(delta > 0) {
+                    regressed++;
+                    verdict = "regressed";
+                } else {
+                    improved++;
+                    verdict = "improved";
+                }
+            } else {
+                unchanged++;
+                continue;
+            }
+
+            report.append(String.format("== %s, %s ==\n", analysis, verdict));
+            report.append(String.format("  %.1fb/op -> %.1fb/op (%+.1fb/op%s), %.1f -> %.1f allocs/op (%+.1f)\n",
+                    before.bytesPerOp(),
+                    after.bytesPerOp(),
+                    delta,
+                    before.bytesPerOp() > 0 ? String.format(", %+.1f%%", 100 * delta / before.bytesPerOp()) : "",
+                    before.allocsPerOp(),
+                    after.allocsPerOp(),
+                    after.allocsPerOp() - before.allocsPerOp()));
+            for (SiteDelta site : siteDeltas(before, after)) {
+                report.append(String.format("  %+.1fb/op (%+.1f allocs/op) of %s at:\n\t%s\n",
+                        site.bytesPerOp,
+                        site.allocsPerOp,
+                        site.obj,
+                        site.stackTrace
+                                .stream()
+                                .filter(s -> s.length() > 1)
+                                .collect(joining("\n\t"))));
+            }
+            report.append(String.format("\n"));
+        }
+        report.append(String.format("== %d regressed, %d improved, %d unchanged, %d added, %d removed ==\n",
+                regressed, improved, unchanged, added, removed));
+        out.print(report);
+        return regressed > 0;
+    }
+
+    private boolean isSignificant(double delta, double baseline) {
+        return Math.abs(delta) > bytesThreshold && Math.abs(delta) > baseline * percentThreshold / 100;
+    }
+
+    static class SiteDelta {
+        final String obj;
+        final List<String> stackTrace;
+        double bytesPerOp;
+        double allocsPerOp;
+
+        SiteDelta(String obj, List<String> stackTrace) {
+            this.obj = obj;
+            this.stackTrace = stackTrace;
+        }
+    }
+
+    /** Changes per allocation point that are over the absolute noise threshold, largest first. */
+    List<SiteDelta> siteDeltas(AllocationLedger before, AllocationLedger after) {
+        Map<List<String>, SiteDelta> sites = new LinkedHashMap<>();
+        before.records().forEach(r -> {
+            SiteDelta site = sites.computeIfAbsent(siteKey(r), k -> new SiteDelta(r.getObj(), r.getStackTrace()));
+            site.bytesPerOp -= r.getBytesPerOp();
+            site.allocsPerOp -= r.getAllocsPerOp();
+        });
+        after.records().forEach(r -> {
+            SiteDelta site = sites.computeIfAbsent(siteKey(r), k -> new SiteDelta(r.getObj(), r.getStackTrace()));
+            site.bytesPerOp += r.getBytesPerOp();
+            site.allocsPerOp += r.getAllocsPerOp();
+        });
+        return sites.values().stream()
+                .filter(s -> Math.abs(s.bytesPerOp) > bytesThreshold)
+                .sorted(comparingDouble(s -> -Math.abs(s.bytesPerOp)))
+                .collect(Collectors.toList());
+    }
+
+    static List<String> siteKey(AllocationLedger.Record record) {
+        List<String> key = new ArrayList<>();
+        key.add(record.getObj());
+        // Lambda classes are numbered and addressed as they are spun up, which may differ between runs; named
+        // Foo$$Lambda$1/12345 before Java 9, Foo$$Lambda$1/0x0000000800c03000 after, and Foo$$Lambda/0x... from 21 on
+        record.getStackTrace().forEach(frame -> key.add(LAMBDA.matcher(frame).replaceAll("\\$\\$Lambda")));
+        return key;
+    }
+
+    /**
+     * Reports in a folder by analysis name, in either format; only the reports with eliminated allocations
+     * filtered out.
+     */
+    private static Map<String, Path> reports(Path folder) throws IOException {
+        if(!Files.isDirectory(folder)) {
+            throw new IOException(String.format("%s is not a report folder", folder));
+        }
+        Map<String, Path> reports = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(folder)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                for (Options.ReportFormat format : Options.ReportFormat.values()) {
+                    if(name.endsWith(format.suffix()) && !name.endsWith(FULL_REPORT + format.suffix())) {
+                        reports.put(name.substring(0, name.length() - format.suffix().length()), file);
+                    }
+                }
+            });
+        }
+        return reports;
+    }
+}
@@ -0,0 +1,94 @@
+package jaa;
+
+import jaa.internal.allocation.AllocationLedger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ReportDiff_Test {
+    @Rule
+    public TemporaryFolder folders = new TemporaryFolder();
+
+    @Test
+    public void shouldReportRegressionByAllocationPoint() throws Exception
+    {
+        // Given
+        Path baseline = folders.newFolder("baseline").toPath();
+        Path candidate = folders.newFolder("candidate").toPath();
+        report(baseline, "a.B#c", 160, 10);
+        report(candidate, "a.B#c", 160, 10, "[J", 240, 10);
+
+        // When
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean regressed = new ReportDiff(1, 5).diff(baseline, candidate, new PrintStream(out, true));
+
+        // Then
+        assertTrue(regressed);
+        assertThat(out.toString(), containsString("== a.B#c, regressed =="));
+        assertThat(out.toString(), containsString("16.0b/op -> 40.0b/op (+24.0b/op, +150.0%)"));
+        assertThat(out.toString(), containsString("+24.0b/op (+1.0 allocs/op) of [J at:\n\ta.D"));
+        assertThat(out.toString(), containsString("1 regressed, 0 improved, 0 unchanged"));
+    }
+
+    @Test
+    public void shouldIgnoreChangesWithinNoiseThresholds() throws Exception
+    {
+        // Given
+        Path baseline = folders.newFolder("baseline").toPath();
+        Path candidate = folders.newFolder("candidate").toPath();
+        report(baseline, "a.B#c", 1000, 10);
+        report(candidate, "a.B#c", 1040, 10);
+
+        // When
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean regressed = new ReportDiff(1, 5).diff(baseline, candidate, new PrintStream(out, true));
+
+        // Then
+        assertFalse(regressed);
+        assertThat(out.toString(), not(containsString("a.B#c")));
+        assertThat(out.toString(), containsString("0 regressed, 0 improved, 1 unchanged"));
+    }
+
+    @Test
+    public void shouldMatchSitesInLambdasOfAnyJavaVersionAcrossRuns() throws Exception
+    {
+        // Given lambda frames as named by Java 8, 9 to 20, and 21 on, in two runs
+        AllocationLedger first = new AllocationLedger();
+        first.record("[J", 16, asList("a.B$$Lambda$12/1831932724", "a.B$$Lambda$14/0x0000000800066840#run L-1 @0", "a.B$$Lambda/0x000001b8c1003a00"));
+        AllocationLedger second = new AllocationLedger();
+        second.record("[J", 16, asList("a.B$$Lambda$13/925858445", "a.B$$Lambda$15/0x00000008000abcd0#run L-1 @0", "a.B$$Lambda/0x000001b8c1004b28"));
+
+        // When
+        List<String> firstKey = ReportDiff.siteKey(first.records().findFirst().get());
+        List<String> secondKey = ReportDiff.siteKey(second.records().findFirst().get());
+
+        // Then
+        assertEquals(firstKey, secondKey);
+        assertEquals(asList("[J", "a.B$$Lambda", "a.B$$Lambda#run L-1 @0", "a.B$$Lambda"), firstKey);
+    }
+
+    private static void report(Path folder, String analysis, long objectBytes, long operations, Object ... extra) throws Exception {
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", objectBytes, operations, asList("a.B", "a.C"));
+        if(extra.length > 0) {
+            ledger.record((String) extra[0], ((Number) extra[1]).longValue(), ((Number) extra[2]).longValue(), asList("a.D"));
+        }
+        ledger.setOperations(operations);
+        ledger.write(folder.resolve(analysis + ".json"));
+        // Unfiltered reports are not compared
+        ledger.write(folder.resolve(analysis + ".full.json"));
+    }
+}
@@ -0,0 +1,193 @@
+package jaa.internal.allocation;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Allocations by how a G1 heap with regions of the given size would place them: in a TLAB, in eden outside of
+ * TLABs, or in humongous regions of their own, which allocations of half a region or more take.
+ *
+ * Whether an allocation goes outside TLABs depends on how full the allocating thread's TLAB is, which
+ * instrumented runs can't see. HotSpot allocates outside the TLAB rather than retire it when the allocation
+ * doesn't fit and more than 1/64 of the TLAB is left; G1 TLABs are at most half a region, so allocations of 1/128
+ * of a region or more are counted as outside TLABs, as they are the ones that often are.
+ *
+ * Region sizes are powers of two, so the classes line up with the buckets of a {@link SizeHistogram}, and
+ * counts and bytes per class are exact.
+ *
+ * JFR does tell which allocations went outside TLABs, so for allocations recorded with it the classes go by
+ * that instead, see {@link #AllocationClasses(long, long, SizeHistogram, long)}.
+ */
+public class AllocationClasses
+{
+    /** G1 picks region sizes within these, aiming for this many regions. */
+    private static final long MIN_REGION_SIZE = 1 << 20, MAX_REGION_SIZE = 32 << 20, TARGET_REGIONS = 2048;
+    /** A line of -XX:+PrintFlagsFinal, like {@code size_t G1HeapRegionSize = 1048576 {product} {ergonomic}}. */
+    private static final Pattern FLAG = Pattern.compile(
+            "\\s*\\S+\\s+(G1HeapRegionSize|InitialHeapSize|MaxHeapSize)\\s+:?=\\s+(\\d+).*");
+
+    private final long regionSize;
+    private long tlabCount, tlabBytes;
+    private long outsideTlabCount, outsideTlabBytes;
+    private long humongousCount, humongousBytes;
+
+    /**
+     * @param regionSize size of G1 heap regions, a power of two
+     */
+    public AllocationClasses(SizeHistogram sizes, long regionSize) {
+        this(regionSize);
+        long[] counts = sizes.getCounts();
+        long[] bytes = sizes.getBytes();
+        // Buckets start at powers of two, so these are the buckets of the smallest size in each class
+        int outsideTlabBucket = SizeHistogram.bucket(regionSize / 128);
+        int humongousBucket = SizeHistogram.bucket(regionSize / 2);
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if(bucket >= humongousBucket) {
+                humongousCount += counts[bucket];
+                humongousBytes += bytes[bucket];
+            } else if(bucket >= outsideTlabBucket) {
+                outsideTlabCount += counts[bucket];
+                outsideTlabBytes += bytes[bucket];
+            } else {
+                tlabCount += counts[bucket];
+                tlabBytes += bytes[bucket];
+            }
+        }
+    }
+
+    /**
+     * Allocations of which it is known which went outside TLABs; those of half a region or more are humongous,
+     * and the rest went in TLABs.
+     * @param outsideTlab sizes of the allocations made outside TLABs
+     */
+    public AllocationClasses(long count, long bytes, SizeHistogram outsideTlab, long regionSize) {
+        this(regionSize);
+        long[] counts = outsideTlab.getCounts();
+        long[] sizeBytes = outsideTlab.getBytes();
+        int humongousBucket = SizeHistogram.bucket(regionSize / 2);
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if(bucket >= humongousBucket) {
+                humongousCount += counts[bucket];
+                humongousBytes += sizeBytes[bucket];
+            } else {
+                outsideTlabCount += counts[bucket];
+                outsideTlabBytes += sizeBytes[bucket];
+            }
+        }
+        // Totals estimated from samples may fall short of the exactly counted allocations outside TLABs
+        tlabCount = Math.max(0, count - outsideTlabCount - humongousCount);
+        tlabBytes = Math.max(0, bytes - outsideTlabBytes - humongousBytes);
+    }
+
+    /** No allocations yet; see {@link #add(AllocationClasses)}. */
+    AllocationClasses(long regionSize) {
+        if(Long.bitCount(regionSize) != 1) {
+            throw new IllegalArgumentException("Heap region size must be a power of two, got " + regionSize);
+        }
+        this.regionSize = regionSize;
+    }
+
+    /** Add the allocations of other classes, of the same region size. */
+    void add(AllocationClasses other) {
+        tlabCount += other.tlabCount;
+        tlabBytes += other.tlabBytes;
+        outsideTlabCount += other.outsideTlabCount;
+        outsideTlabBytes += other.outsideTlabBytes;
+        humongousCount += other.humongousCount;
+        humongousBytes += other.humongousBytes;
+    }
+
+    /**
+     * Region size of the G1 heap of this JVM, or, if it doesn't run G1, the region size G1 would pick for a heap
+     * of the same size. For the region size of another JVM, see {@link #regionSize(Stream)}.
+     */
+    public static long regionSize() {
+        try {
+            long regionSize = Long.parseLong(ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                    .getVMOption("G1HeapRegionSize").getValue());
+            if(regionSize > 0) {
+                return regionSize;
+            }
+        } catch (RuntimeException e) {
+            // Not a HotSpot JVM, or one without G1
+        }
+        return regionSize(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getInit(), Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * Region size of the G1 heap of the JVM that printed the given {@code -XX:+PrintFlagsFinal} output, or, if it
+     * doesn't run G1, the region size G1 would pick for a heap of the same size; 0 if the output has neither.
+     */
+    public static long regionSize(Stream<String> printFlagsFinal) {
+        Map<String, Long> flags = new HashMap<>();
+        printFlagsFinal.forEach(line -> {
+            Matcher flag = FLAG.matcher(line);
+            if(flag.matches()) {
+                flags.put(flag.group(1), Long.parseLong(flag.group(2)));
+            }
+        });
+        long regionSize = flags.getOrDefault("G1HeapRegionSize", 0L);
+        if(regionSize > 0) {
+            return regionSize;
+        }
+        if(!flags.containsKey("MaxHeapSize")) {
+            return 0;
+        }
+        return regionSize(flags.getOrDefault("InitialHeapSize", 0L), flags.get("MaxHeapSize"));
+    }
+
+    /** Region size G1 picks for a heap of the given initial and maximum size, see HeapRegion::setup_heap_region_size. */
+    static long regionSize(long initialHeap, long maxHeap) {
+        long average = (Math.max(0, initialHeap) + maxHeap) / 2;
+        long regionSize = Long.highestOneBit(Math.max(MIN_REGION_SIZE, average / TARGET_REGIONS));
+        return Math.min(MAX_REGION_SIZE, regionSize);
+    }
+
+    public long getRegionSize() {
+        return regionSize;
+    }
+
+    public long getTlabCount() {
+        return tlabCount;
+    }
+
+    public long getTlabBytes() {
+        return tlabBytes;
+    }
+
+    public long getOutsideTlabCount() {
+        return outsideTlabCount;
+    }
+
+    public long getOutsideTlabBytes() {
+        return outsideTlabBytes;
+    }
+
+    /** Allocations of half a region or more. */
+    public long getHumongousCount() {
+        return humongousCount;
+    }
+
+    public long getHumongousBytes() {
+        return humongousBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "AllocationClasses{" +
+                "regionSize=" + regionSize +
+                ", tlabCount=" + tlabCount +
+                ", tlabBytes=" + tlabBytes +
+                ", outsideTlabCount=" + outsideTlabCount +
+                ", outsideTlabBytes=" + outsideTlabBytes +
+                ", humongousCount=" + humongousCount +
+                ", humongousBytes=" + humongousBytes +
+                '}';
+    }
+}
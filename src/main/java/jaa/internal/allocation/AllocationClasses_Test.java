@@ -0,0 +1,81 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class AllocationClasses_Test {
+    @Test
+    public void shouldClassifyBySizeRelativeToRegions() throws Exception
+    {
+        // Given 1 MB regions, so 8 KB or more is likely outside TLABs, and 512 KB or more humongous
+        long regionSize = 1 << 20;
+        SizeHistogram sizes = SizeHistogram.of(64, 1000);
+        sizes.add(SizeHistogram.of((8 << 10) - 1, 2));
+        sizes.add(SizeHistogram.of(8 << 10, 3));
+        sizes.add(SizeHistogram.of((512 << 10) - 1, 4));
+        sizes.add(SizeHistogram.of(512 << 10, 5));
+        sizes.add(SizeHistogram.of(3 << 20, 1));
+
+        // When
+        AllocationClasses classes = new AllocationClasses(sizes, regionSize);
+
+        // Then
+        assertEquals(1002, classes.getTlabCount());
+        assertEquals(64 * 1000 + ((8 << 10) - 1) * 2, classes.getTlabBytes());
+        assertEquals(7, classes.getOutsideTlabCount());
+        assertEquals((8 << 10) * 3 + ((512 << 10) - 1) * 4, classes.getOutsideTlabBytes());
+        assertEquals(6, classes.getHumongousCount());
+        assertEquals((512 << 10) * 5 + (3 << 20), classes.getHumongousBytes());
+    }
+
+    @Test
+    public void shouldPickRegionSizesLikeG1() throws Exception
+    {
+        assertEquals(1 << 20, AllocationClasses.regionSize(64 << 20, 256 << 20));
+        assertEquals(2 << 20, AllocationClasses.regionSize(4L << 30, 4L << 30));
+        assertEquals(4 << 20, AllocationClasses.regionSize(6L << 30, 12L << 30));
+        assertEquals(32 << 20, AllocationClasses.regionSize(0, 1L << 40));
+    }
+
+    @Test
+    public void shouldClassifyByWhichAllocationsWentOutsideTlabs() throws Exception
+    {
+        // Given 1 MB regions, and allocations of which some small ones went outside TLABs
+        SizeHistogram outsideTlab = SizeHistogram.of(1024, 2);
+        outsideTlab.add(SizeHistogram.of(1 << 20, 1));
+
+        // When
+        AllocationClasses classes = new AllocationClasses(100, 1 << 21, outsideTlab, 1 << 20);
+
+        // Then
+        assertEquals(97, classes.getTlabCount());
+        assertEquals((1 << 21) - 2048 - (1 << 20), classes.getTlabBytes());
+        assertEquals(2, classes.getOutsideTlabCount());
+        assertEquals(2048, classes.getOutsideTlabBytes());
+        assertEquals(1, classes.getHumongousCount());
+        assertEquals(1 << 20, classes.getHumongousBytes());
+    }
+
+    @Test
+    public void shouldReadRegionSizeFromPrintedFlags() throws Exception
+    {
+        // JDK 8 marks flags set by ergonomics with :=, later JDKs add origins
+        assertEquals(4 << 20, AllocationClasses.regionSize(Stream.of(
+                "[Global flags]",
+                "    uintx G1HeapRegionSize                         := 4194304                             {product}",
+                "    uintx MaxHeapSize                              := 8388608000                          {product}")));
+        assertEquals(2 << 20, AllocationClasses.regionSize(Stream.of(
+                "   size_t G1HeapRegionSize                         = 2097152                                   {product} {ergonomic}",
+                "   size_t InitialHeapSize                          = 262144000                                 {product} {ergonomic}")));
+
+        // Not running G1, so going by the heap size
+        assertEquals(2 << 20, AllocationClasses.regionSize(Stream.of(
+                "   size_t G1HeapRegionSize                         = 0                                         {product} {default}",
+                "   size_t InitialHeapSize                          = 4294967296                                {product} {ergonomic}",
+                "   size_t MaxHeapSize                              = 4294967296                                {product} {ergonomic}")));
+        assertEquals(0, AllocationClasses.regionSize(Stream.of("openjdk version \"17.0.9\"")));
+    }
+}
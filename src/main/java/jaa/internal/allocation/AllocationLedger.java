@@ -1,24 +1,46 @@
 package jaa.internal.allocation;
 
+import jaa.Options;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
-import static java.util.stream.Collectors.toCollection;
-import static java.util.stream.StreamSupport.stream;
+import static java.util.stream.Collectors.toList;
 
-/** Data structure for storing allocations */
+/**
+ * Data structure for storing allocations.
+ *
+ * Reports are written either in one go, as a JSON array of records, or a segment at a time while allocations are
+ * still being recorded, see {@link #appendSegment(File, boolean)}; either way, they are read back with
+ * {@link #read(File)}. Both can be written in a compact binary format instead, see {@link BinaryReport}, which
+ * reading tells apart by its first bytes.
+ */
 public class AllocationLedger
 {
+    /** Standard normal quantile of the 95% confidence intervals given for estimated allocations. */
+    private static final double Z_95 = 1.96;
+
     /**
      * Create a new ledger with the contents of this ledger, sans the contents
      * of the provided ledger.
@@ -38,13 +60,33 @@ public class AllocationLedger
                         return r;
                     }
 
-                    return new Record(r.getObj(),
-                            r.getTotalBytes() - otherRecord.getTotalBytes(),
-                            r.getObjectsAllocated() - otherRecord.getObjectsAllocated(),
-                            r.getStackTrace());
+                    long bytes = r.getTotalBytes() - otherRecord.getTotalBytes();
+                    long allocs = r.getObjectsAllocated() - otherRecord.getObjectsAllocated();
+                    Record difference;
+                    if(allocs > 0 && bytes > 0) {
+                        difference = new Record(r.getObj(), bytes, allocs, r.getSizes().minus(otherRecord.getSizes()), r.getStackTrace());
+                        difference.bytesVariance.add(r.getBytesVariance() + otherRecord.getBytesVariance());
+                        if(r.outsideTlab != null || otherRecord.outsideTlab != null) {
+                            difference.addOutsideTlab(orEmpty(r.outsideTlab).minus(orEmpty(otherRecord.outsideTlab)));
+                        }
+                        if(r.threadBytes != null) {
+                            difference.addThreadBytes(threadDifference(r.threadBytes, otherRecord));
+                        }
+                    } else {
+                        // None of the allocations are left, but lifetimes of objects allocated at the site may be
+                        difference = new Record(r.getObj(), 0, 0, new SizeHistogram(), r.getStackTrace());
+                    }
+                    // The other ledger's allocations were made at other times, so rate and lifetimes are kept as they are
+                    difference.rate.add(r.rate);
+                    difference.lifetimes.add(r.lifetimes);
+                    return difference;
                 })
-                .filter(r -> r.getObjectsAllocated() > 0 && r.getTotalBytes() > 0);
-        return new AllocationLedger(result);
+                .filter(r -> r.getObjectsAllocated() > 0 && r.getTotalBytes() > 0 || r.getLifetimes().getSampled() > 0);
+        // The other ledger is subtracted in absolute terms, so this ledger keeps its operation count
+        AllocationLedger ledger = new AllocationLedger(result);
+        ledger.setOperations(operations);
+        ledger.setHeapRegionSize(heapRegionSize);
+        return ledger;
     }
 
     public static class Record
@@ -54,21 +96,77 @@ public class AllocationLedger
 
         AtomicLong totalBytes = new AtomicLong();
         AtomicLong allocs = new AtomicLong();
+        // Variance of totalBytes, when it is estimated from sampled allocations
+        DoubleAdder bytesVariance = new DoubleAdder();
+        final SizeHistogram sizes;
+        final AllocationRate rate = new AllocationRate();
+        final ObjectLifetimes lifetimes = new ObjectLifetimes();
+        // Sizes of the allocations known to have been made outside TLABs, or null if not known which were
+        volatile SizeHistogram outsideTlab;
+        volatile long operations = 1;
+        // Size of the G1 heap regions the allocations are classified by, or 0 if not known
+        volatile long heapRegionSize;
+        // Bytes allocated by each analysis thread, by thread index, or null if not known which threads allocated them;
+        // replaced rather than changed, so arrays handed out stay as they are
+        volatile long[] threadBytes;
 
         public Record(String objectDescription, long totalBytes, long allocs, String ... stackTrace) {
             this(objectDescription, totalBytes, allocs, Arrays.asList(stackTrace));
         }
 
+        /** Allocations all of the same size. */
         public Record(String objectDescription, long totalBytes, long allocs, List<String> stackTrace) {
+            this(objectDescription, totalBytes, allocs, SizeHistogram.of(averageSize(totalBytes, allocs), allocs), stackTrace);
+        }
+
+        public Record(String objectDescription, long totalBytes, long allocs, SizeHistogram sizes, List<String> stackTrace) {
             this.stackTrace = stackTrace;
             this.objectDescription = objectDescription;
             this.totalBytes.set(totalBytes);
             this.allocs.set(allocs);
+            this.sizes = sizes;
         }
 
         public void increment(int addAllocs, long addBytes) {
+            increment(addAllocs, addBytes, 0, SizeHistogram.of(averageSize(addBytes, addAllocs), addAllocs));
+        }
+
+        void increment(long addAllocs, long addBytes, double addBytesVariance, SizeHistogram addSizes) {
             allocs.addAndGet(addAllocs);
             totalBytes.addAndGet(addBytes);
+            if(addBytesVariance != 0) {
+                bytesVariance.add(addBytesVariance);
+            }
+            sizes.add(addSizes);
+        }
+
+        /**
+         * Count allocations as made outside TLABs, on top of those counted so far, and so the rest as made in them.
+         * Call with an empty histogram to tell none of them were.
+         */
+        synchronized void addOutsideTlab(SizeHistogram sizes) {
+            if(outsideTlab == null) {
+                outsideTlab = new SizeHistogram();
+            }
+            outsideTlab.add(sizes);
+        }
+
+        /** Count bytes as allocated by the analysis thread of the given index, on top of those counted so far. */
+        void addThreadBytes(int thread, long bytes) {
+            long[] added = new long[thread + 1];
+            added[thread] = bytes;
+            addThreadBytes(added);
+        }
+
+        /** Count bytes as allocated by analysis threads, by thread index, on top of those counted so far. */
+        synchronized void addThreadBytes(long[] bytes) {
+            long[] threadBytes = this.threadBytes == null
+                    ? new long[bytes.length]
+                    : Arrays.copyOf(this.threadBytes, Math.max(this.threadBytes.length, bytes.length));
+            for (int thread = 0; thread < bytes.length; thread++) {
+                threadBytes[thread] += bytes[thread];
+            }
+            this.threadBytes = threadBytes;
         }
 
         public List<String> getStackTrace() {
@@ -87,6 +185,85 @@ public class AllocationLedger
             return allocs.get();
         }
 
+        /** Number of operations, invocations of the analyzed method, these allocations were made over. */
+        public long getOperations() {
+            return operations;
+        }
+
+        public double getBytesPerOp() {
+            return getTotalBytes() / (double) operations;
+        }
+
+        public double getAllocsPerOp() {
+            return getObjectsAllocated() / (double) operations;
+        }
+
+        /** Variance of the total bytes, which is 0 unless allocations were sampled rather than all recorded. */
+        public double getBytesVariance() {
+            return bytesVariance.sum();
+        }
+
+        /** Half-width of the 95% confidence interval of bytes per operation; 0 if allocations were not sampled. */
+        public double getBytesPerOpError() {
+            return Z_95 * Math.sqrt(getBytesVariance()) / operations;
+        }
+
+        /** Sizes of the allocations; empty if not known, like for allocations sampled by JFR. */
+        public SizeHistogram getSizes() {
+            return sizes;
+        }
+
+        /**
+         * Sizes of the allocations made outside TLABs, humongous ones included, as told by JFR; null if not
+         * known which were, like for allocations recorded by instrumentation.
+         */
+        @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+        public SizeHistogram getOutsideTlabSizes() {
+            return outsideTlab;
+        }
+
+        /**
+         * Bytes allocated by each analysis thread, by the index of the thread; threads after the last one that
+         * allocated here are left out. Null if not known which threads allocated them.
+         */
+        @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+        public long[] getThreadBytes() {
+            return threadBytes;
+        }
+
+        /**
+         * Allocations by whether they are humongous, outside TLABs, or in TLABs, going by which were made outside
+         * TLABs if known, or else by their sizes; null unless the ledger was given a heap region size.
+         */
+        public AllocationClasses getAllocationClasses() {
+            long heapRegionSize = this.heapRegionSize;
+            if(heapRegionSize == 0) {
+                return null;
+            }
+            SizeHistogram outsideTlab = this.outsideTlab;
+            return outsideTlab == null
+                    ? new AllocationClasses(sizes, heapRegionSize)
+                    : new AllocationClasses(getObjectsAllocated(), getTotalBytes(), outsideTlab, heapRegionSize);
+        }
+
+        /** Bytes allocated per time window; empty unless the sampler was asked to count them. */
+        @JsonIgnore
+        public AllocationRate getRate() {
+            return rate;
+        }
+
+        /** The rate as written to reports, which leave it out unless allocations were counted per window. */
+        @JsonProperty("rate")
+        @JsonSerialize(include = JsonSerialize.Inclusion.NON_NULL)
+        AllocationRate countedRate() {
+            return rate.getWindowMillis() == 0 ? null : rate;
+        }
+
+        /** How long a sample of the objects lived; empty unless the sampler was asked to track them. */
+        public ObjectLifetimes getLifetimes() {
+            return lifetimes;
+        }
+
         @Override
         public String toString() {
             return "Record{" +
@@ -94,43 +271,181 @@ public class AllocationLedger
                     ", stackTrace=" + stackTrace +
                     ", totalBytes=" + totalBytes +
                     ", allocs=" + allocs +
+                    ", bytesVariance=" + bytesVariance +
+                    ", sizes=" + sizes +
+                    ", outsideTlab=" + outsideTlab +
+                    ", threadBytes=" + Arrays.toString(threadBytes) +
+                    ", rate=" + rate +
+                    ", lifetimes=" + lifetimes +
+                    ", operations=" + operations +
                     '}';
         }
     }
 
     private final Map<String, Map<List<String>, Record>> records = new ConcurrentHashMap<>();
+    private volatile long operations = 1;
+    private volatile long heapRegionSize;
 
     public AllocationLedger() {
 
     }
 
+    /** A ledger of the allocations of all the given ledgers, with the operation count of the last of them. */
     public AllocationLedger(AllocationLedger ... sources) {
         for (AllocationLedger source : sources) {
-            records.putAll(source.records);
+            // Records are added rather than shared, so changing this ledger leaves the sources as they are
+            source.records().forEach(this::add);
+            operations = source.operations;
+            heapRegionSize = source.heapRegionSize;
         }
+        setOperations(operations);
+        setHeapRegionSize(heapRegionSize);
     }
 
     public AllocationLedger(Stream<Record> records) {
         records.forEach(r -> {
-            record(r.objectDescription, r.totalBytes.get(), r.stackTrace);
+            add(r);
+            operations = r.operations;
+            heapRegionSize = r.heapRegionSize;
         });
+        setOperations(operations);
+        setHeapRegionSize(heapRegionSize);
+    }
+
+    /** Add the allocations of a record, of this or another ledger, to the record of the same site in this ledger. */
+    void add(Record r) {
+        Record record = record(r.objectDescription, r.totalBytes.get(), r.allocs.get(), r.getBytesVariance(), r.sizes, r.stackTrace);
+        record.rate.add(r.rate);
+        record.lifetimes.add(r.lifetimes);
+        if(r.outsideTlab != null) {
+            record.addOutsideTlab(r.outsideTlab);
+        }
+        if(r.threadBytes != null) {
+            record.addThreadBytes(r.threadBytes);
+        }
     }
 
     public void record(String objectDescription, long bytes, List<String> stackTrace)
+    {
+        record(objectDescription, bytes, 1, stackTrace);
+    }
+
+    /**
+     * Record allocations all of the same size.
+     * @return the record the allocations were added to
+     */
+    public Record record(String objectDescription, long bytes, long allocs, List<String> stackTrace)
+    {
+        return record(objectDescription, bytes, allocs, 0, SizeHistogram.of(averageSize(bytes, allocs), allocs), stackTrace);
+    }
+
+    /**
+     * Record allocations estimated from samples.
+     * @param bytesVariance variance of the estimated bytes
+     * @param sizes how many of the allocations are of which size
+     * @return the record the allocations were added to
+     */
+    public Record record(String objectDescription, long bytes, long allocs, double bytesVariance, SizeHistogram sizes,
+                       List<String> stackTrace)
     {
         Map<List<String>, Record> stackTraces = records.computeIfAbsent(objectDescription, k -> new ConcurrentHashMap<>());
 
         Record record = stackTraces.get(stackTrace);
         if(record == null) {
             List<String> storedTrace = new ArrayList<>(stackTrace);
-            record = stackTraces.computeIfAbsent(storedTrace, k -> new Record(objectDescription, 0, 0, storedTrace));
+            record = stackTraces.computeIfAbsent(storedTrace, k -> {
+                Record created = new Record(objectDescription, 0, 0, storedTrace);
+                created.operations = operations;
+                created.heapRegionSize = heapRegionSize;
+                return created;
+            });
+        }
+        record.increment(allocs, bytes, bytesVariance, sizes);
+        return record;
+    }
+
+    /**
+     * Bytes of each thread, less those the other record has of the same thread; if the other record doesn't tell
+     * which threads allocated what, its bytes are taken to be split evenly between the threads.
+     */
+    private static long[] threadDifference(long[] threadBytes, Record other) {
+        long[] otherThreadBytes = other.threadBytes;
+        long[] difference = new long[threadBytes.length];
+        for (int thread = 0; thread < threadBytes.length; thread++) {
+            long otherBytes = otherThreadBytes == null
+                    ? other.getTotalBytes() / threadBytes.length
+                    : thread < otherThreadBytes.length ? otherThreadBytes[thread] : 0;
+            difference[thread] = Math.max(0, threadBytes[thread] - otherBytes);
+        }
+        return difference;
+    }
+
+    /**
+     * Index of the analysis thread of the given name, going by the number after the given prefix of the names of
+     * analysis threads; -1 if it is not an analysis thread, or no prefix is given.
+     */
+    static int analysisThread(String threadName, String threadNamePrefix) {
+        if(threadNamePrefix == null || threadName == null || !threadName.startsWith(threadNamePrefix)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(threadName.substring(threadNamePrefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long averageSize(long bytes, long allocs) {
+        return allocs == 0 ? 0 : bytes / allocs;
+    }
+
+    private static SizeHistogram orEmpty(SizeHistogram sizes) {
+        return sizes == null ? new SizeHistogram() : sizes;
+    }
+
+    /**
+     * Set the number of operations the allocations in this ledger were made over, so allocations
+     * can be given per operation.
+     */
+    public void setOperations(long operations) {
+        this.operations = operations;
+        records().forEach(r -> r.operations = operations);
+    }
+
+    public long operations() {
+        return operations;
+    }
+
+    public long heapRegionSize() {
+        return heapRegionSize;
+    }
+
+    /**
+     * Set the size of the regions of the G1 heap the allocations in this ledger are made on, so allocations can
+     * be classified by how G1 places them, see {@link AllocationClasses}.
+     */
+    public void setHeapRegionSize(long heapRegionSize) {
+        this.heapRegionSize = heapRegionSize;
+        records().forEach(r -> r.heapRegionSize = heapRegionSize);
+    }
+
+    /** Allocations of all records, by how G1 places them; null unless given a heap region size. */
+    public AllocationClasses allocationClasses() {
+        if(heapRegionSize == 0) {
+            return null;
         }
-        record.increment(1, bytes);
+        // Records each go by their sizes or by which allocations were outside TLABs, so their classes are summed
+        AllocationClasses classes = new AllocationClasses(heapRegionSize);
+        records().forEach(r -> classes.add(r.getAllocationClasses()));
+        return classes;
     }
 
     public AllocationLedger filter(Predicate<Record> include)
     {
-        return new AllocationLedger(records().filter(include));
+        AllocationLedger ledger = new AllocationLedger(records().filter(include));
+        ledger.setOperations(operations);
+        ledger.setHeapRegionSize(heapRegionSize);
+        return ledger;
     }
 
     public Stream<Record> records() {
@@ -141,36 +456,237 @@ public class AllocationLedger
         return records().mapToLong(Record::getTotalBytes).sum();
     }
 
+    public long totalAllocs() {
+        return records().mapToLong(Record::getObjectsAllocated).sum();
+    }
+
+    public double bytesPerOp() {
+        return totalBytes() / (double) operations;
+    }
+
+    public double allocsPerOp() {
+        return totalAllocs() / (double) operations;
+    }
+
+    /** Variance of the total bytes; samples are independent, so this is the sum of the variances of all records. */
+    public double bytesVariance() {
+        return records().mapToDouble(Record::getBytesVariance).sum();
+    }
+
+    /** Half-width of the 95% confidence interval of bytes per operation; 0 if allocations were not sampled. */
+    public double bytesPerOpError() {
+        return Z_95 * Math.sqrt(bytesVariance()) / operations;
+    }
+
+    /**
+     * Bytes allocated by each analysis thread, by thread index, over all records; null if no record tells which
+     * threads allocated what. Threads after the last one that allocated anything are left out.
+     */
+    public long[] threadBytes() {
+        long[] bytes = null;
+        for (Map<List<String>, Record> stackTraces : records.values()) {
+            for (Record record : stackTraces.values()) {
+                long[] recordBytes = record.threadBytes;
+                if(recordBytes == null) {
+                    continue;
+                }
+                bytes = bytes == null ? new long[recordBytes.length] : Arrays.copyOf(bytes, Math.max(bytes.length, recordBytes.length));
+                for (int thread = 0; thread < recordBytes.length; thread++) {
+                    bytes[thread] += recordBytes[thread];
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Bytes allocated per time window, over all records; empty unless the sampler was asked to count them.
+     */
+    public AllocationRate rate() {
+        AllocationRate rate = new AllocationRate();
+        records().forEach(r -> rate.add(r.rate));
+        return rate;
+    }
+
+    /** Estimated bytes promoted to the old generation, over all records; 0 unless lifetimes were tracked. */
+    public double promotedBytes() {
+        return records().mapToDouble(r -> r.lifetimes.getPromotedBytes()).sum();
+    }
+
     public void write(Path path) throws IOException {
         write(path.toFile());
     }
 
+    public void write(Path path, Options.ReportFormat format) throws IOException {
+        write(path.toFile(), format);
+    }
+
     public void write(File path) throws IOException {
+        write(path, Options.ReportFormat.JSON);
+    }
+
+    /** Write the report, one record at a time, so writing it takes no more memory than the records themselves. */
+    public void write(File path, Options.ReportFormat format) throws IOException {
+        if(format == Options.ReportFormat.BINARY) {
+            try(OutputStream out = new BufferedOutputStream(new FileOutputStream(path))) {
+                BinaryReport.write(this, out, true);
+            }
+            return;
+        }
         ObjectMapper mapper = new ObjectMapper();
-        ObjectWriter writer = mapper.writer();
-        writer.writeValue(path, records()
-                .collect(toCollection(LinkedList::new)));
+        // Flushing the generator after each record would write the file in tiny pieces
+        mapper.configure(SerializationConfig.Feature.FLUSH_AFTER_WRITE_VALUE, false);
+        try(JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(path, JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            Iterator<Record> records = records().iterator();
+            while(records.hasNext()) {
+                mapper.writeValue(generator, records.next());
+            }
+            generator.writeEndArray();
+        }
     }
 
     public static AllocationLedger read(Path path) throws IOException {
         return read(path.toFile());
     }
 
+    /**
+     * Append this ledger to a report as a segment, one JSON object on a line of its own, holding allocations
+     * recorded since the previous segment. Reading the report merges its segments, so a report is readable
+     * after each segment, and holds all allocations recorded up to the last one.
+     *
+     * Each segment gives the operation count of this ledger as the running count of the report, the number of
+     * operations done up to when the segment was collected; so a report of a process that died before its last
+     * segment still gives allocations per operation over the segments it got to write.
+     *
+     * @param last whether this is the last segment, written once recording stopped
+     */
+    public void appendSegment(File path, boolean last) throws IOException {
+        appendSegment(path, last, Options.ReportFormat.JSON);
+    }
+
+    /**
+     * Append this ledger to a report as a segment, in the given format; all segments of a report must be in the
+     * same format.
+     */
+    public void appendSegment(File path, boolean last, Options.ReportFormat format) throws IOException {
+        byte[] segmentBytes;
+        if(format == Options.ReportFormat.BINARY) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            BinaryReport.write(this, bytes, last);
+            segmentBytes = bytes.toByteArray();
+        } else {
+            Map<String, Object> segment = new LinkedHashMap<>();
+            segment.put("operations", operations);
+            segment.put("records", records().collect(toList()));
+            byte[] line = new ObjectMapper().writer().writeValueAsBytes(segment);
+            segmentBytes = Arrays.copyOf(line, line.length + 1);
+            segmentBytes[line.length] = '\n';
+        }
+        try(OutputStream out = new FileOutputStream(path, true)) {
+            // One write per segment, so a segment is either all there or, if the process dies while writing it, cut short
+            out.write(segmentBytes);
+        }
+    }
+
+    /**
+     * Read a report, merging its segments if it was written a segment at a time. A last segment cut short,
+     * by the process writing it dying, is left out.
+     */
     public static AllocationLedger read(File file) throws IOException {
+        if(BinaryReport.isBinary(file)) {
+            return BinaryReport.read(file);
+        }
         ObjectMapper mapper = new ObjectMapper();
-        return read(mapper.readTree(file));
+        AllocationLedger ledger = new AllocationLedger();
+        long operations = 0;
+        boolean segmented = false;
+        try(JsonParser parser = mapper.getJsonFactory().createJsonParser(file)) {
+            while(parser.nextToken() != null) {
+                JsonNode value = mapper.readTree(parser);
+                segmented = value.isObject();
+                operations = Math.max(operations, ledger.add(value));
+            }
+        } catch (JsonParseException e) {
+            if(!segmented) {
+                throw e;
+            }
+        }
+        ledger.setOperations(operations == 0 ? 1 : operations);
+        return ledger;
     }
 
     public static AllocationLedger read(JsonNode value) {
-        Stream<JsonNode> allocations = stream(value.spliterator(), false);
-        return allocations.reduce(new AllocationLedger(), (l, allocation) -> {
+        AllocationLedger ledger = new AllocationLedger();
+        long operations = ledger.add(value);
+        ledger.setOperations(operations == 0 ? 1 : operations);
+        return ledger;
+    }
+
+    /**
+     * Add the allocations of a report, or report segment, to this ledger.
+     * @return the operation count the report gives, or 0 if it gives none
+     */
+    private long add(JsonNode value) {
+        if(value.isObject()) {
+            // Records of segments carry no meaningful operation count; the segment gives the running count
+            add(value.get("records"));
+            return value.has("operations") ? value.get("operations").asLong() : 0;
+        }
+        long operations = 0;
+        for (JsonNode allocation : value) {
             LinkedList<String> stack = new LinkedList<>();
             allocation.get("stackTrace").forEach(s -> stack.add(s.asText()));
-            l.record(
+            // Reports written by older versions don't have allocation or operation counts, nor sizes
+            long bytes = allocation.get("totalBytes").asLong();
+            long allocs = allocation.has("objectsAllocated") ? allocation.get("objectsAllocated").asLong() : 1;
+            Record record = record(
                     allocation.get("obj").asText(),
-                    allocation.get("totalBytes").asInt(),
+                    bytes,
+                    allocs,
+                    allocation.has("bytesVariance") ? allocation.get("bytesVariance").asDouble() : 0,
+                    allocation.has("sizes") ? readSizes(allocation.get("sizes")) : SizeHistogram.of(averageSize(bytes, allocs), allocs),
                     stack);
-            return l;
-        }, AllocationLedger::new);
+            if(allocation.has("rate")) {
+                record.rate.add(readRate(allocation.get("rate")));
+            }
+            if(allocation.has("lifetimes")) {
+                record.lifetimes.add(readLifetimes(allocation.get("lifetimes")));
+            }
+            if(allocation.has("outsideTlabSizes")) {
+                record.addOutsideTlab(readSizes(allocation.get("outsideTlabSizes")));
+            }
+            if(allocation.has("threadBytes")) {
+                record.addThreadBytes(readLongs(allocation.get("threadBytes")));
+            }
+            if(allocation.has("operations")) {
+                operations = allocation.get("operations").asLong();
+            }
+        }
+        return operations;
+    }
+
+    private static SizeHistogram readSizes(JsonNode sizes) {
+        // Reports written by older versions don't have totals per bucket
+        return new SizeHistogram(readLongs(sizes.get("counts")), readLongs(sizes.get("maxes")),
+                sizes.has("bytes") ? readLongs(sizes.get("bytes")) : null);
+    }
+
+    private static AllocationRate readRate(JsonNode rate) {
+        return new AllocationRate(rate.get("windowMillis").asLong(), rate.get("firstWindow").asLong(),
+                readLongs(rate.get("windowBytes")), rate.get("peakWindowBytes").asLong());
+    }
+
+    private static ObjectLifetimes readLifetimes(JsonNode lifetimes) {
+        return new ObjectLifetimes(readLongs(lifetimes.get("survivedCollections")), readSizes(lifetimes.get("millis")),
+                lifetimes.get("stillAlive").asLong(), lifetimes.get("promotedBytes").asDouble());
+    }
+
+    private static long[] readLongs(JsonNode array) {
+        long[] values = new long[array.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i).asLong();
+        }
+        return values;
     }
 }
@@ -0,0 +1,220 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AllocationLedger_Test {
+    @Test
+    public void shouldKeepCountsWhenWrittenAndReadBack() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 16, asList("a.B", "a.C"));
+        ledger.record("java/lang/Object", 16, asList("a.B", "a.C"));
+        ledger.record("[J", 1024, asList("a.B", "a.D"));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .getRate().add(new AllocationRate(100, 3, new long[]{0, 1024}, 0));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .getLifetimes().add(new ObjectLifetimes(new long[]{0, 2}, SizeHistogram.of(40, 2), 1, 2048));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .addOutsideTlab(SizeHistogram.of(1024, 1));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .addThreadBytes(new long[]{1000, 24});
+        ledger.setOperations(4);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        String json;
+        try {
+            ledger.write(path);
+            read = AllocationLedger.read(path);
+            json = new String(Files.readAllBytes(path), "UTF-8");
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(1056, read.totalBytes());
+        assertEquals(3, read.totalAllocs());
+        assertEquals(4, read.operations());
+        assertEquals(264.0, read.bytesPerOp(), 0.001);
+        assertEquals(0.75, read.allocsPerOp(), 0.001);
+        assertEquals(1024, read.records().mapToLong(r -> r.getSizes().getMax()).max().getAsLong());
+        assertEquals(3, read.records().mapToLong(r -> r.getSizes().getCount()).sum());
+        assertEquals(1056, read.records().flatMapToLong(r -> Arrays.stream(r.getSizes().getBytes())).sum());
+        assertEquals(100, read.rate().getWindowMillis());
+        assertEquals(4, read.rate().getFirstWindow());
+        assertEquals(10240.0, read.rate().getPeakBytesPerSecond(), 0.001);
+        // Only the record counted per window has a rate
+        assertEquals(1, json.split("\"rate\"", -1).length - 1);
+        assertEquals(2048, read.promotedBytes(), 0.001);
+        assertEquals(2, read.records().mapToLong(r -> r.getLifetimes().getSampled()).sum());
+        assertEquals(40, read.records().mapToLong(r -> r.getLifetimes().getMillis().getMax()).max().getAsLong());
+        assertEquals(1, read.records().filter(r -> r.getObj().equals("[J")).findFirst().get().getOutsideTlabSizes().getCount());
+        assertEquals(null, read.records().filter(r -> r.getObj().equals("java/lang/Object")).findFirst().get().getOutsideTlabSizes());
+        assertArrayEquals(new long[]{1000, 24}, read.threadBytes());
+        assertEquals(null, read.records().filter(r -> r.getObj().equals("java/lang/Object")).findFirst().get().getThreadBytes());
+    }
+
+    @Test
+    public void shouldMergeSegmentsWhenReadBack() throws Exception
+    {
+        // Given
+        AllocationLedger first = new AllocationLedger();
+        first.record("java/lang/Object", 16, asList("a.B"));
+        first.record("[J", 1024, asList("a.D"));
+        AllocationLedger second = new AllocationLedger();
+        second.record("java/lang/Object", 16, 2, asList("a.B"));
+        AllocationLedger last = new AllocationLedger();
+        last.setOperations(8);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        AllocationLedger cutShort;
+        try {
+            first.appendSegment(path.toFile(), false);
+            second.appendSegment(path.toFile(), false);
+            last.appendSegment(path.toFile(), true);
+            read = AllocationLedger.read(path);
+
+            // As if the process died while writing a segment
+            Files.write(path, "{\"records\":[{\"obj\":".getBytes("UTF-8"), StandardOpenOption.APPEND);
+            cutShort = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(2, read.records().count());
+        assertEquals(1056, read.totalBytes());
+        assertEquals(4, read.totalAllocs());
+        assertEquals(8, read.operations());
+        assertEquals(1056, cutShort.totalBytes());
+    }
+
+    @Test
+    public void shouldCopyRecordsRatherThanShareThem() throws Exception
+    {
+        // Given
+        AllocationLedger first = new AllocationLedger();
+        first.record("[J", 1024, 2, asList("a.D"));
+        AllocationLedger second = new AllocationLedger();
+        second.record("[J", 1024, 2, asList("a.D"));
+        second.record("java/lang/Object", 16, asList("a.B"));
+
+        // When
+        AllocationLedger copy = new AllocationLedger(first, second);
+        copy.setOperations(4);
+
+        // Then
+        assertEquals(2064, copy.totalBytes());
+        assertEquals(516, copy.bytesPerOp(), 0.001);
+        assertEquals(1024, first.totalBytes());
+        assertEquals(1024, first.bytesPerOp(), 0.001);
+        assertEquals(1, second.operations());
+    }
+
+    @Test
+    public void shouldGiveOperationsUpToTheLastSegmentWrittenBeforeDying() throws Exception
+    {
+        // Given segments collected after 3 and 5 operations, of a run that died before its last segment
+        AllocationLedger first = new AllocationLedger();
+        first.record("[J", 1024, 3, asList("a.D"));
+        first.setOperations(3);
+        AllocationLedger second = new AllocationLedger();
+        second.record("[J", 1024, 2, asList("a.D"));
+        second.setOperations(5);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        try {
+            first.appendSegment(path.toFile(), false);
+            second.appendSegment(path.toFile(), false);
+            read = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(5, read.operations());
+        assertEquals(1, read.allocsPerOp(), 0.001);
+    }
+
+    @Test
+    public void shouldNormalizeByOperationsAfterSubtractingAndFiltering() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 16, 10, asList("a.B"));
+        ledger.record("[J", 1024, 10, asList("a.D"));
+        ledger.setOperations(10);
+
+        AllocationLedger harness = new AllocationLedger();
+        harness.record("[J", 24, 1, asList("a.D"));
+
+        // When
+        AllocationLedger result = ledger
+                .subtract(harness)
+                .filter(r -> r.getObj().equals("[J"));
+
+        // Then
+        assertEquals(10, result.operations());
+        assertEquals(100.0, result.bytesPerOp(), 0.001);
+        assertEquals(0.9, result.allocsPerOp(), 0.001);
+    }
+
+    @Test
+    public void shouldSubtractBytesOfEachThread() throws Exception
+    {
+        // Given harness allocations counted per thread at one site, and of all threads together at another
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("[J", 1024, 2, asList("a.D")).addThreadBytes(new long[]{512, 512});
+        ledger.record("[I", 100, 2, asList("a.E")).addThreadBytes(new long[]{20, 80});
+        AllocationLedger harness = new AllocationLedger();
+        harness.record("[J", 48, 1, asList("a.D")).addThreadBytes(new long[]{16, 32});
+        harness.record("[I", 40, 1, asList("a.E"));
+
+        // When
+        AllocationLedger result = ledger.subtract(harness);
+
+        // Then those not known per thread are taken off each thread evenly
+        assertArrayEquals(new long[]{496, 540}, result.threadBytes());
+    }
+
+    @Test
+    public void shouldKeepLifetimesWhenSubtracting() throws Exception
+    {
+        // Given a site only known by lifetimes, and one whose allocations are all the harness'
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 0, 0, 0, new SizeHistogram(), asList("a.B"))
+                .getLifetimes().add(new ObjectLifetimes(new long[]{1}, SizeHistogram.of(5, 1), 0, 0));
+        ledger.record("[J", 24, 1, 0, SizeHistogram.of(24, 1), asList("a.D"))
+                .getLifetimes().add(new ObjectLifetimes(new long[]{0, 1}, SizeHistogram.of(7, 1), 0, 0));
+        ledger.record("[I", 24, 1, asList("a.E"));
+
+        AllocationLedger harness = new AllocationLedger();
+        harness.record("[J", 24, 1, asList("a.D"));
+        harness.record("[I", 24, 1, asList("a.E"));
+
+        // When
+        AllocationLedger result = ledger.subtract(harness);
+
+        // Then
+        assertEquals(0, result.totalBytes());
+        assertEquals(0, result.totalAllocs());
+        assertEquals(asList("[J", "java/lang/Object"), result.records().map(AllocationLedger.Record::getObj).sorted().collect(toList()));
+        assertEquals(2, result.records().mapToLong(r -> r.getLifetimes().getSampled()).sum());
+    }
+}
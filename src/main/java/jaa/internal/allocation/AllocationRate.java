@@ -0,0 +1,147 @@
+package jaa.internal.allocation;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bytes allocated per fixed time window, by the index of the window counting from when sampling started, so
+ * bursts of allocation show up rather than being averaged out over the whole run.
+ *
+ * Like a ring buffer, only the last {@link #WINDOWS} windows, up to the latest one with allocations, are kept;
+ * the largest of the windows let go of is still remembered, so the peak is over the whole run. When windows let
+ * go of separately are added up, like those of two threads or two sites, their sum isn't known, and the peak is a
+ * lower bound, see {@link #isPeakExact()}.
+ */
+public class AllocationRate
+{
+    /** Number of most recent windows kept. */
+    public static final int WINDOWS = 64;
+
+    // Guarded by this
+    private long windowMillis;
+    private final TreeMap<Long, Long> windowBytes = new TreeMap<>();
+    private long evictedPeak;
+    // Whether windows were let go of, and whether this holds windows of others added up since
+    private boolean evicted;
+    private boolean peakLowerBound;
+
+    public AllocationRate() {
+
+    }
+
+    /** @param windowMillis length of each window */
+    public AllocationRate(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /** Rate as given by the getters of another, like when read back from a report. */
+    public AllocationRate(long windowMillis, long firstWindow, long[] windowBytes, long peakWindowBytes) {
+        this(windowMillis);
+        long keptPeak = 0;
+        for (int i = 0; i < windowBytes.length; i++) {
+            add(firstWindow + i, windowBytes[i]);
+            keptPeak = Math.max(keptPeak, windowBytes[i]);
+        }
+        if(peakWindowBytes > keptPeak) {
+            addPeak(peakWindowBytes);
+        }
+    }
+
+    public synchronized void add(long window, long bytes) {
+        if(bytes == 0) {
+            return;
+        }
+        windowBytes.merge(window, bytes, Long::sum);
+        while(windowBytes.firstKey() <= windowBytes.lastKey() - WINDOWS) {
+            evictedPeak = Math.max(evictedPeak, windowBytes.pollFirstEntry().getValue());
+            evicted = true;
+        }
+    }
+
+    /** Remember a window let go of elsewhere, so it counts towards the peak. */
+    synchronized void addPeak(long windowBytes) {
+        evictedPeak = Math.max(evictedPeak, windowBytes);
+        evicted = true;
+    }
+
+    public void add(AllocationRate other) {
+        // Copied out of the other rate first, so no thread holds the locks of two rates
+        long otherWindowMillis;
+        Map<Long, Long> otherWindows;
+        long otherEvictedPeak;
+        boolean otherEvicted;
+        boolean otherPeakLowerBound;
+        synchronized (other) {
+            otherWindowMillis = other.windowMillis;
+            otherWindows = new TreeMap<>(other.windowBytes);
+            otherEvictedPeak = other.evictedPeak;
+            otherEvicted = other.evicted;
+            otherPeakLowerBound = other.peakLowerBound;
+        }
+        synchronized (this) {
+            if(windowMillis == 0) {
+                windowMillis = otherWindowMillis;
+            }
+            boolean bothHaveWindows = (evicted || !windowBytes.isEmpty()) && (otherEvicted || !otherWindows.isEmpty());
+            // Windows of one let go of can't be added to the same windows of the other any more
+            peakLowerBound |= otherPeakLowerBound || bothHaveWindows && (evicted || otherEvicted);
+            otherWindows.forEach(this::add);
+            if(otherEvicted) {
+                addPeak(otherEvictedPeak);
+            }
+        }
+    }
+
+    /** Length of each window, or 0 if allocations were not counted per window. */
+    public synchronized long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /** Index of the first window kept, counting from when sampling started. */
+    public synchronized long getFirstWindow() {
+        return windowBytes.isEmpty() ? 0 : windowBytes.firstKey();
+    }
+
+    /** Bytes allocated in each window kept, starting at the first. */
+    public synchronized long[] getWindowBytes() {
+        if(windowBytes.isEmpty()) {
+            return new long[0];
+        }
+        long first = windowBytes.firstKey();
+        long[] bytes = new long[(int) (windowBytes.lastKey() - first + 1)];
+        windowBytes.forEach((window, windowBytes) -> bytes[(int) (window - first)] = windowBytes);
+        return bytes;
+    }
+
+    /** Most bytes allocated in any one window. */
+    public synchronized long getPeakWindowBytes() {
+        long peak = evictedPeak;
+        for (long bytes : windowBytes.values()) {
+            peak = Math.max(peak, bytes);
+        }
+        return peak;
+    }
+
+    /**
+     * Whether the peak is the most allocated in any one window; if not, windows let go of were added up, and the
+     * peak is a lower bound.
+     */
+    public synchronized boolean isPeakExact() {
+        return !peakLowerBound;
+    }
+
+    /** Highest allocation rate over any one window, or 0 if allocations were not counted per window. */
+    public synchronized double getPeakBytesPerSecond() {
+        return windowMillis == 0 ? 0 : getPeakWindowBytes() * 1000.0 / windowMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AllocationRate{" +
+                "windowMillis=" + windowMillis +
+                ", windowBytes=" + windowBytes +
+                ", evictedPeak=" + evictedPeak +
+                ", peakLowerBound=" + peakLowerBound +
+                '}';
+    }
+}
@@ -0,0 +1,81 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AllocationRate_Test {
+    @Test
+    public void shouldAddUpWindowsOfTheSameTime() throws Exception
+    {
+        // Given two threads, one allocating steadily, and one in a burst
+        AllocationRate steady = new AllocationRate(100);
+        AllocationRate burst = new AllocationRate(100);
+        for (int window = 0; window < 4; window++) {
+            steady.add(window, 1000);
+        }
+        burst.add(2, 50_000);
+
+        // When
+        AllocationRate rate = new AllocationRate();
+        rate.add(steady);
+        rate.add(burst);
+
+        // Then
+        assertEquals(100, rate.getWindowMillis());
+        assertEquals(0, rate.getFirstWindow());
+        assertArrayEquals(new long[]{1000, 1000, 51_000, 1000}, rate.getWindowBytes());
+        assertEquals(51_000, rate.getPeakWindowBytes());
+        assertEquals(510_000.0, rate.getPeakBytesPerSecond(), 0.001);
+        assertTrue(rate.isPeakExact());
+    }
+
+    @Test
+    public void shouldKeepPeakOfWindowsLetGoOf() throws Exception
+    {
+        // Given a burst in the first window, followed by more windows than are kept
+        AllocationRate rate = new AllocationRate(10);
+        rate.add(0, 1 << 20);
+        for (int window = 1; window <= AllocationRate.WINDOWS; window++) {
+            rate.add(window, 16);
+        }
+
+        // Then
+        assertEquals(1, rate.getFirstWindow());
+        assertEquals(AllocationRate.WINDOWS, rate.getWindowBytes().length);
+        assertEquals(1 << 20, rate.getPeakWindowBytes());
+
+        // And the peak survives being read back from what the getters give
+        AllocationRate read = new AllocationRate(rate.getWindowMillis(), rate.getFirstWindow(),
+                rate.getWindowBytes(), rate.getPeakWindowBytes());
+        assertArrayEquals(rate.getWindowBytes(), read.getWindowBytes());
+        assertEquals(1 << 20, read.getPeakWindowBytes());
+    }
+
+    @Test
+    public void shouldTellPeakIsLowerBoundWhenAddingUpWindowsLetGoOf() throws Exception
+    {
+        // Given two sites, each with a burst in the first window that they have let go of since
+        AllocationRate first = new AllocationRate(10);
+        AllocationRate second = new AllocationRate(10);
+        for (AllocationRate site : new AllocationRate[]{first, second}) {
+            site.add(0, 1 << 20);
+            site.add(AllocationRate.WINDOWS, 16);
+        }
+
+        // When
+        AllocationRate one = new AllocationRate();
+        one.add(first);
+        AllocationRate both = new AllocationRate();
+        both.add(first);
+        both.add(second);
+
+        // Then the sum of the bursts is not known, only that it is at least either
+        assertTrue(one.isPeakExact());
+        assertFalse(both.isPeakExact());
+        assertEquals(1 << 20, both.getPeakWindowBytes());
+    }
+}
@@ -1,125 +1,378 @@
 package jaa.internal.allocation;
 
 import com.google.monitoring.runtime.instrumentation.Sampler;
-import sun.reflect.Reflection; // TODO this does not work on Java 9, need to put behind conditional import
+import jaa.Options;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
-/** Plugs into the google allocation tracker */
-public class AllocationSampler implements Sampler
+/**
+ * Plugs into the google allocation tracker.
+ *
+ * Stack frames are interned to ids and allocations counted in a {@link SiteTable}, which is turned into an
+ * {@link AllocationLedger} once sampling stops, so recording an allocation at a site seen before allocates
+ * nothing but what capturing its stack trace does. On Java 8, capturing classes of frames doesn't allocate,
+ * so neither does recording; the other captures do, see {@link FrameCapture#allocates()}.
+ *
+ * Each thread counts allocations in a table of its own, so threads allocating at the same site don't contend
+ * for the same counters. The tables are merged when sampling stops, each record keeping how many of its bytes
+ * each analysis thread allocated, see {@link AllocationLedger.Record#getThreadBytes()}. They can be kept off the heap, so that
+ * counting allocations at many sites doesn't change how the heap of the measured program behaves.
+ *
+ * Given a flush interval, the report is written a segment at a time while sampling, each segment holding the
+ * allocations counted since the previous one, which are then forgotten; so memory stays bounded, and a report
+ * of what was counted so far survives the process dying, see {@link AllocationLedger#appendSegment}. Segments are
+ * written outside the lock threads take when they first allocate, so they don't wait for the report to be written.
+ *
+ * Given a rate window, allocations are also counted per window of that length, numbered from when sampling
+ * started, so bursts of allocation show up in the report, see {@link AllocationRate}. A clock thread moves the
+ * window on, so allocating threads only read a volatile field to know which window they are in.
+ *
+ * Given a lifetime sampling interval, about one object per that many bytes allocated is tracked until it dies,
+ * to tell sites allocating short lived garbage apart from those feeding the old generation, see
+ * {@link LifetimeTracker}.
+ *
+ * Given a sampling interval, only about one allocation per that many bytes has its stack trace captured,
+ * and reported counts are estimates scaled up from the samples, see {@link ByteIntervalSampling}.
+ *
+ * How much detail is captured about stack frames is up to the {@link FrameCapture} used. Allocations
+ * instrumented by {@link AllocationSiteAgent} come with the id of their site, so when only the allocating
+ * frame is asked for, the stack isn't walked at all. That agent only instruments classes while sampling, so
+ * code run before and after doesn't pay for it.
+ */
+public class AllocationSampler implements Sampler, AllocationSites.Listener
 {
-    private static final String THIS_PACKAGE_NAME = AllocationSampler.class.getPackage().getName();
-    private static final String SAMPLER_PACKAGE_NAME = Sampler.class.getPackage().getName();
-
     private final AtomicBoolean profiling = new AtomicBoolean(false);
-    private final ThreadLocal<List<String>> stackTraceCache = ThreadLocal.withInitial(() -> new ArrayList<>(10));
+    private final FrameIds frames = new FrameIds();
+    private final FrameCapture frameCapture;
+    // Frame ids of allocation sites, by site id; 0 for sites not seen yet
+    private volatile int[] siteFrames = new int[1024];
 
     private final File output;
     private final int stackDepth;
+    private final long samplingInterval;
+    private final boolean offHeap;
+    private final long flushIntervalMillis;
+    private final long rateWindowMillis;
+    private final long lifetimeSamplingInterval;
+    private final Options.ReportFormat reportFormat;
+    private final String threadNamePrefix;
+
+    // States of all threads that sampled since sampling started; guarded by this
+    private final List<ThreadState> sampled = new ArrayList<>();
+    private volatile ThreadLocal<ThreadState> threadStates;
+    // Writes report segments while sampling, if flushing periodically; written while holding this
+    private volatile Flusher flusher;
+    // Operations done since sampling started, given with each segment
+    private volatile LongSupplier operations;
+    // Held while appending a segment, so segments go in the report in the order they were collected
+    private final ReentrantLock appending = new ReentrantLock();
+    // Window allocations are counted in, if counting allocations per window, moved on by the clock
+    private volatile int window;
+    private volatile WindowClock clock;
+    // Tracks lifetimes of sampled objects, if asked to; replaced each time sampling starts
+    private volatile LifetimeTracker lifetimes;
+
+    /** What each thread allocating while sampling keeps to itself. */
+    private static class ThreadState {
+        // Index of the analysis thread, or -1 for other threads
+        final int thread;
+        final SiteTable sites;
+        final ByteIntervalSampling sampling;
+        final ByteIntervalSampling lifetimeSampling;
 
-    private AllocationLedger ledger;
+        ThreadState(int thread, SiteTable sites, ByteIntervalSampling sampling, ByteIntervalSampling lifetimeSampling) {
+            this.thread = thread;
+            this.sites = sites;
+            this.sampling = sampling;
+            this.lifetimeSampling = lifetimeSampling;
+        }
+    }
 
     public AllocationSampler(File output, int stackDepth) {
+        this(output, stackDepth, 0, Options.FrameDetail.CLASSES, false, 0, 0, 0, Options.ReportFormat.JSON, null);
+    }
+
+    /**
+     * @param samplingInterval sample about one allocation per this many bytes allocated, or record every allocation if 0
+     * @param frameDetail what to record about each stack frame
+     * @param offHeap count allocations in tables off the heap, see {@link SiteTable}
+     * @param flushIntervalMillis write the report a segment this often while sampling, or all at once if 0
+     * @param rateWindowMillis count allocations per window of this length, or not at all if 0
+     * @param lifetimeSamplingInterval track the lifetime of about one object per this many bytes allocated, or none if 0
+     * @param reportFormat format to write the report in
+     * @param threadNamePrefix what names of analysis threads start with, followed by their index, to count bytes
+     *                         allocated per analysis thread; or null not to
+     */
+    public AllocationSampler(File output, int stackDepth, long samplingInterval, Options.FrameDetail frameDetail,
+                             boolean offHeap, long flushIntervalMillis, long rateWindowMillis,
+                             long lifetimeSamplingInterval, Options.ReportFormat reportFormat, String threadNamePrefix) {
         this.output = output;
         this.stackDepth = stackDepth;
+        this.samplingInterval = samplingInterval;
+        this.offHeap = offHeap;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.rateWindowMillis = rateWindowMillis;
+        this.lifetimeSamplingInterval = lifetimeSamplingInterval;
+        this.reportFormat = reportFormat;
+        this.threadNamePrefix = threadNamePrefix;
+        this.frameCapture = FrameCapture.of(frameDetail, frames);
     }
 
     public synchronized void start()
     {
-        ledger = new AllocationLedger();
+        start(() -> 1);
+    }
+
+    /**
+     * Start sampling.
+     * @param operations number of operations done since sampling started, read as each segment is written so the
+     *                   report tells allocations per operation even if the process dies before sampling stops
+     */
+    public synchronized void start(LongSupplier operations)
+    {
+        this.operations = operations;
+        sampled.clear();
+        threadStates = ThreadLocal.withInitial(this::newThreadState);
+        if(flushIntervalMillis > 0) {
+            try {
+                // Segments are appended, so start from an empty report
+                Files.deleteIfExists(output.toPath());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            flusher = new Flusher();
+            flusher.start();
+        }
+        window = 0;
+        if(rateWindowMillis > 0) {
+            clock = new WindowClock();
+            clock.start();
+        }
+        if(lifetimeSamplingInterval > 0) {
+            lifetimes = new LifetimeTracker();
+            lifetimes.start();
+        }
+        AllocationSiteAgent.instrument();
         profiling.set(true);
     }
 
+    private synchronized ThreadState newThreadState() {
+        ThreadState state = new ThreadState(
+                AllocationLedger.analysisThread(Thread.currentThread().getName(), threadNamePrefix),
+                new SiteTable(offHeap, rateWindowMillis),
+                samplingInterval == 0 ? null : new ByteIntervalSampling(samplingInterval, ThreadLocalRandom.current()),
+                lifetimeSamplingInterval == 0 ? null : new ByteIntervalSampling(lifetimeSamplingInterval, ThreadLocalRandom.current()));
+        sampled.add(state);
+        return state;
+    }
+
     public synchronized void stop() {
+        stop(1);
+    }
+
+    /**
+     * Stop sampling and write the report.
+     * @param operations number of operations performed while sampling, used to give allocations per operation
+     */
+    public synchronized void stop(long operations) {
         profiling.set(false);
+        AllocationSiteAgent.uninstrument();
+        if(clock != null) {
+            clock.interrupt();
+            clock = null;
+        }
+        if(lifetimes != null) {
+            lifetimes.stop();
+        }
+        Flusher flusher = this.flusher;
+        this.flusher = null;
+        AllocationLedger ledger = collect(false);
+        ledger.setOperations(operations);
+        appending.lock();
         try {
-            ledger.write(output);
+            if(flusher != null) {
+                flusher.interrupt();
+                ledger.appendSegment(output, true, reportFormat);
+            } else {
+                ledger.write(output, reportFormat);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            appending.unlock();
         }
     }
 
-    @Override
-    public void sampleAllocation(int count, String desc, Object newObj, long size)
-    {
-        if(!profiling.get())
-        {
-            return;
+    private void flush(Flusher caller) throws IOException {
+        AllocationLedger segment;
+        synchronized (this) {
+            // Sampling may have stopped, and written the last segment, while the flusher waited for the lock
+            if(flusher != caller) {
+                return;
+            }
+            segment = collect(true);
+            segment.setOperations(Math.max(1, operations.getAsLong()));
+            // Taken before letting go of this, so the last segment can't be appended before this one
+            appending.lock();
+        }
+        try {
+            segment.appendSegment(output, false, reportFormat);
+        } finally {
+            appending.unlock();
         }
-
-        List<String> stackTrace = stackTraceCache.get();
-        fastStackTrace(stackTrace, 0, stackDepth);
-
-        ledger.record(desc, size, stackTrace);
     }
 
-    private void fastStackTrace(List<String> out, int startAtDepth, int depth)
-    {
-        out.clear();
-        int outStackIndex = 0;
-        int realStackIndex = startAtDepth + 1;
-        String currentFrame;
-        for (; outStackIndex < startAtDepth + depth; outStackIndex++)
-        {
-            while(true) {
-                Class<?> callerClass = Reflection.getCallerClass(realStackIndex++);
-                if(callerClass == null)
-                {
-                    // end of trace
-                    for (; outStackIndex < startAtDepth + depth; outStackIndex++) {
-                        out.add("");
-                    }
-                    return;
+    /** @param clear forget the collected allocations, so the next collection only has allocations made after */
+    private synchronized AllocationLedger collect(boolean clear) {
+        AllocationLedger ledger = new AllocationLedger();
+        double dropped = 0;
+        for (ThreadState state : sampled) {
+            SiteTable table = state.sites;
+            // Threads may still be recording the allocation they were at when sampling stopped
+            synchronized (table) {
+                dropped += table.droppedAllocs();
+                table.addTo(ledger, frames, stackDepth, state.thread);
+                if(clear) {
+                    table.clearSites();
                 }
+            }
+        }
+        if(lifetimes != null) {
+            lifetimes.addTo(ledger, frames, stackDepth, clear);
+        }
+        if(dropped > 0) {
+            System.err.printf("jaa: ran out of room for allocation sites; %.0f allocations at sites seen after " +
+                    "are counted under %s%n", dropped, SiteTable.DROPPED_SITES);
+        }
+        return ledger;
+    }
 
-                // Skip instrumentation
-                if(callerClass == AllocationSampler.class || callerClass == AllocationLedger.class ||
-                    callerClass.getName().startsWith(THIS_PACKAGE_NAME) ||
-                   callerClass.getName().startsWith(SAMPLER_PACKAGE_NAME))
-                {
-                    continue;
-                }
+    /** Writes a report segment every flush interval, until sampling stops and writes the last one. */
+    private class Flusher extends SamplerThread {
+        Flusher() {
+            super("jaa.AllocationFlusher");
+        }
 
-                currentFrame = callerClass.getName();
-                break;
+        @Override
+        public void run() {
+            try {
+                while(!isInterrupted()) {
+                    Thread.sleep(flushIntervalMillis);
+                    flush(this);
+                }
+            } catch (InterruptedException e) {
+                // Sampling stopped
+            } catch (IOException e) {
+                // Allocations not flushed stay counted, and go in the last segment
+                System.err.printf("jaa: could not flush allocations to %s: %s%n", output, e);
             }
+        }
+    }
+
+    /** Moves the window allocations are counted in on at the end of each window, until sampling stops. */
+    private class WindowClock extends SamplerThread {
+        WindowClock() {
+            super("jaa.AllocationWindowClock");
+        }
 
-            out.add(currentFrame);
+        @Override
+        public void run() {
+            long windowNanos = TimeUnit.MILLISECONDS.toNanos(rateWindowMillis);
+            long start = System.nanoTime();
+            try {
+                while(!isInterrupted()) {
+                    // Windows are measured from the start, so time spent waking up doesn't add up into drift
+                    long elapsed = System.nanoTime() - start;
+                    window = (int) (elapsed / windowNanos);
+                    TimeUnit.NANOSECONDS.sleep(windowNanos - elapsed % windowNanos);
+                }
+            } catch (InterruptedException e) {
+                // Sampling stopped
+            }
         }
     }
 
-    private void detailedStackTrace(String[] out, int startAtDepth)
+    @Override
+    public void sampleAllocation(int count, String desc, Object newObj, long size)
     {
-        StackTraceElement[] source = Thread.currentThread().getStackTrace();
-
-        for (int outIndex = 1, srcIndex=startAtDepth; outIndex < out.length; outIndex++) {
-            while(true) {
-                if(srcIndex >= source.length)
-                {
-                    // end of trace
-                    for (; outIndex < out.length; outIndex++) {
-                        out[outIndex] = "";
-                    }
-                    return;
-                }
+        sample(desc, newObj, size, -1);
+    }
 
-                StackTraceElement element = source[srcIndex];
-                srcIndex++;
+    @Override
+    public void sampleSite(int site, String desc, Object newObj, long size)
+    {
+        sample(desc, newObj, size, site);
+    }
 
-                // Skip instrumentation
-                if(element.getClassName().startsWith(THIS_PACKAGE_NAME) ||
-                   element.getClassName().startsWith(SAMPLER_PACKAGE_NAME))
-                {
-                    continue;
-                }
+    /** @param site id of the allocation site, or -1 if not known */
+    private void sample(String desc, Object newObj, long size, int site)
+    {
+        if(!profiling.get())
+        {
+            return;
+        }
+        if(Thread.currentThread() instanceof SamplerThread) {
+            return;
+        }
+
+        ThreadState thread = threadStates.get();
+        SiteTable sites = thread.sites;
+        ByteIntervalSampling sampling = thread.sampling;
+        ByteIntervalSampling lifetimeSampling = thread.lifetimeSampling;
+        // Decided apart, so objects tracked are a sample of all allocations rather than of those sampled
+        boolean sampled = sampling == null || sampling.sample(size);
+        boolean tracked = lifetimeSampling != null && lifetimeSampling.sample(size);
+        if(!sampled && !tracked) {
+            return;
+        }
 
-                out[outIndex] = String.format("%s#%s L%d", element.getClassName(), element.getMethodName(), element.getLineNumber());
-                break;
+        // Looked up before locking the table, since stop() locks tables while holding the lock new site frames take
+        int siteFrame = site >= 0 && stackDepth == 1 ? siteFrame(site) : 0;
+
+        int window = this.window;
+        int node;
+        // Only ever contended when sampling stops, so this lock is close to free
+        synchronized (sites) {
+            node = siteFrame != 0
+                    ? sites.child(SiteTable.ROOT, siteFrame)
+                    : frameCapture.capture(sites, stackDepth);
+            if(sampled && sampling == null) {
+                sites.record(desc, node, size, 1, 0, window);
+            } else if(sampled) {
+                double weight = sampling.weight(size);
+                sites.record(desc, node, size * weight, weight, sampling.bytesVariance(size), window);
             }
         }
+        if(tracked && node != SiteTable.DROPPED) {
+            lifetimes.track(newObj, sites, node, desc, size * lifetimeSampling.weight(size));
+        }
+    }
+
+    private int siteFrame(int site) {
+        int[] siteFrames = this.siteFrames;
+        if(site < siteFrames.length && siteFrames[site] != 0) {
+            return siteFrames[site];
+        }
+        return registerSiteFrame(site);
+    }
+
+    private synchronized int registerSiteFrame(int site) {
+        if(site >= siteFrames.length) {
+            siteFrames = Arrays.copyOf(siteFrames, Math.max(site + 1, siteFrames.length * 2));
+        }
+        if(siteFrames[site] == 0) {
+            siteFrames[site] = frames.register(AllocationSites.frame(site));
+        }
+        return siteFrames[site];
     }
 }
@@ -0,0 +1,138 @@
+package jaa.internal.allocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * JAA's own allocation instrumentation agent, as an alternative to the google allocation instrumenter. Only
+ * the classes in the packages it is told to instrument are rewritten, see {@link AllocationSiteTransformer},
+ * so the JDK and libraries of no interest run at full speed; and since each allocation site has a static id,
+ * allocations can be attributed to their site without walking the stack.
+ *
+ * Classes are only instrumented between {@link #instrument()} and {@link #uninstrument()}, which retransform
+ * them; before and after, setup, warmup and teardown run, and get compiled, exactly as without the agent.
+ *
+ * The agent jar only holds a manifest and the agent configuration; the agent classes themselves are loaded
+ * from the class path, which must have JAA on it.
+ */
+public class AllocationSiteAgent
+{
+    private static final String CONFIGURATION = "META-INF/jaa-agent.properties";
+    private static final String INCLUDE = "include";
+    private static final String EXCLUDE = "exclude";
+
+    // The harness and the instrumentation itself are never instrumented
+    private static final List<String> HARNESS_PACKAGES = Arrays.asList(
+            "jaa.internal", "org.objectweb.asm", "com.google.monitoring", "org.codehaus.jackson");
+
+    private static volatile Instrumentation instrumentation;
+    private static volatile AllocationSiteTransformer transformer;
+
+    public static void premain(String args, Instrumentation instrumentation) throws IOException {
+        Properties configuration = new Properties();
+        try(InputStream in = ClassLoader.getSystemResourceAsStream(CONFIGURATION)) {
+            if(in != null) {
+                configuration.load(in);
+            }
+        }
+        List<String> excludes = new ArrayList<>(HARNESS_PACKAGES);
+        excludes.addAll(patterns(configuration.getProperty(EXCLUDE)));
+        PackageScope scope = new PackageScope(patterns(configuration.getProperty(INCLUDE)), excludes);
+
+        AllocationSiteAgent.instrumentation = instrumentation;
+        AllocationSiteAgent.transformer = new AllocationSiteTransformer(scope);
+        AllocationSites.setInstrumentation(instrumentation);
+        instrumentation.addTransformer(transformer, true);
+    }
+
+    /** Instrument the classes in scope, those loaded and those yet to load. Does nothing unless the agent runs. */
+    static void instrument() {
+        retransform(true);
+    }
+
+    /** Give the classes in scope their original code back. Does nothing unless the agent runs. */
+    static void uninstrument() {
+        retransform(false);
+    }
+
+    private static synchronized void retransform(boolean enabled) {
+        AllocationSiteTransformer transformer = AllocationSiteAgent.transformer;
+        if(transformer == null) {
+            return;
+        }
+        transformer.setEnabled(enabled);
+        for (Class<?> cls : instrumentation.getAllLoadedClasses()) {
+            if(!transformer.includes(cls) || !instrumentation.isModifiableClass(cls)) {
+                continue;
+            }
+            // One at a time, since one class failing fails all classes retransformed with it
+            try {
+                instrumentation.retransformClasses(cls);
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                System.err.printf("jaa: could not retransform %s: %s%n", cls.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Write an agent jar that instruments the given packages, sans the excluded ones. Jars written with
+     * the same packages are identical, so they fingerprint the same.
+     *
+     * @param includes packages to instrument, or none to instrument all but the JDK and the excluded ones
+     * @param excludes packages not to instrument
+     */
+    public static Path jar(Collection<String> includes, Collection<String> excludes) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(new Attributes.Name("Premain-Class"), AllocationSiteAgent.class.getName());
+        manifest.getMainAttributes().put(new Attributes.Name("Can-Retransform-Classes"), "true");
+
+        Path jar = Files.createTempFile("jaa-agent", ".jar");
+        jar.toFile().deleteOnExit();
+        try(OutputStream out = Files.newOutputStream(jar); JarOutputStream jarOut = new JarOutputStream(out)) {
+            jarOut.putNextEntry(entry(JarFile.MANIFEST_NAME));
+            manifest.write(jarOut);
+            jarOut.closeEntry();
+
+            jarOut.putNextEntry(entry(CONFIGURATION));
+            jarOut.write(String.format("%s=%s\n%s=%s\n",
+                    INCLUDE, String.join(",", includes),
+                    EXCLUDE, String.join(",", excludes)).getBytes("UTF-8"));
+            jarOut.closeEntry();
+        }
+        return jar;
+    }
+
+    private static JarEntry entry(String name) {
+        JarEntry entry = new JarEntry(name);
+        entry.setTime(0);
+        return entry;
+    }
+
+    private static List<String> patterns(String list) {
+        List<String> patterns = new ArrayList<>();
+        if(list != null) {
+            for (String pattern : list.split(",")) {
+                if(!pattern.trim().isEmpty()) {
+                    patterns.add(pattern.trim());
+                }
+            }
+        }
+        return patterns;
+    }
+}
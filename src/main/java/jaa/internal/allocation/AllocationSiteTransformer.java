@@ -0,0 +1,265 @@
+package jaa.internal.allocation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Instruments each allocation in the classes in scope with a call to {@link AllocationSites#recordAllocation},
+ * passing the allocated object and the id the allocation site is registered with as the class is transformed.
+ *
+ * Arrays are recorded right after they are allocated. Objects can't be passed anywhere until their constructor
+ * has run, so they are recorded right after the constructor call matching their new instruction; which only
+ * works for the new, dup, ..., invokespecial &lt;init&gt; sequence compilers emit, others are left alone.
+ *
+ * Classes are only instrumented while enabled; retransformed while disabled, they get their original code back.
+ * Each class is instrumented once, and instrumented again with the same code, so its sites keep their ids.
+ */
+class AllocationSiteTransformer implements ClassFileTransformer
+{
+    private static final String SITES = Type.getInternalName(AllocationSites.class);
+    private static final ClassLoader SITES_LOADER = AllocationSites.class.getClassLoader();
+
+    private final PackageScope scope;
+    // Instrumented class files by class name, by class loader; guarded by this
+    private final Map<ClassLoader, Map<String, byte[]>> instrumented = new WeakHashMap<>();
+    private volatile boolean enabled;
+
+    AllocationSiteTransformer(PackageScope scope) {
+        this.scope = scope;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Whether the given class would be instrumented, were it transformed while enabled. */
+    boolean includes(Class<?> cls) {
+        return seesSites(cls.getClassLoader()) && !cls.isArray() && scope.includes(cls.getName().replace('.', '/'));
+    }
+
+    /**
+     * Whether classes of the given loader resolve the hook to {@link AllocationSites} of this agent; code
+     * instrumented in others would fail with NoClassDefFoundError. Loaders delegate to their parents first, so
+     * these are the loader of the hook, the system class loader, and its descendants. The bootstrap loader, and
+     * the extension or platform loader above the system loader, can't see it, so the JDK is never instrumented.
+     */
+    static boolean seesSites(ClassLoader loader) {
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if(l == SITES_LOADER) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if(!enabled || className == null || !scope.includes(className) || !seesSites(loader)) {
+            return null;
+        }
+        try {
+            return instrumented(loader, className, classfileBuffer);
+        } catch (RuntimeException e) {
+            // Better to not instrument a class than to have it fail to load
+            System.err.printf("jaa: not instrumenting %s: %s%n", className, e);
+            return null;
+        }
+    }
+
+    private synchronized byte[] instrumented(ClassLoader loader, String className, byte[] classfile) {
+        return instrumented.computeIfAbsent(loader, l -> new HashMap<>())
+                .computeIfAbsent(className, c -> instrument(classfile));
+    }
+
+    static byte[] instrument(byte[] classfile) {
+        ClassReader reader = new ClassReader(classfile);
+        // No branches are added, so stack map frames stay valid
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            private String className;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                className = name.replace('/', '.');
+                super.visit(version, access, name, signature, superName, interfaces);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new SiteVisitor(super.visitMethod(access, name, descriptor, signature, exceptions), className, name);
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static class PendingObject {
+        final String type;
+        boolean duplicated;
+
+        PendingObject(String type) {
+            this.type = type;
+        }
+    }
+
+    private static class SiteVisitor extends MethodVisitor {
+        private final String className;
+        private final String methodName;
+        private final Deque<PendingObject> pending = new ArrayDeque<>();
+        private boolean afterNew;
+        private int line = -1;
+
+        SiteVisitor(MethodVisitor target, String className, String methodName) {
+            super(Opcodes.ASM9, target);
+            this.className = className;
+            this.methodName = methodName;
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            this.line = line;
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            afterNew = false;
+            super.visitTypeInsn(opcode, type);
+            if(opcode == Opcodes.NEW) {
+                pending.push(new PendingObject(type));
+                afterNew = true;
+            } else if(opcode == Opcodes.ANEWARRAY) {
+                recordAllocation(elementDescription(Type.getObjectType(type)));
+            }
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            if(opcode == Opcodes.DUP && afterNew) {
+                pending.peek().duplicated = true;
+            }
+            afterNew = false;
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            afterNew = false;
+            super.visitIntInsn(opcode, operand);
+            if(opcode == Opcodes.NEWARRAY) {
+                recordAllocation(primitiveName(operand));
+            }
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            afterNew = false;
+            super.visitMultiANewArrayInsn(descriptor, numDimensions);
+            recordAllocation(elementDescription(Type.getType(descriptor)));
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            afterNew = false;
+            super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            // Constructors calling super or this constructors have no new instruction on the pending stack
+            if(opcode == Opcodes.INVOKESPECIAL && name.equals("<init>")
+                    && !pending.isEmpty() && pending.peek().type.equals(owner)) {
+                PendingObject object = pending.pop();
+                if(object.duplicated) {
+                    recordAllocation(object.type);
+                }
+            }
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            afterNew = false;
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            afterNew = false;
+            super.visitFieldInsn(opcode, owner, name, descriptor);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+            afterNew = false;
+            super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            afterNew = false;
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            afterNew = false;
+            super.visitLdcInsn(value);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            afterNew = false;
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            afterNew = false;
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            afterNew = false;
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        /** With the allocated object on top of the stack, pass it to the hook along with the id of this site. */
+        private void recordAllocation(String objectDescription) {
+            int site = AllocationSites.register(String.format("%s#%s L%d", className, methodName, line), objectDescription);
+            super.visitInsn(Opcodes.DUP);
+            super.visitLdcInsn(site);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, SITES, "recordAllocation", "(Ljava/lang/Object;I)V", false);
+        }
+    }
+
+    /** Arrays are described by their element type, like the allocation instrumenter does. */
+    private static String elementDescription(Type type) {
+        Type element = type.getSort() == Type.ARRAY ? type.getElementType() : type;
+        return element.getSort() == Type.OBJECT ? element.getInternalName() : element.getClassName();
+    }
+
+    private static String primitiveName(int arrayType) {
+        switch(arrayType) {
+            case Opcodes.T_BOOLEAN: return "boolean";
+            case Opcodes.T_BYTE: return "byte";
+            case Opcodes.T_CHAR: return "char";
+            case Opcodes.T_SHORT: return "short";
+            case Opcodes.T_INT: return "int";
+            case Opcodes.T_LONG: return "long";
+            case Opcodes.T_FLOAT: return "float";
+            case Opcodes.T_DOUBLE: return "double";
+            default: throw new IllegalArgumentException("Unknown array type " + arrayType);
+        }
+    }
+}
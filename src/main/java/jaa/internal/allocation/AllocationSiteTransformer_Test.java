@@ -0,0 +1,120 @@
+package jaa.internal.allocation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AllocationSiteTransformer_Test
+{
+    public static class Allocating implements Runnable {
+        public static Object sink;
+
+        @Override
+        public void run() {
+            sink = new ArrayList<>(new ArrayList<>());
+            sink = new int[3];
+            sink = new String[2][2];
+        }
+    }
+
+    @After
+    public void tearDown() {
+        AllocationSites.setListener(null);
+    }
+
+    @Test
+    public void shouldRecordEachAllocationWithItsSite() throws Exception
+    {
+        // Given
+        Runnable allocating = instrumented(Allocating.class);
+        List<String> recorded = new ArrayList<>();
+        AllocationSites.setListener((site, desc, newObj, size) -> recorded.add(desc + " at " + AllocationSites.frame(site)));
+
+        // When
+        allocating.run();
+
+        // Then
+        String at = " at " + Allocating.class.getName() + "#run L";
+        assertEquals(4, recorded.size());
+        // The inner list is constructed first
+        assertTrue(recorded.get(0).startsWith("java/util/ArrayList" + at));
+        assertTrue(recorded.get(1).startsWith("java/util/ArrayList" + at));
+        assertTrue(recorded.get(2).startsWith("int" + at));
+        assertTrue(recorded.get(3).startsWith("java/lang/String" + at));
+    }
+
+    @Test
+    public void shouldOnlyInstrumentWhileEnabled() throws Exception
+    {
+        // Given
+        AllocationSiteTransformer transformer = new AllocationSiteTransformer(
+                new PackageScope(singletonList("jaa.internal.allocation"), emptyList()));
+        ClassLoader loader = getClass().getClassLoader();
+        String className = Allocating.class.getName().replace('.', '/');
+        byte[] classfile = classfile(Allocating.class);
+
+        // Then
+        assertNull(transformer.transform(loader, className, null, null, classfile));
+        transformer.setEnabled(true);
+        byte[] instrumented = transformer.transform(loader, className, null, null, classfile);
+        // Instrumented again with the same code, so sites keep their ids
+        assertSame(instrumented, transformer.transform(loader, className, Allocating.class, null, classfile));
+        assertNull(transformer.transform(null, "java/lang/Object", null, null, classfile));
+        // Loaders that can't see the hook, like the extension or platform loader, and one of no relation
+        assertNull(transformer.transform(ClassLoader.getSystemClassLoader().getParent(), className, null, null, classfile));
+        assertNull(transformer.transform(new URLClassLoader(new URL[0], null), className, null, null, classfile));
+        transformer.setEnabled(false);
+        assertNull(transformer.transform(loader, className, Allocating.class, null, classfile));
+        assertTrue(transformer.includes(Allocating.class));
+        assertFalse(transformer.includes(Object.class));
+    }
+
+    @Test
+    public void shouldScopeInstrumentationByPackage() throws Exception
+    {
+        PackageScope scope = new PackageScope(singletonList("com.example.*"), asList("com.example.generated"));
+
+        assertTrue(scope.includes("com/example/Foo"));
+        assertTrue(scope.includes("com/example/sub/Foo"));
+        assertFalse(scope.includes("com/examples/Foo"));
+        assertFalse(scope.includes("com/example/generated/Foo"));
+        assertFalse(scope.includes("java/lang/Object"));
+        assertTrue(new PackageScope(emptyList(), emptyList()).includes("java/lang/Object"));
+    }
+
+    private static Runnable instrumented(Class<? extends Runnable> cls) throws Exception {
+        byte[] instrumented = AllocationSiteTransformer.instrument(classfile(cls));
+        Class<?> loaded = new ClassLoader(cls.getClassLoader()) {
+            Class<?> define() {
+                return defineClass(cls.getName(), instrumented, 0, instrumented.length);
+            }
+        }.define();
+        return (Runnable) loaded.newInstance();
+    }
+
+    private static byte[] classfile(Class<?> cls) throws Exception {
+        ByteArrayOutputStream classfile = new ByteArrayOutputStream();
+        try(InputStream in = cls.getResourceAsStream(cls.getName().substring(cls.getName().lastIndexOf('.') + 1) + ".class")) {
+            byte[] buffer = new byte[4096];
+            for(int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                classfile.write(buffer, 0, read);
+            }
+        }
+        return classfile.toByteArray();
+    }
+}
@@ -0,0 +1,65 @@
+package jaa.internal.allocation;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+
+/**
+ * Allocation sites found by {@link AllocationSiteAgent}, by the static id each site is given when the class
+ * it is in gets instrumented; and the hook instrumented code calls with each allocation it makes.
+ */
+public class AllocationSites
+{
+    /** Gets told about each allocation instrumented code makes. */
+    public interface Listener {
+        /**
+         * @param site id of the allocation site, see {@link #frame(int)}
+         * @param desc what was allocated, in the format of the allocation instrumenter
+         * @param size size of the allocated object, or 0 when the agent is not running
+         */
+        void sampleSite(int site, String desc, Object newObj, long size);
+    }
+
+    private static volatile Instrumentation instrumentation;
+    private static volatile Listener listener;
+
+    // Site ids index these; guarded by the class for writes
+    private static volatile String[] frames = new String[1024];
+    private static volatile String[] objects = new String[1024];
+    private static int count;
+
+    /** Called by instrumented code right after each allocation. */
+    public static void recordAllocation(Object newObj, int site) {
+        Listener listener = AllocationSites.listener;
+        if(listener == null) {
+            return;
+        }
+        Instrumentation instrumentation = AllocationSites.instrumentation;
+        listener.sampleSite(site, objects[site], newObj,
+                instrumentation == null ? 0 : instrumentation.getObjectSize(newObj));
+    }
+
+    public static void setListener(Listener listener) {
+        AllocationSites.listener = listener;
+    }
+
+    /** Stack frame of an allocation site, like class#method L&lt;line&gt;. */
+    public static String frame(int site) {
+        return frames[site];
+    }
+
+    static void setInstrumentation(Instrumentation instrumentation) {
+        AllocationSites.instrumentation = instrumentation;
+    }
+
+    /** @return the id of a new allocation site */
+    static synchronized int register(String frame, String objectDescription) {
+        if(count == frames.length) {
+            objects = Arrays.copyOf(objects, count * 2);
+            frames = Arrays.copyOf(frames, count * 2);
+        }
+        // Object first, so a site whose frame is visible has its object visible as well
+        objects[count] = objectDescription;
+        frames[count] = frame;
+        return count++;
+    }
+}
@@ -0,0 +1,574 @@
+package jaa.internal.allocation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of reports, for runs whose JSON reports would run into gigabytes, mostly by repeating the
+ * same frames in every stack trace.
+ *
+ * A report is one or more segments, each of which starts with a header and ends with an end marker, so segments
+ * can be appended like JSON segments are, see {@link AllocationLedger#appendSegment}. Within a segment, each
+ * string is written once, the first time a record refers to it, and referred to by its index from then on; counts
+ * are written as variable length integers, taking one byte for small values. Segments don't share strings, so
+ * each can be read on its own.
+ *
+ * Reports are read with a {@link Reader}, which maps the file into memory rather than reading it onto the heap,
+ * and decodes one record at a time, so summarizing a report needs memory for its strings, but not its records.
+ */
+public class BinaryReport
+{
+    private static final byte[] MAGIC = {'J', 'A', 'A', 'B'};
+    /**
+     * Version 2 added the sizes of allocations outside TLABs to records, and left out rates of records not counted
+     * per window; version 3 added bytes per analysis thread. Reports of earlier versions are still read.
+     */
+    private static final int VERSION = 3;
+    /** Flag of the last segment, written once recording stopped. */
+    private static final int LAST = 1;
+    private static final int RECORD = 1, END = 0;
+
+    /** Whether the file is a binary report, rather than a JSON one. */
+    public static boolean isBinary(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try(InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            for (int n = 0; read < magic.length && n >= 0; read += n) {
+                n = in.read(magic, read, magic.length - read);
+            }
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /**
+     * Write a ledger as a segment of a report. Bytes are written one at a time, so the stream should be buffered.
+     * The operation count of the ledger goes in the header, and is taken to be the running count of the report.
+     * @param last whether this is the last segment
+     */
+    static void write(AllocationLedger ledger, OutputStream out, boolean last) throws IOException {
+        Writer writer = new Writer(out);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(last ? LAST : 0);
+        writer.writeLong(ledger.operations());
+        writer.writeLong(ledger.heapRegionSize());
+        Iterator<AllocationLedger.Record> records = ledger.records().iterator();
+        while(records.hasNext()) {
+            out.write(RECORD);
+            writer.writeRecord(records.next());
+        }
+        out.write(END);
+    }
+
+    /**
+     * Read a report, merging its segments. Like for JSON reports, a last segment cut short, by the process
+     * writing it dying, is left out; a report is only unreadable if not even its first segment is whole.
+     */
+    static AllocationLedger read(File file) throws IOException {
+        AllocationLedger ledger = new AllocationLedger();
+        try(Reader reader = new Reader(file)) {
+            // Records are added once the end marker of their segment has been read
+            List<AllocationLedger.Record> segment = new ArrayList<>();
+            int added = 0;
+            while(reader.next()) {
+                if(reader.wholeSegments() > added) {
+                    segment.forEach(ledger::add);
+                    segment.clear();
+                    added = reader.wholeSegments();
+                }
+                segment.add(reader.record());
+            }
+            if(reader.wholeSegments() > added) {
+                segment.forEach(ledger::add);
+            }
+            ledger.setOperations(reader.operations() == 0 ? 1 : reader.operations());
+            ledger.setHeapRegionSize(reader.heapRegionSize());
+        }
+        return ledger;
+    }
+
+    /** Writes records of a segment, numbering strings as they first come up. */
+    private static class Writer {
+        private final OutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeRecord(AllocationLedger.Record record) throws IOException {
+            writeString(record.getObj());
+            writeLong(record.getTotalBytes());
+            writeLong(record.getObjectsAllocated());
+            writeDouble(record.getBytesVariance());
+            List<String> stackTrace = record.getStackTrace();
+            writeLong(stackTrace.size());
+            for (String frame : stackTrace) {
+                writeString(frame);
+            }
+            writeSizes(record.getSizes());
+
+            AllocationRate rate = record.getRate();
+            writeLong(rate.getWindowMillis());
+            if(rate.getWindowMillis() != 0) {
+                writeLong(rate.getFirstWindow());
+                writeLongs(rate.getWindowBytes());
+                writeLong(rate.getPeakWindowBytes());
+            }
+
+            ObjectLifetimes lifetimes = record.getLifetimes();
+            writeLongs(lifetimes.getSurvivedCollections());
+            writeSizes(lifetimes.getMillis());
+            writeLong(lifetimes.getStillAlive());
+            writeDouble(lifetimes.getPromotedBytes());
+
+            SizeHistogram outsideTlab = record.getOutsideTlabSizes();
+            writeLong(outsideTlab == null ? 0 : 1);
+            if(outsideTlab != null) {
+                writeSizes(outsideTlab);
+            }
+
+            long[] threadBytes = record.getThreadBytes();
+            writeLong(threadBytes == null ? 0 : 1);
+            if(threadBytes != null) {
+                writeLongs(threadBytes);
+            }
+        }
+
+        /** Index of a string written before plus one, or 0 followed by the string, which gets the next index. */
+        private void writeString(String s) throws IOException {
+            Integer index = strings.get(s);
+            if(index != null) {
+                writeVarLong(index + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(0);
+            writeVarLong(utf8.length);
+            out.write(utf8);
+        }
+
+        private void writeSizes(SizeHistogram sizes) throws IOException {
+            long[] counts, maxes, bytes;
+            synchronized (sizes) {
+                counts = sizes.getCounts();
+                maxes = sizes.getMaxes();
+                bytes = sizes.getBytes();
+            }
+            writeLong(counts.length);
+            for (int i = 0; i < counts.length; i++) {
+                writeLong(counts[i]);
+                writeLong(maxes[i]);
+                writeLong(bytes[i]);
+            }
+        }
+
+        private void writeLongs(long[] values) throws IOException {
+            writeLong(values.length);
+            for (long value : values) {
+                writeLong(value);
+            }
+        }
+
+        /** Zig-zag encoded, so small negative values, like those of subtracted ledgers, stay short as well. */
+        void writeLong(long value) throws IOException {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /** Bits reversed, so that 0, and values with few bits of mantissa, take few bytes. */
+        private void writeDouble(double value) throws IOException {
+            writeVarLong(Long.reverse(Double.doubleToLongBits(value)));
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /**
+     * Iterates the records of a report, mapped into memory a window at a time. Only the fields of the current
+     * record are decoded; strings are decoded once per segment, and stack frames kept as indexes into them.
+     */
+    public static class Reader implements Closeable {
+        /** Size of the part of the file mapped at a time. */
+        private static final long WINDOW = 1 << 30;
+        /** Mapped bytes left ahead of a record for it to be read without remapping; records are far smaller. */
+        private static final int MARGIN = 1 << 20;
+
+        private final File file;
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer buffer;
+        // Offset in the file of the start of the mapped window
+        private long windowStart;
+
+        private int wholeSegments;
+        private boolean inSegment;
+        private boolean cutShort;
+        // Given by the whole segments read so far
+        private long operations;
+        private long heapRegionSize;
+        // Given by the header of the segment being read, which count once the segment turns out whole
+        private long segmentOperations;
+        private long segmentHeapRegionSize;
+        private int segmentVersion;
+        private final List<String> strings = new ArrayList<>();
+
+        // The current record; sizes, rate and lifetimes are decoded when asked for
+        private String obj;
+        private long totalBytes;
+        private long allocs;
+        private double bytesVariance;
+        private int depth;
+        // Indexes of the strings of the frames of the stack trace
+        private int[] frames = new int[16];
+        // Position in the window of the sizes, which the rate and lifetimes follow
+        private int extrasPosition;
+
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            map(0);
+        }
+
+        /**
+         * Move to the next record. Records of the last segment may be handed out before it turns out to be cut
+         * short; to leave them out, only count records once {@link #wholeSegments()} has gone past their segment.
+         * @return false at the end of the report, or where it was cut short
+         * @throws IOException if the first segment of the report is cut short, so none of it can be trusted
+         */
+        public boolean next() throws IOException {
+            try {
+                while(true) {
+                    ensure(MARGIN);
+                    if(!inSegment) {
+                        if(!buffer.hasRemaining()) {
+                            return false;
+                        }
+                        readHeader();
+                    }
+                    if(buffer.get() == RECORD) {
+                        readRecord();
+                        return true;
+                    }
+                    // The end marker, so the segment was written in full
+                    inSegment = false;
+                    wholeSegments++;
+                    // Each segment gives the running count, so the latest one is the highest
+                    operations = Math.max(operations, segmentOperations);
+                    heapRegionSize = segmentHeapRegionSize;
+                }
+            } catch (BufferUnderflowException e) {
+                if(wholeSegments == 0) {
+                    throw new IOException(String.format("Report %s is cut short", file), e);
+                }
+                cutShort = true;
+                return false;
+            }
+        }
+
+        /** Whether the last segment of the report was cut short; known once {@link #next()} returned false. */
+        public boolean isCutShort() {
+            return cutShort;
+        }
+
+        /** Number of segments read up to and including their end marker so far. */
+        public int wholeSegments() {
+            return wholeSegments;
+        }
+
+        /** Operation count up to the last whole segment read so far, or 0 if none gave it. */
+        public long operations() {
+            return operations;
+        }
+
+        /** Size of the G1 heap regions of the ledger the report was written from, or 0 if not known. */
+        public long heapRegionSize() {
+            return heapRegionSize;
+        }
+
+        public String obj() {
+            return obj;
+        }
+
+        public long totalBytes() {
+            return totalBytes;
+        }
+
+        public long objectsAllocated() {
+            return allocs;
+        }
+
+        public double bytesVariance() {
+            return bytesVariance;
+        }
+
+        public int depth() {
+            return depth;
+        }
+
+        /** Frame of the stack trace of the current record, counting from the allocating frame. */
+        public String frame(int i) {
+            if(i >= depth) {
+                throw new IndexOutOfBoundsException("Frame " + i + " of a stack trace of " + depth);
+            }
+            return strings.get(frames[i]);
+        }
+
+        public List<String> stackTrace() {
+            List<String> stackTrace = new ArrayList<>(depth);
+            for (int i = 0; i < depth; i++) {
+                stackTrace.add(strings.get(frames[i]));
+            }
+            return stackTrace;
+        }
+
+        public SizeHistogram sizes() {
+            int end = buffer.position();
+            buffer.position(extrasPosition);
+            SizeHistogram sizes = readSizes();
+            buffer.position(end);
+            return sizes;
+        }
+
+        public AllocationRate rate() {
+            int end = buffer.position();
+            buffer.position(extrasPosition);
+            skipSizes();
+            AllocationRate rate = readRate();
+            buffer.position(end);
+            return rate;
+        }
+
+        public ObjectLifetimes lifetimes() {
+            int end = buffer.position();
+            buffer.position(extrasPosition);
+            skipSizes();
+            skipRate();
+            ObjectLifetimes lifetimes = new ObjectLifetimes(readLongs(), readSizes(), readLong(), readDouble());
+            buffer.position(end);
+            return lifetimes;
+        }
+
+        /** Sizes of the allocations made outside TLABs, or null if not known which were. */
+        public SizeHistogram outsideTlabSizes() {
+            if(segmentVersion < 2) {
+                return null;
+            }
+            int end = buffer.position();
+            buffer.position(extrasPosition);
+            skipSizes();
+            skipRate();
+            skipLifetimes();
+            SizeHistogram outsideTlab = readLong() == 0 ? null : readSizes();
+            buffer.position(end);
+            return outsideTlab;
+        }
+
+        /** Bytes allocated by each analysis thread, or null if not known which threads allocated them. */
+        public long[] threadBytes() {
+            if(segmentVersion < 3) {
+                return null;
+            }
+            int end = buffer.position();
+            buffer.position(extrasPosition);
+            skipSizes();
+            skipRate();
+            skipLifetimes();
+            skipOutsideTlabSizes();
+            long[] threadBytes = readLong() == 0 ? null : readLongs();
+            buffer.position(end);
+            return threadBytes;
+        }
+
+        /** The current record, on the heap. */
+        public AllocationLedger.Record record() {
+            AllocationLedger.Record record = new AllocationLedger.Record(obj, totalBytes, allocs, sizes(), stackTrace());
+            record.bytesVariance.add(bytesVariance);
+            record.rate.add(rate());
+            record.lifetimes.add(lifetimes());
+            SizeHistogram outsideTlab = outsideTlabSizes();
+            if(outsideTlab != null) {
+                record.addOutsideTlab(outsideTlab);
+            }
+            long[] threadBytes = threadBytes();
+            if(threadBytes != null) {
+                record.addThreadBytes(threadBytes);
+            }
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void readHeader() throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if(!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(String.format("%s is not a binary report, or is corrupt at offset %d",
+                        file, windowStart + buffer.position() - magic.length));
+            }
+            int version = buffer.get();
+            if(version < 1 || version > VERSION) {
+                throw new IOException(String.format("Report %s is of version %d, which this version can't read", file, version));
+            }
+            // Flags; the last segment gives no more than the running operation count any other does
+            buffer.get();
+            segmentOperations = readLong();
+            segmentHeapRegionSize = readLong();
+            segmentVersion = version;
+            strings.clear();
+            inSegment = true;
+        }
+
+        private void readRecord() throws IOException {
+            obj = strings.get(readString());
+            totalBytes = readLong();
+            allocs = readLong();
+            bytesVariance = readDouble();
+            depth = (int) readLong();
+            if(depth > frames.length) {
+                frames = new int[Math.max(depth, frames.length * 2)];
+            }
+            for (int i = 0; i < depth; i++) {
+                frames[i] = readString();
+            }
+            extrasPosition = buffer.position();
+            skipSizes();
+            skipRate();
+            skipLifetimes();
+            skipOutsideTlabSizes();
+            if(segmentVersion >= 3 && readLong() != 0) {
+                skipLongs((int) readLong());
+            }
+        }
+
+        /** Index of a string, decoding it if this is the first time it comes up in the segment. */
+        private int readString() throws IOException {
+            int ref = (int) readVarLong();
+            if(ref != 0) {
+                return ref - 1;
+            }
+            int length = (int) readVarLong();
+            ensure(length);
+            byte[] utf8 = new byte[length];
+            buffer.get(utf8);
+            strings.add(new String(utf8, StandardCharsets.UTF_8));
+            return strings.size() - 1;
+        }
+
+        private SizeHistogram readSizes() {
+            int buckets = (int) readLong();
+            long[] counts = new long[buckets], maxes = new long[buckets], bytes = new long[buckets];
+            for (int i = 0; i < buckets; i++) {
+                counts[i] = readLong();
+                maxes[i] = readLong();
+                bytes[i] = readLong();
+            }
+            return new SizeHistogram(counts, maxes, bytes);
+        }
+
+        private AllocationRate readRate() {
+            long windowMillis = readLong();
+            if(windowMillis == 0 && segmentVersion >= 2) {
+                return new AllocationRate();
+            }
+            return new AllocationRate(windowMillis, readLong(), readLongs(), readLong());
+        }
+
+        private void skipRate() {
+            if(readLong() == 0 && segmentVersion >= 2) {
+                return;
+            }
+            skipLongs(1);
+            skipLongs((int) readLong());
+            skipLongs(1);
+        }
+
+        private void skipLifetimes() {
+            skipLongs((int) readLong());
+            skipSizes();
+            skipLongs(2);
+        }
+
+        private void skipOutsideTlabSizes() {
+            if(segmentVersion >= 2 && readLong() != 0) {
+                skipSizes();
+            }
+        }
+
+        private void skipSizes() {
+            skipLongs((int) readLong() * 3);
+        }
+
+        private long[] readLongs() {
+            long[] values = new long[(int) readLong()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readLong();
+            }
+            return values;
+        }
+
+        private void skipLongs(int n) {
+            for (int i = 0; i < n; i++) {
+                while((buffer.get() & 0x80) != 0) { }
+            }
+        }
+
+        private long readLong() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private double readDouble() {
+            return Double.longBitsToDouble(Long.reverse(readVarLong()));
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        /** Map the file on from the current position if fewer than the given bytes are left of the window. */
+        private void ensure(int bytes) throws IOException {
+            long windowEnd = windowStart + buffer.limit();
+            if(buffer.remaining() < bytes && windowEnd < fileSize) {
+                map(windowStart + buffer.position());
+            }
+        }
+
+        private void map(long position) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, fileSize - position));
+            windowStart = position;
+        }
+    }
+}
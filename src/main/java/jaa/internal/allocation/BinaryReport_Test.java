@@ -0,0 +1,263 @@
+package jaa.internal.allocation;
+
+import jaa.Options;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryReport_Test {
+    @Test
+    public void shouldKeepCountsWhenWrittenAndReadBack() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 16, asList("a.B", "a.C"));
+        ledger.record("java/lang/Object", 16, asList("a.B", "a.C"));
+        ledger.record("[J", 1024, 2, 12.5, SizeHistogram.of(512, 2), asList("a.B", "a.D"));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .getRate().add(new AllocationRate(100, 3, new long[]{0, 1024}, 0));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .getLifetimes().add(new ObjectLifetimes(new long[]{0, 2}, SizeHistogram.of(40, 2), 1, 2048));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .addOutsideTlab(SizeHistogram.of(1024, 1));
+        ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get()
+                .addThreadBytes(new long[]{1000, 24});
+        ledger.setOperations(4);
+        ledger.setHeapRegionSize(1 << 20);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        try {
+            ledger.write(path, Options.ReportFormat.BINARY);
+            assertTrue(BinaryReport.isBinary(path.toFile()));
+            read = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(1056, read.totalBytes());
+        assertEquals(4, read.totalAllocs());
+        assertEquals(4, read.operations());
+        assertEquals(1 << 20, read.heapRegionSize());
+        assertEquals(12.5, read.bytesVariance(), 0.001);
+        assertEquals(asList("a.B", "a.D"), read.records().filter(r -> r.getObj().equals("[J")).findFirst().get().getStackTrace());
+        assertEquals(1056, read.records().flatMapToLong(r -> Arrays.stream(r.getSizes().getBytes())).sum());
+        assertEquals(100, read.rate().getWindowMillis());
+        assertEquals(4, read.rate().getFirstWindow());
+        assertEquals(10240.0, read.rate().getPeakBytesPerSecond(), 0.001);
+        assertEquals(2048, read.promotedBytes(), 0.001);
+        assertEquals(40, read.records().mapToLong(r -> r.getLifetimes().getMillis().getMax()).max().getAsLong());
+        assertEquals(1, read.records().filter(r -> r.getObj().equals("[J")).findFirst().get().getOutsideTlabSizes().getCount());
+        assertEquals(null, read.records().filter(r -> r.getObj().equals("java/lang/Object")).findFirst().get().getOutsideTlabSizes());
+        assertArrayEquals(new long[]{1000, 24}, read.threadBytes());
+        assertEquals(null, read.records().filter(r -> r.getObj().equals("java/lang/Object")).findFirst().get().getThreadBytes());
+    }
+
+    @Test
+    public void shouldMergeSegmentsAndLeaveOutOneCutShort() throws Exception
+    {
+        // Given
+        AllocationLedger first = new AllocationLedger();
+        first.record("java/lang/Object", 16, asList("a.B"));
+        first.record("[J", 1024, asList("a.D"));
+        AllocationLedger second = new AllocationLedger();
+        second.record("java/lang/Object", 16, 2, asList("a.B"));
+        AllocationLedger last = new AllocationLedger();
+        last.setOperations(8);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        AllocationLedger cutShort;
+        try {
+            first.appendSegment(path.toFile(), false, Options.ReportFormat.BINARY);
+            second.appendSegment(path.toFile(), false, Options.ReportFormat.BINARY);
+            last.appendSegment(path.toFile(), true, Options.ReportFormat.BINARY);
+            read = AllocationLedger.read(path);
+
+            // As if the process died while writing a segment
+            ByteArrayOutputStream segment = new ByteArrayOutputStream();
+            BinaryReport.write(first, segment, false);
+            Files.write(path, Arrays.copyOf(segment.toByteArray(), segment.size() - 2), StandardOpenOption.APPEND);
+            cutShort = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(1056, read.totalBytes());
+        assertEquals(4, read.totalAllocs());
+        assertEquals(8, read.operations());
+        assertEquals(1056, cutShort.totalBytes());
+        assertEquals(8, cutShort.operations());
+    }
+
+    @Test
+    public void shouldGiveOperationsUpToTheLastWholeSegment() throws Exception
+    {
+        // Given segments collected after 3 and 5 operations, of a run that died while writing the third
+        AllocationLedger first = new AllocationLedger();
+        first.record("[J", 1024, 3, asList("a.D"));
+        first.setOperations(3);
+        AllocationLedger second = new AllocationLedger();
+        second.record("[J", 1024, 2, asList("a.D"));
+        second.setOperations(5);
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        try {
+            first.appendSegment(path.toFile(), false, Options.ReportFormat.BINARY);
+            second.appendSegment(path.toFile(), false, Options.ReportFormat.BINARY);
+            second.setOperations(7);
+            appendCutShort(path, second, segmentSize(second) - 1);
+            read = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(5, read.operations());
+        assertEquals(1, read.allocsPerOp(), 0.001);
+    }
+
+    @Test
+    public void shouldKeepWholeSegmentsWhenCutShortInAHeader() throws Exception
+    {
+        // Given
+        AllocationLedger segment = new AllocationLedger();
+        segment.record("java/lang/Object", 16, asList("a.B"));
+        segment.record("[J", 1024, asList("a.D"));
+        Path one = Files.createTempFile("jaa", "ledger");
+        Path two = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger afterOne;
+        AllocationLedger afterTwo;
+        try {
+            segment.appendSegment(one.toFile(), false, Options.ReportFormat.BINARY);
+            appendCutShort(one, segment, 3);
+            afterOne = AllocationLedger.read(one);
+
+            segment.appendSegment(two.toFile(), false, Options.ReportFormat.BINARY);
+            segment.appendSegment(two.toFile(), false, Options.ReportFormat.BINARY);
+            appendCutShort(two, segment, 3);
+            afterTwo = AllocationLedger.read(two);
+        } finally {
+            Files.delete(one);
+            Files.delete(two);
+        }
+
+        // Then
+        assertEquals(1040, afterOne.totalBytes());
+        assertEquals(2080, afterTwo.totalBytes());
+    }
+
+    @Test
+    public void shouldKeepWholeSegmentsWhenCutShortInTheFirstRecord() throws Exception
+    {
+        // Given
+        AllocationLedger segment = new AllocationLedger();
+        segment.record("[J", 1024, asList("a.VeryLongClassNameOfTheCaller"));
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        AllocationLedger read;
+        try {
+            segment.appendSegment(path.toFile(), false, Options.ReportFormat.BINARY);
+            appendCutShort(path, segment, segmentSize(segment) / 2);
+            read = AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+
+        // Then
+        assertEquals(1024, read.totalBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldNotReadAReportWithoutAWholeSegment() throws Exception
+    {
+        // Given
+        AllocationLedger segment = new AllocationLedger();
+        segment.record("[J", 1024, asList("a.D"));
+        Path path = Files.createTempFile("jaa", "ledger");
+
+        // When
+        try {
+            appendCutShort(path, segment, segmentSize(segment) - 1);
+            AllocationLedger.read(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void shouldIterateRecordsWithStringsWrittenOnce() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        for (int i = 0; i < 100; i++) {
+            ledger.record("java/lang/Object", 16 * i, i, asList("a.B" + i, "a.VeryLongClassNameOfTheCaller", "a.Main"));
+        }
+        Path binary = Files.createTempFile("jaa", "ledger");
+        Path json = Files.createTempFile("jaa", "ledger");
+
+        // When
+        Map<String, Long> bytesByFrame = new HashMap<>();
+        List<String> lastStackTrace;
+        try {
+            ledger.write(binary, Options.ReportFormat.BINARY);
+            ledger.write(json, Options.ReportFormat.JSON);
+            assertTrue(Files.size(binary) * 4 < Files.size(json));
+            try(BinaryReport.Reader reader = new BinaryReport.Reader(binary.toFile())) {
+                List<String> stackTrace = null;
+                while(reader.next()) {
+                    assertEquals("java/lang/Object", reader.obj());
+                    assertEquals(3, reader.depth());
+                    bytesByFrame.put(reader.frame(0), reader.totalBytes());
+                    stackTrace = reader.stackTrace();
+                }
+                assertFalse(reader.isCutShort());
+                lastStackTrace = stackTrace;
+            }
+        } finally {
+            Files.delete(binary);
+            Files.delete(json);
+        }
+
+        // Then
+        assertEquals(100, bytesByFrame.size());
+        assertEquals(16 * 42, (long) bytesByFrame.get("a.B42"));
+        assertEquals(asList("a.VeryLongClassNameOfTheCaller", "a.Main"), lastStackTrace.subList(1, 3));
+    }
+
+    /** Append the first bytes of a segment, as if the process died while writing it. */
+    private static void appendCutShort(Path path, AllocationLedger ledger, int bytes) throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        BinaryReport.write(ledger, segment, false);
+        Files.write(path, Arrays.copyOf(segment.toByteArray(), bytes), StandardOpenOption.APPEND);
+    }
+
+    private static int segmentSize(AllocationLedger ledger) throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        BinaryReport.write(ledger, segment, false);
+        return segment.size();
+    }
+}
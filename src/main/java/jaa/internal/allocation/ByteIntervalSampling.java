@@ -0,0 +1,70 @@
+package jaa.internal.allocation;
+
+import java.util.Random;
+
+/**
+ * Decides which allocations a thread samples, when sampling about one allocation per so many bytes
+ * allocated rather than recording every allocation.
+ *
+ * Sample points are spread over the bytes a thread allocates as a Poisson process, with the given mean
+ * interval between them, and an allocation is sampled if a sample point falls within its bytes. So an
+ * allocation of size s is sampled with probability 1 - e^(-s/interval), independently of other allocations,
+ * and weighting each sample by the inverse of that probability gives unbiased estimates of bytes and
+ * allocations whatever the mix of sizes, see {@link #weight(long)}.
+ *
+ * Not thread safe; each thread has its own.
+ */
+class ByteIntervalSampling
+{
+    private final double interval;
+    private final Random random;
+    private long bytesUntilSample;
+
+    /**
+     * @param interval mean number of bytes allocated between samples
+     */
+    ByteIntervalSampling(long interval, Random random) {
+        if(interval < 1) {
+            throw new IllegalArgumentException("Sampling interval must be at least one byte, got " + interval);
+        }
+        this.interval = interval;
+        this.random = random;
+        this.bytesUntilSample = nextInterval();
+    }
+
+    /** @return true if an allocation of the given size should be sampled */
+    boolean sample(long size) {
+        bytesUntilSample -= size;
+        if(bytesUntilSample > 0) {
+            return false;
+        }
+        // Intervals are memoryless, so the next one can just as well start at the end of this allocation
+        bytesUntilSample = nextInterval();
+        return true;
+    }
+
+    /** Probability an allocation of the given size is sampled. */
+    double probability(long size) {
+        return -Math.expm1(-size / interval);
+    }
+
+    /**
+     * Number of allocations a sampled allocation of the given size stands for; the Horvitz-Thompson weight.
+     * Estimated bytes are size times this, and the estimated variance of them grows by
+     * {@link #bytesVariance(long)} per sample.
+     */
+    double weight(long size) {
+        return 1 / probability(size);
+    }
+
+    /** Contribution of a sample of the given size to the variance of estimated bytes. */
+    double bytesVariance(long size) {
+        double p = probability(size);
+        return (1 - p) / (p * p) * size * size;
+    }
+
+    private long nextInterval() {
+        // Exponentially distributed, by inverting its distribution function
+        return (long) Math.ceil(-Math.log(1 - random.nextDouble()) * interval);
+    }
+}
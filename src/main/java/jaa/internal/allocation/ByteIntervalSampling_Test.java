@@ -0,0 +1,56 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ByteIntervalSampling_Test
+{
+    @Test
+    public void shouldEstimateBytesAndAllocationsWithinErrorBounds() throws Exception
+    {
+        // Given many small allocations and a few allocations larger than the interval
+        ByteIntervalSampling sampling = new ByteIntervalSampling(4096, new Random(1337));
+        double smallBytes = 0, smallAllocs = 0, largeBytes = 0, variance = 0;
+        int samples = 0;
+
+        // When
+        for (int i = 0; i < 1_000_000; i++) {
+            long size = i % 10_000 == 0 ? 65536 : 24;
+            if(sampling.sample(size)) {
+                samples++;
+                double weight = sampling.weight(size);
+                variance += sampling.bytesVariance(size);
+                if(size == 24) {
+                    smallBytes += size * weight;
+                    smallAllocs += weight;
+                } else {
+                    largeBytes += size * weight;
+                }
+            }
+        }
+
+        // Then only a fraction of allocations were sampled
+        assertTrue(samples < 10_000);
+        // And estimates are unbiased, within their 95% confidence interval
+        double error = 1.96 * Math.sqrt(variance);
+        assertEquals(999_900 * 24, smallBytes, error);
+        assertEquals(999_900, smallAllocs, error / 24);
+        // And allocations much larger than the interval are near certain to be sampled, at about their own weight
+        assertEquals(100 * 65536, largeBytes, 65536);
+    }
+
+    @Test
+    public void shouldSampleAllocationsWithProbabilityByTheirSize() throws Exception
+    {
+        ByteIntervalSampling sampling = new ByteIntervalSampling(1024, new Random(1));
+
+        assertEquals(1 - Math.exp(-1), sampling.probability(1024), 1e-9);
+        assertEquals(1, sampling.probability(1024 * 64), 1e-9);
+        assertEquals(1024 / 8.0, sampling.weight(8), 1);
+        assertEquals(0, sampling.bytesVariance(1024 * 64), 1e-9);
+    }
+}
@@ -0,0 +1,64 @@
+package jaa.internal.allocation;
+
+import sun.reflect.Reflection;
+
+/**
+ * Captures the class of each frame, walking the stack with {@link Reflection#getCallerClass(int)}.
+ * Does not allocate for classes seen before, but each frame costs a stack walk of its own.
+ *
+ * Reflection is gone from Java 9 on, so this class must only be loaded if {@link #isAvailable()}.
+ */
+class CallerClassCapture implements FrameCapture
+{
+    private final FrameIds frames;
+    private final ClassValue<Boolean> skipped = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return FrameCapture.isInstrumentation(type.getName());
+        }
+    };
+
+    static boolean isAvailable() {
+        try {
+            Class.forName("sun.reflect.Reflection");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    CallerClassCapture(FrameIds frames) {
+        this.frames = frames;
+    }
+
+    @Override
+    public boolean allocates() {
+        return false;
+    }
+
+    @Override
+    public int capture(SiteTable sites, int depth)
+    {
+        int node = SiteTable.ROOT;
+        int realStackIndex = 1;
+        for (int captured = 0; captured < depth; )
+        {
+            Class<?> callerClass = Reflection.getCallerClass(realStackIndex++);
+            if(callerClass == null)
+            {
+                // end of trace
+                return node;
+            }
+
+            // Skip instrumentation
+            if(skipped.get(callerClass))
+            {
+                continue;
+            }
+
+            node = sites.child(node, frames.id(callerClass));
+            captured++;
+        }
+        return node;
+    }
+}
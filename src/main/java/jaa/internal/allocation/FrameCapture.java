@@ -0,0 +1,38 @@
+package jaa.internal.allocation;
+
+import com.google.monitoring.runtime.instrumentation.Sampler;
+import jaa.Options;
+
+/**
+ * Captures the stack trace of the allocation being sampled, as a node in the trace tree of a {@link SiteTable}.
+ * Frames of the instrumentation are left out. Implementations are shared between threads.
+ */
+interface FrameCapture
+{
+    String THIS_PACKAGE_NAME = FrameCapture.class.getPackage().getName();
+    String SAMPLER_PACKAGE_NAME = Sampler.class.getPackage().getName();
+
+    /**
+     * @param depth number of frames to capture, counting from the allocating frame outwards
+     * @return the node of the current stack trace in the given table
+     */
+    int capture(SiteTable sites, int depth);
+
+    /** @return whether capturing a stack trace allocates, even when all its frames were seen before */
+    boolean allocates();
+
+    static FrameCapture of(Options.FrameDetail detail, FrameIds frames) {
+        switch (detail) {
+            case METHODS:
+                return StackWalkerCapture.isAvailable(detail) ? new StackWalkerCapture(frames, detail) : new StackTraceCapture(frames);
+            default:
+                // Before Java 9 the caller class walk is there, and from Java 9 on StackWalker is; no JDK has
+                // an allocation-free walk of classes from Java 9 on, so that one allocates
+                return CallerClassCapture.isAvailable() ? new CallerClassCapture(frames) : new StackWalkerCapture(frames, detail);
+        }
+    }
+
+    static boolean isInstrumentation(String className) {
+        return className.startsWith(THIS_PACKAGE_NAME) || className.startsWith(SAMPLER_PACKAGE_NAME);
+    }
+}
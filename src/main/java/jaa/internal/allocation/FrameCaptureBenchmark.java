@@ -0,0 +1,99 @@
+package jaa.internal.allocation;
+
+import jaa.Options;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures the cost per sample of each {@link FrameCapture} this JVM has, at a few stack depths, relative to
+ * the default capture of classes on the same JVM, which is what sampling costs without asking for more detail.
+ * Also measures how many bytes each sample allocates, which is what sampling adds to the garbage of the
+ * measured program, and checks captures that say they don't allocate really don't. Run it on each JVM of
+ * interest, with
+ *
+ * <pre>
+ * java -cp ... jaa.internal.allocation.FrameCaptureBenchmark [samples]
+ * </pre>
+ *
+ * Caller class capture is only measured before Java 9, StackWalker capture of classes from Java 9 on and of
+ * methods from Java 10 on.
+ */
+public class FrameCaptureBenchmark
+{
+    private static final int CAPTURED_FRAMES = 15;
+    private static final int[] STACK_DEPTHS = {20, 100, 500};
+
+    public static void main(String ... argv) {
+        int samples = argv.length > 0 ? Integer.parseInt(argv[0]) : 100_000;
+
+        Map<String, FrameCapture> captures = new LinkedHashMap<>();
+        captures.put("default", FrameCapture.of(Options.FrameDetail.CLASSES, new FrameIds()));
+        if(CallerClassCapture.isAvailable()) {
+            captures.put("caller-class", new CallerClassCapture(new FrameIds()));
+        }
+        if(StackWalkerCapture.isAvailable(Options.FrameDetail.CLASSES)) {
+            captures.put("class-walker", new StackWalkerCapture(new FrameIds(), Options.FrameDetail.CLASSES));
+        }
+        captures.put("stack-trace", new StackTraceCapture(new FrameIds()));
+        if(StackWalkerCapture.isAvailable(Options.FrameDetail.METHODS)) {
+            captures.put("method-walker", new StackWalkerCapture(new FrameIds(), Options.FrameDetail.METHODS));
+        }
+
+        System.out.printf("%s %s, capturing %d frames\n",
+                System.getProperty("java.vm.name"), System.getProperty("java.version"), CAPTURED_FRAMES);
+        for (int stackDepth : STACK_DEPTHS) {
+            double[] defaultNanos = new double[1];
+            captures.forEach((name, capture) -> {
+                double[] perSample = perSample(capture, stackDepth, samples);
+                double nanos = perSample[0], bytes = perSample[1];
+                if(defaultNanos[0] == 0) {
+                    defaultNanos[0] = nanos;
+                }
+                System.out.printf("  %-13s %4d frames deep: %8.0fns/sample, %5.2fx default, %6.0fb/sample\n",
+                        name, stackDepth, nanos, nanos / defaultNanos[0], bytes);
+                if(!capture.allocates() && bytes >= 1) {
+                    throw new AssertionError(String.format("%s allocated %.0fb/sample, but says it doesn't allocate", name, bytes));
+                }
+            });
+        }
+    }
+
+    /** @return nanoseconds and bytes allocated per sample */
+    private static double[] perSample(FrameCapture capture, int stackDepth, int samples) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        SiteTable sites = new SiteTable();
+        // Warm up first, so what is measured is compiled code and cached frames
+        long[] nanos = new long[1], bytes = new long[1];
+        atDepth(stackDepth, () -> sample(capture, sites, samples));
+        atDepth(stackDepth, () -> {
+            long thread = Thread.currentThread().getId();
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            nanos[0] = sample(capture, sites, samples);
+            bytes[0] = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        });
+        return new double[]{nanos[0] / (double) samples, bytes[0] / (double) samples};
+    }
+
+    private static long sample(FrameCapture capture, SiteTable sites, int samples) {
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            sites.record("java/lang/Object", capture.capture(sites, CAPTURED_FRAMES), 16, 1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Run the given task with the stack the given number of frames deep. Frames in this package are left out
+     * of captured stack traces, so each level goes through a frame of a JDK class.
+     */
+    private static void atDepth(int depth, Runnable task) {
+        if(depth <= 1) {
+            task.run();
+            return;
+        }
+        Collections.singletonList(depth - 1).forEach(remaining -> atDepth(remaining, task));
+    }
+}
@@ -0,0 +1,113 @@
+package jaa.internal.allocation;
+
+import jaa.Options;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class FrameCapture_Test
+{
+    @Test
+    public void shouldCaptureClassesOfFrames() throws Exception
+    {
+        // When captured from a lambda called by a JDK class; frames in this package count as instrumentation
+        List<String> stackTrace = captureFromJdkFrame(Options.FrameDetail.CLASSES, 3);
+
+        // Then
+        assertEquals(3, stackTrace.size());
+        assertEquals("java.util.Collections$SingletonList", stackTrace.get(0));
+    }
+
+    @Test
+    public void shouldCaptureClassesOfFramesWithStackWalker() throws Exception
+    {
+        // Given
+        assumeTrue(StackWalkerCapture.isAvailable(Options.FrameDetail.CLASSES));
+        FrameIds frames = new FrameIds();
+        FrameCapture capture = new StackWalkerCapture(frames, Options.FrameDetail.CLASSES);
+        SiteTable sites = new SiteTable();
+
+        // When
+        Collections.singletonList("java/lang/Object").forEach(obj -> sites.record(obj, capture.capture(sites, 3), 16, 1));
+
+        // Then
+        List<String> stackTrace = sites.toLedger(frames, 3).records().findFirst().get().getStackTrace();
+        assertEquals(3, stackTrace.size());
+        assertEquals("java.util.Collections$SingletonList", stackTrace.get(0));
+    }
+
+    @Test
+    public void shouldCaptureMethodsAndLinesOfFrames() throws Exception
+    {
+        // When
+        List<String> stackTrace = captureFromJdkFrame(Options.FrameDetail.METHODS, 3);
+
+        // Then
+        assertEquals(3, stackTrace.size());
+        assertThat(stackTrace.get(0), startsWith("java.util.Collections$SingletonList#forEach L"));
+    }
+
+    @Test
+    public void shouldGiveTheSameFrameTheSameId() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        FrameCapture capture = FrameCapture.of(Options.FrameDetail.METHODS, frames);
+        SiteTable sites = new SiteTable();
+        int[] nodes = new int[2];
+
+        // When captured twice from the same place
+        for (int i = 0; i < nodes.length; i++) {
+            int attempt = i;
+            Collections.singletonList(attempt).forEach(x -> nodes[attempt] = capture.capture(sites, 3));
+        }
+
+        // Then
+        assertEquals(nodes[0], nodes[1]);
+    }
+
+    @Test
+    public void shouldNotAllocateCapturingFramesSeenBeforeUnlessTheCaptureSaysItDoes() throws Exception
+    {
+        // Given the default capture on this JVM, warmed up so frames were seen before and the code is compiled
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        FrameCapture capture = FrameCapture.of(Options.FrameDetail.CLASSES, new FrameIds());
+        assumeFalse(capture.getClass().getSimpleName() + " allocates on this JVM", capture.allocates());
+        SiteTable sites = new SiteTable();
+        int samples = 10_000;
+        long[] allocated = new long[1];
+
+        // When
+        Collections.singletonList(samples).forEach(n -> {
+            long thread = Thread.currentThread().getId();
+            for (int i = 0; i < n * 5; i++) {
+                capture.capture(sites, 8);
+            }
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < n; i++) {
+                capture.capture(sites, 8);
+            }
+            allocated[0] = threads.getThreadAllocatedBytes(thread) - before;
+        });
+
+        // Then less than a byte per sample, which allows for the odd allocation of the JVM itself
+        assertTrue(allocated[0] + " bytes allocated", allocated[0] < samples);
+    }
+
+    private static List<String> captureFromJdkFrame(Options.FrameDetail detail, int depth) {
+        FrameIds frames = new FrameIds();
+        FrameCapture capture = FrameCapture.of(detail, frames);
+        SiteTable sites = new SiteTable();
+        Collections.singletonList("java/lang/Object").forEach(obj -> sites.record(obj, capture.capture(sites, depth), 16, 1));
+        return sites.toLedger(frames, depth).records().findFirst().get().getStackTrace();
+    }
+}
@@ -0,0 +1,42 @@
+package jaa.internal.allocation;
+
+import java.util.Arrays;
+
+/**
+ * Interns the classes seen in stack traces to small int ids, so traces can be recorded as ints rather
+ * than as lists of strings. Looking up the id of a class seen before does not allocate.
+ *
+ * Frames with more detail than their class are given ids by {@link FrameCapture} implementations,
+ * which keep track of the frames they registered themselves.
+ *
+ * Id 0 is never handed out, so it can mean "no frame" in tables keyed by frame id.
+ */
+class FrameIds
+{
+    private final ClassValue<Integer> ids = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return register(type.getName());
+        }
+    };
+
+    private volatile String[] names = new String[64];
+    private int count = 1;
+
+    int id(Class<?> cls) {
+        return ids.get(cls);
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /** @return a new id for a frame; the same frame registered twice gets two ids */
+    synchronized int register(String name) {
+        if(count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+        }
+        names[count] = name;
+        return count++;
+    }
+}
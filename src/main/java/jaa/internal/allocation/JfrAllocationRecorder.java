@@ -0,0 +1,194 @@
+package jaa.internal.allocation;
+
+import jaa.Options;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alternative to {@link AllocationSampler} that records allocations with Java Flight Recorder rather
+ * than with bytecode instrumentation.
+ *
+ * JFR does not see every allocation; it emits an event when a thread retires a TLAB or allocates outside
+ * of one, or, on JVMs that have it, a throttled allocation sample. Each event is weighted by the bytes it
+ * stands for, so the resulting ledger gives estimated, not exact, totals. In exchange the code under test runs
+ * at full speed, with the JIT and escape analysis working as usual, so there's nothing to filter out but the
+ * allocations of threads other than those invoking the analyzed method, like JFR's own.
+ *
+ * Allocations outside TLABs each get an event of their own, so records tell exactly which allocations were made
+ * outside TLABs, rather than guessing it from their sizes; see {@link AllocationLedger.Record#getOutsideTlabSizes()}.
+ */
+public class JfrAllocationRecorder
+{
+    private static final String THIS_PACKAGE_NAME = JfrAllocationRecorder.class.getPackage().getName();
+
+    static final String ALLOCATION_SAMPLE = "jdk.ObjectAllocationSample";
+    static final String IN_NEW_TLAB = "jdk.ObjectAllocationInNewTLAB";
+    static final String OUTSIDE_TLAB = "jdk.ObjectAllocationOutsideTLAB";
+
+    private final File output;
+    private final int stackDepth;
+    private final Options.ReportFormat reportFormat;
+    private final String threadNamePrefix;
+
+    private Recording recording;
+
+    /**
+     * @param threadNamePrefix only allocations of threads whose names start with this are recorded
+     */
+    public JfrAllocationRecorder(File output, int stackDepth, Options.ReportFormat reportFormat, String threadNamePrefix) {
+        this.output = output;
+        this.stackDepth = stackDepth;
+        this.reportFormat = reportFormat;
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    public synchronized void start()
+    {
+        recording = new Recording();
+        recording.enable(IN_NEW_TLAB).withStackTrace();
+        recording.enable(OUTSIDE_TLAB).withStackTrace();
+        // Only exists on JDK 16 and later; enabling an unknown event is ignored
+        recording.enable(ALLOCATION_SAMPLE).withStackTrace();
+        recording.start();
+    }
+
+    /**
+     * Stop recording and write the report.
+     * @param operations number of operations performed while recording, used to give allocations per operation
+     */
+    public synchronized void stop(long operations) {
+        recording.stop();
+        try {
+            Path dump = Files.createTempFile("jaa", ".jfr");
+            try {
+                recording.dump(dump);
+                AllocationLedger ledger = toLedger(RecordingFile.readAllEvents(dump), stackDepth, threadNamePrefix);
+                ledger.setOperations(operations);
+                ledger.write(output, reportFormat);
+            } finally {
+                Files.delete(dump);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            recording.close();
+        }
+    }
+
+    static AllocationLedger toLedger(List<RecordedEvent> events, int stackDepth, String threadNamePrefix) {
+        // The throttled samples, where available, are weighted to stand for all allocations,
+        // so the TLAB events would count the same bytes twice.
+        boolean haveSamples = events.stream().anyMatch(e -> e.getEventType().getName().equals(ALLOCATION_SAMPLE));
+
+        AllocationLedger ledger = new AllocationLedger();
+        List<String> stackTrace = new ArrayList<>(stackDepth);
+        for (RecordedEvent event : events) {
+            int thread = analysisThread(event, threadNamePrefix);
+            if(thread < 0) {
+                continue;
+            }
+            long bytes;
+            long allocs;
+            SizeHistogram sizes;
+            // Every allocation outside a TLAB gets an event, so these are exact, unlike the weighted totals
+            SizeHistogram outsideTlab = new SizeHistogram();
+            switch(event.getEventType().getName()) {
+                case ALLOCATION_SAMPLE:
+                    bytes = event.getLong("weight");
+                    allocs = 1;
+                    // Samples only tell what they are weighted to stand for, not the size of the sampled object
+                    sizes = new SizeHistogram();
+                    break;
+                case IN_NEW_TLAB:
+                    if(haveSamples) {
+                        continue;
+                    }
+                    // The allocation that filled the previous TLAB stands for everything allocated in it
+                    bytes = event.getLong("tlabSize");
+                    allocs = Math.max(1, bytes / Math.max(1, event.getLong("allocationSize")));
+                    sizes = SizeHistogram.of(event.getLong("allocationSize"), allocs);
+                    break;
+                case OUTSIDE_TLAB:
+                    outsideTlab = SizeHistogram.of(event.getLong("allocationSize"), 1);
+                    if(haveSamples) {
+                        // The samples stand for these bytes already, so the event only tells where they went
+                        bytes = 0;
+                        allocs = 0;
+                        sizes = new SizeHistogram();
+                    } else {
+                        bytes = event.getLong("allocationSize");
+                        allocs = 1;
+                        sizes = SizeHistogram.of(bytes, allocs);
+                    }
+                    break;
+                default:
+                    continue;
+            }
+
+            stackTrace(event, stackTrace, stackDepth);
+            AllocationLedger.Record record = ledger.record(objectDescription(event.getClass("objectClass")), bytes, allocs, 0, sizes, stackTrace);
+            record.addOutsideTlab(outsideTlab);
+            record.addThreadBytes(thread, bytes);
+        }
+        return ledger;
+    }
+
+    /** @return index of the analysis thread the event is of, or -1 if it is of another thread */
+    private static int analysisThread(RecordedEvent event, String threadNamePrefix) {
+        RecordedThread thread = event.getThread("eventThread");
+        // Threads that never ran Java code have no Java name
+        return thread == null ? -1 : AllocationLedger.analysisThread(thread.getJavaName(), threadNamePrefix);
+    }
+
+    /** Describe the class the way the allocation instrumenter does, so reports from both look the same. */
+    static String objectDescription(RecordedClass cls) {
+        String name = cls.getName();
+        if(!name.startsWith("[")) {
+            return name.replace('.', '/');
+        }
+
+        String element = name.substring(name.lastIndexOf('[') + 1);
+        switch(element.charAt(0)) {
+            case 'Z': return "boolean";
+            case 'B': return "byte";
+            case 'C': return "char";
+            case 'S': return "short";
+            case 'I': return "int";
+            case 'J': return "long";
+            case 'F': return "float";
+            case 'D': return "double";
+            default: return element.substring(1, element.length() - 1).replace('.', '/');
+        }
+    }
+
+    private static void stackTrace(RecordedEvent event, List<String> out, int depth) {
+        out.clear();
+        if(event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                if(out.size() == depth) {
+                    break;
+                }
+                String className = frame.getMethod().getType().getName();
+                if(className.startsWith(THIS_PACKAGE_NAME)) {
+                    continue;
+                }
+                out.add(className);
+            }
+        }
+        // Pad like the instrumenting sampler does, so equal stacks from both compare equal
+        while(out.size() < depth) {
+            out.add("");
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package jaa.internal.allocation;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JfrAllocationRecorder_Test {
+    private static volatile Object sink;
+
+    @Test
+    public void shouldOnlyRecordAllocationsOfAnalysisThreads() throws Exception
+    {
+        // Given arrays large enough to be allocated outside TLABs, which JFR always sees
+        Thread analysis = new Thread(() -> allocate(() -> {
+            sink = new long[1 << 17];
+            sink = new String[1 << 18];
+        }), "test.AnalysisThread-0");
+        Thread other = new Thread(() -> allocate(() -> sink = new int[1 << 18]), "test.OtherThread");
+
+        // When
+        AllocationLedger ledger;
+        Path dump = Files.createTempFile("jaa", ".jfr");
+        try(Recording recording = new Recording()) {
+            recording.enable(JfrAllocationRecorder.IN_NEW_TLAB).withStackTrace();
+            recording.enable(JfrAllocationRecorder.OUTSIDE_TLAB).withStackTrace();
+            recording.enable(JfrAllocationRecorder.ALLOCATION_SAMPLE).withStackTrace();
+            recording.start();
+            analysis.start();
+            other.start();
+            analysis.join();
+            other.join();
+            recording.stop();
+            recording.dump(dump);
+            ledger = JfrAllocationRecorder.toLedger(RecordingFile.readAllEvents(dump), 4, "test.AnalysisThread-");
+        } finally {
+            Files.delete(dump);
+        }
+
+        // Then arrays are described by their element type, like the instrumenter does
+        Set<String> objects = ledger.records().map(AllocationLedger.Record::getObj).collect(toSet());
+        assertTrue(objects.toString(), objects.contains("long"));
+        assertTrue(objects.toString(), objects.contains("java/lang/String"));
+        assertFalse(objects.toString(), objects.contains("int"));
+        assertTrue(ledger.records().allMatch(r -> r.getOutsideTlabSizes() != null));
+        // and counted as allocated by the first analysis thread
+        assertEquals(1, ledger.threadBytes().length);
+        assertEquals(ledger.totalBytes(), ledger.threadBytes()[0]);
+    }
+
+    private static void allocate(Runnable allocation) {
+        for (int i = 0; i < 100; i++) {
+            allocation.run();
+        }
+    }
+}
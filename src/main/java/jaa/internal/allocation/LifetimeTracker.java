@@ -0,0 +1,184 @@
+package jaa.internal.allocation;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds out how long sampled objects live, by holding weak references to them: when one is cleared, the object
+ * died, and its lifetime is counted towards the site it was allocated at, see {@link ObjectLifetimes}.
+ *
+ * Collections survived are counted by the collection counts of the JVM's garbage collector MXBeans, read when
+ * an object is tracked and when the reaper is handed its cleared reference. The counts are updated before
+ * references cleared by a collection are handed out, so the collection an object died in is left out; but
+ * collections that happen after it, before the reaper gets to the reference, are counted too. Neither the MXBeans
+ * nor GC notifications tell which collection cleared a reference, so collections survived are upper bounds,
+ * exact unless collections follow each other faster than the reaper, waiting on the queue, picks references up.
+ *
+ * Tracking an object takes a reference object and a set entry, so only a small fraction of allocations should be.
+ */
+class LifetimeTracker
+{
+    private static final int DEFAULT_TENURING_THRESHOLD = 15;
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // References have to be reachable themselves to be cleared and handed out
+    private final Set<Tracked> tracked = ConcurrentHashMap.newKeySet();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final int tenuringThreshold = tenuringThreshold();
+    // Guarded by this
+    private final Map<Site, ObjectLifetimes> lifetimes = new HashMap<>();
+    private Reaper reaper;
+
+    /** A site in a thread's table; objects tracked by different threads are counted apart until collected. */
+    private static class Site {
+        final SiteTable table;
+        final int node;
+        final String objectDescription;
+
+        Site(SiteTable table, int node, String objectDescription) {
+            this.table = table;
+            this.node = node;
+            this.objectDescription = objectDescription;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Site)) {
+                return false;
+            }
+            Site site = (Site) o;
+            return table == site.table && node == site.node && objectDescription.equals(site.objectDescription);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(table), node, objectDescription);
+        }
+    }
+
+    private static class Tracked extends WeakReference<Object> {
+        final Site site;
+        final double bytes;
+        final long trackedNanos = System.nanoTime();
+        final long collections;
+
+        Tracked(Object obj, ReferenceQueue<Object> queue, Site site, double bytes, long collections) {
+            super(obj, queue);
+            this.site = site;
+            this.bytes = bytes;
+            this.collections = collections;
+        }
+    }
+
+    synchronized void start() {
+        reaper = new Reaper();
+        reaper.start();
+    }
+
+    /**
+     * @param node trace node of the allocation site in the given table
+     * @param bytes estimated bytes of allocations at the site the object stands for
+     */
+    void track(Object obj, SiteTable table, int node, String objectDescription, double bytes) {
+        tracked.add(new Tracked(obj, queue, new Site(table, node, objectDescription), bytes, collections()));
+    }
+
+    /**
+     * Stop tracking objects, counting those still alive with how long they lived so far; counts stay until
+     * added to a ledger.
+     */
+    synchronized void stop() {
+        if(reaper != null) {
+            reaper.interrupt();
+            reaper = null;
+        }
+        for (Tracked t : tracked) {
+            died(t, t.get() != null);
+        }
+        tracked.clear();
+        // References cleared while stopping may be in the queue still; they have already been counted
+        while(queue.poll() != null) { }
+    }
+
+    /**
+     * Add the lifetimes counted so far to the records of their sites in a ledger.
+     * @param depth stack traces are cut or padded with empty frames to this length, like traces in ledgers are
+     * @param clear forget the lifetimes added, so the next ledger only has objects that died after
+     */
+    synchronized void addTo(AllocationLedger ledger, FrameIds frames, int depth, boolean clear) {
+        lifetimes.forEach((site, siteLifetimes) -> {
+            List<String> stackTrace;
+            // Threads may still be recording the allocation they were at when sampling stopped
+            synchronized (site.table) {
+                stackTrace = site.table.stackTrace(site.node, frames, depth);
+            }
+            ledger.record(site.objectDescription, 0, 0, 0, new SizeHistogram(), stackTrace)
+                    .getLifetimes().add(siteLifetimes);
+        });
+        if(clear) {
+            lifetimes.clear();
+        }
+    }
+
+    private synchronized void died(Tracked t, boolean stillAlive) {
+        if(!tracked.remove(t)) {
+            // Counted already, when stopping
+            return;
+        }
+        // The collection clearing the reference has been counted by the time it is handed out, and so may later ones
+        long survived = collections() - t.collections - (stillAlive ? 0 : 1);
+        lifetimes.computeIfAbsent(t.site, s -> new ObjectLifetimes()).add(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t.trackedNanos),
+                survived,
+                stillAlive,
+                survived >= tenuringThreshold ? t.bytes : 0);
+    }
+
+    private long collections() {
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            // -1 if the collector doesn't count its collections
+            collections += Math.max(0, collector.getCollectionCount());
+        }
+        return collections;
+    }
+
+    private static int tenuringThreshold() {
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Integer.parseInt(hotSpot.getVMOption("MaxTenuringThreshold").getValue());
+        } catch (RuntimeException e) {
+            // Not a HotSpot JVM
+            return DEFAULT_TENURING_THRESHOLD;
+        }
+    }
+
+    /** Counts the lifetimes of objects as their references are cleared, until tracking stops. */
+    private class Reaper extends SamplerThread {
+        Reaper() {
+            super("jaa.LifetimeReaper");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!isInterrupted()) {
+                    died((Tracked) queue.remove(), false);
+                }
+            } catch (InterruptedException e) {
+                // Tracking stopped
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LifetimeTracker_Test {
+    @Test
+    public void shouldTellGarbageFromObjectsThatSurviveCollections() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+        int garbageSite = sites.child(SiteTable.ROOT, frames.id(String.class));
+        int survivorSite = sites.child(SiteTable.ROOT, frames.id(List.class));
+        LifetimeTracker tracker = new LifetimeTracker();
+        tracker.start();
+        byte[] survivor = new byte[64];
+        tracker.track(survivor, sites, survivorSite, "[B", 64);
+        trackGarbage(tracker, sites, garbageSite);
+
+        // When the garbage is collected, and the survivor survives more collections than any tenuring threshold
+        for (int i = 0; i < 20 || lifetimes(tracker, frames).isEmpty(); i++) {
+            assertTrue("garbage was never collected", i < 1000);
+            System.gc();
+            Thread.sleep(1);
+        }
+        tracker.stop();
+
+        // Then
+        Map<String, ObjectLifetimes> lifetimes = lifetimes(tracker, frames);
+        ObjectLifetimes garbage = lifetimes.get("java.lang.String");
+        assertEquals(1, garbage.getSampled());
+        assertEquals(0, garbage.getStillAlive());
+        assertEquals(0, garbage.getPromotedBytes(), 0.001);
+
+        ObjectLifetimes survivors = lifetimes.get("java.util.List");
+        assertEquals(1, survivors.getSampled());
+        assertEquals(1, survivors.getStillAlive());
+        assertEquals(1, survivors.getSurvivedCollections()[ObjectLifetimes.MAX_COLLECTIONS]);
+        assertEquals(64, survivors.getPromotedBytes(), 0.001);
+        assertEquals(64, survivor.length);
+    }
+
+    private static void trackGarbage(LifetimeTracker tracker, SiteTable sites, int node) {
+        tracker.track(new byte[16], sites, node, "[B", 16);
+    }
+
+    /** Lifetimes counted so far, by the frame of their site. */
+    private static Map<String, ObjectLifetimes> lifetimes(LifetimeTracker tracker, FrameIds frames) {
+        AllocationLedger ledger = new AllocationLedger();
+        tracker.addTo(ledger, frames, 1, false);
+        return ledger.records().collect(toMap(r -> r.getStackTrace().get(0), AllocationLedger.Record::getLifetimes));
+    }
+}
@@ -0,0 +1,121 @@
+package jaa.internal.allocation;
+
+import java.util.Arrays;
+
+/**
+ * How long a sample of the objects allocated at a site lived: in time, and in garbage collections survived,
+ * see {@link LifetimeTracker}. Objects still alive when sampling stopped count with how long they had lived so
+ * far, so lifetimes are lower bounds. Collections survived, on the other hand, may count collections that came
+ * right after an object died, so they are upper bounds.
+ *
+ * Objects surviving as many collections as the JVM's tenuring threshold are counted as promoted to the old
+ * generation. Collectors tenure adaptively, often before the threshold, so promoted bytes are an estimate of
+ * which sites feed the old generation, rather than of how much it grows.
+ */
+public class ObjectLifetimes
+{
+    /** Collections survived are counted up to this, which counts this many or more. */
+    static final int MAX_COLLECTIONS = 16;
+
+    // Guarded by this
+    private long[] survivedCollections = new long[0];
+    // Power of two buckets of milliseconds, rather than of bytes; totals per bucket are in milliseconds as well
+    private final SizeHistogram millis;
+    private long stillAlive;
+    private double promotedBytes;
+
+    public ObjectLifetimes() {
+        this.millis = new SizeHistogram();
+    }
+
+    /** Lifetimes as given by the getters of others, like when read back from a report. */
+    public ObjectLifetimes(long[] survivedCollections, SizeHistogram millis, long stillAlive, double promotedBytes) {
+        this.survivedCollections = Arrays.copyOf(survivedCollections, Math.min(survivedCollections.length, MAX_COLLECTIONS + 1));
+        this.millis = millis;
+        this.stillAlive = stillAlive;
+        this.promotedBytes = promotedBytes;
+    }
+
+    /**
+     * @param alive whether the object was still alive when sampling stopped
+     * @param promotedBytes estimated bytes the object stands for, if it was promoted, or 0 if not
+     */
+    synchronized void add(long lifetimeMillis, long collections, boolean alive, double promotedBytes) {
+        int bucket = (int) Math.min(Math.max(0, collections), MAX_COLLECTIONS);
+        if(bucket >= survivedCollections.length) {
+            survivedCollections = Arrays.copyOf(survivedCollections, bucket + 1);
+        }
+        survivedCollections[bucket]++;
+        millis.add(SizeHistogram.bucket(lifetimeMillis), 1, lifetimeMillis, lifetimeMillis);
+        if(alive) {
+            stillAlive++;
+        }
+        this.promotedBytes += promotedBytes;
+    }
+
+    public void add(ObjectLifetimes other) {
+        // Copied out of the other lifetimes first, so no thread holds the locks of two
+        long[] otherCollections;
+        long otherStillAlive;
+        double otherPromotedBytes;
+        synchronized (other) {
+            otherCollections = other.getSurvivedCollections();
+            otherStillAlive = other.stillAlive;
+            otherPromotedBytes = other.promotedBytes;
+        }
+        SizeHistogram otherMillis = other.millis;
+        synchronized (this) {
+            if(otherCollections.length > survivedCollections.length) {
+                survivedCollections = Arrays.copyOf(survivedCollections, otherCollections.length);
+            }
+            for (int i = 0; i < otherCollections.length; i++) {
+                survivedCollections[i] += otherCollections[i];
+            }
+            stillAlive += otherStillAlive;
+            promotedBytes += otherPromotedBytes;
+        }
+        millis.add(otherMillis);
+    }
+
+    /** Number of sampled objects whose lifetimes are known. */
+    public synchronized long getSampled() {
+        long sampled = 0;
+        for (long count : survivedCollections) {
+            sampled += count;
+        }
+        return sampled;
+    }
+
+    /**
+     * Sampled objects by the number of collections they survived, at most; the last entry counts
+     * {@value #MAX_COLLECTIONS} or more.
+     */
+    public synchronized long[] getSurvivedCollections() {
+        return survivedCollections.clone();
+    }
+
+    /** Sampled objects by how many milliseconds they lived, in power of two buckets, see {@link SizeHistogram}. */
+    public SizeHistogram getMillis() {
+        return millis;
+    }
+
+    /** Sampled objects still alive when sampling stopped. */
+    public synchronized long getStillAlive() {
+        return stillAlive;
+    }
+
+    /** Estimated bytes allocated at the site that were promoted to the old generation. */
+    public synchronized double getPromotedBytes() {
+        return promotedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ObjectLifetimes{" +
+                "survivedCollections=" + Arrays.toString(survivedCollections) +
+                ", millis=" + millis +
+                ", stillAlive=" + stillAlive +
+                ", promotedBytes=" + promotedBytes +
+                '}';
+    }
+}
@@ -0,0 +1,53 @@
+package jaa.internal.allocation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Which classes to instrument, by package. A package pattern like com.example, or com.example.*, covers
+ * the package and all packages below it. Classes are in scope if they are covered by an include, or there
+ * are no includes, and they are not covered by an exclude.
+ */
+class PackageScope
+{
+    private final List<String> includes;
+    private final List<String> excludes;
+
+    PackageScope(Collection<String> includes, Collection<String> excludes) {
+        this.includes = prefixes(includes);
+        this.excludes = prefixes(excludes);
+    }
+
+    /** @param className internal name of a class, like java/lang/Object */
+    boolean includes(String className) {
+        for (String exclude : excludes) {
+            if(className.startsWith(exclude)) {
+                return false;
+            }
+        }
+        if(includes.isEmpty()) {
+            return true;
+        }
+        for (String include : includes) {
+            if(className.startsWith(include)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> prefixes(Collection<String> patterns) {
+        List<String> prefixes = new ArrayList<>();
+        for (String pattern : patterns) {
+            String packageName = pattern.trim();
+            while(packageName.endsWith("*") || packageName.endsWith(".")) {
+                packageName = packageName.substring(0, packageName.length() - 1);
+            }
+            if(!packageName.isEmpty()) {
+                prefixes.add(packageName.replace('.', '/') + "/");
+            }
+        }
+        return prefixes;
+    }
+}
@@ -0,0 +1,149 @@
+package jaa.internal.allocation;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Fixed size records of primitive fields, kept either in a long array on the heap, or off the heap in direct
+ * memory, where they add nothing to what the garbage collector has to trace or copy.
+ *
+ * Each field takes a 64 bit word, and is addressed by record index and the index of the field's word within
+ * the record. Heap byte buffers are not used for the heap, since they are slow to read words from on Java 8.
+ * New buffers are zeroed, so zero fields can mark unused records.
+ *
+ * Direct memory is only given back once the garbage collector gets around to the buffer, and allocating more of
+ * it than the JVM allows calls System.gc() first; so buffers replaced by bigger ones are freed right away, see
+ * {@link #free()}.
+ */
+class RecordBuffer
+{
+    // Frees a direct buffer; null if this JVM has no way to, leaving it to the garbage collector
+    private static final MethodHandle FREE_DIRECT = freeDirect();
+
+    private final long[] words;
+    private final ByteBuffer buffer;
+    private final int recordWords;
+    private final int capacity;
+
+    RecordBuffer(int capacity, int recordWords, boolean offHeap) {
+        if((long) capacity * recordWords * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalStateException(String.format("Can't keep more than %d records of %d fields",
+                    Integer.MAX_VALUE / Long.BYTES / recordWords, recordWords));
+        }
+        this.words = offHeap ? null : new long[capacity * recordWords];
+        this.buffer = offHeap ? ByteBuffer.allocateDirect(capacity * recordWords * Long.BYTES).order(ByteOrder.nativeOrder()) : null;
+        this.recordWords = recordWords;
+        this.capacity = capacity;
+    }
+
+    /** The most records of the given number of fields a buffer can keep, a power of two like its capacities. */
+    static int maxCapacity(int recordWords) {
+        return Integer.highestOneBit(Integer.MAX_VALUE / Long.BYTES / recordWords);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isOffHeap() {
+        return words == null;
+    }
+
+    /** @return a buffer of the given capacity, on or off heap like this one, with the records of this one */
+    RecordBuffer copy(int capacity) {
+        RecordBuffer copy = new RecordBuffer(capacity, recordWords, isOffHeap());
+        int length = Math.min(this.capacity, capacity) * recordWords;
+        if(words != null) {
+            System.arraycopy(words, 0, copy.words, 0, length);
+        } else {
+            ByteBuffer records = buffer.duplicate();
+            records.clear();
+            records.limit(length * Long.BYTES);
+            copy.buffer.put(records);
+        }
+        return copy;
+    }
+
+    /** Give back the memory of this buffer now, if off the heap; it must not be used after. */
+    void free() {
+        if(buffer == null || FREE_DIRECT == null) {
+            return;
+        }
+        try {
+            FREE_DIRECT.invokeExact(buffer);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Unsafe#invokeCleaner from Java 9 on, the Cleaner of the buffer before. */
+    private static MethodHandle freeDirect() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return lookup.findVirtual(unsafeClass, "invokeCleaner", methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 9
+        }
+        try {
+            Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+            Class<?> cleaner = Class.forName("sun.misc.Cleaner");
+            MethodHandle cleanerOf = lookup.findVirtual(directBuffer, "cleaner", methodType(cleaner));
+            MethodHandle clean = lookup.findVirtual(cleaner, "clean", methodType(void.class));
+            return MethodHandles.filterReturnValue(cleanerOf, clean).asType(methodType(void.class, ByteBuffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    long getLong(int record, int field) {
+        int index = record * recordWords + field;
+        return words != null ? words[index] : buffer.getLong(index * Long.BYTES);
+    }
+
+    void putLong(int record, int field, long value) {
+        int index = record * recordWords + field;
+        if(words != null) {
+            words[index] = value;
+        } else {
+            buffer.putLong(index * Long.BYTES, value);
+        }
+    }
+
+    int getInt(int record, int field) {
+        return (int) getLong(record, field);
+    }
+
+    void putInt(int record, int field, int value) {
+        putLong(record, field, value);
+    }
+
+    double getDouble(int record, int field) {
+        return Double.longBitsToDouble(getLong(record, field));
+    }
+
+    void putDouble(int record, int field, double value) {
+        putLong(record, field, Double.doubleToRawLongBits(value));
+    }
+
+    void addDouble(int record, int field, double value) {
+        putDouble(record, field, getDouble(record, field) + value);
+    }
+
+    @Override
+    public String toString() {
+        return "RecordBuffer{" +
+                "capacity=" + capacity +
+                ", recordWords=" + recordWords +
+                ", offHeap=" + isOffHeap() +
+                '}';
+    }
+}
@@ -18,6 +18,11 @@ public class ReportSummarizer {
     // to retain the streaming parser since that handles very large allocations well.
     // However, the parser is duplicated in two methods here, doing almost the exact same
     // work, so at least that needs cleaning up.
+    // Binary reports are read with BinaryReport.Reader, which needs one pass, since it can hand out stack
+    // traces of the records it is at without decoding the rest of the report. Records of reports written a
+    // segment at a time are summarized per segment, rather than merged.
+
+    private static final int TOP = 10;
 
     enum State
     {
@@ -55,18 +60,31 @@ public class ReportSummarizer {
     }
 
     public static void main(String ... argv) throws IOException {
-        File allocationReport = new File("/home/jake/Downloads/alex/neo4j-enterprise-3.3.1/allocations-filter-ea.json");
+        if(argv.length != 1) {
+            System.err.println("Usage: ReportSummarizer <report>");
+            System.exit(1);
+        }
+        File allocationReport = new File(argv[0]);
 
-        JsonFactory jsonFactory = new JsonFactory();
-        jsonFactory.setCodec(new ObjectMapper());
+        long total;
+        Collection<Allocation> allocs;
+        if(BinaryReport.isBinary(allocationReport)) {
+            System.out.println("Finding top allocations..");
+            PriorityQueue<Allocation> top = new PriorityQueue<>(Comparator.comparingLong(a -> a.bytesAllocated));
+            total = getTopAllocs(allocationReport, top);
+            allocs = top;
+        } else {
+            JsonFactory jsonFactory = new JsonFactory();
+            jsonFactory.setCodec(new ObjectMapper());
 
-        System.out.println("Finding top allocations..");
-        TotalAndTopIndexes res = getAllocationsSortedByBytes(jsonFactory.createJsonParser(allocationReport), 0, 10);
-        long total = res.totalBytes;
-        Set<Integer> topAllocators = res.indexesOfTopAllocations;
+            System.out.println("Finding top allocations..");
+            TotalAndTopIndexes res = getAllocationsSortedByBytes(jsonFactory.createJsonParser(allocationReport), 0, TOP);
+            total = res.totalBytes;
+            Set<Integer> topAllocators = res.indexesOfTopAllocations;
 
-        System.out.println("Collecting report..");
-        LinkedList<Allocation> allocs = getTopAllocs(jsonFactory.createJsonParser(allocationReport), topAllocators);
+            System.out.println("Collecting report..");
+            allocs = getTopAllocs(jsonFactory.createJsonParser(allocationReport), topAllocators);
+        }
 
 
         System.out.println("Total: " + total / 1024 + "Kb");
@@ -82,6 +100,28 @@ public class ReportSummarizer {
                 });
     }
 
+    /** @return total bytes of the report */
+    private static long getTopAllocs(File binaryReport, PriorityQueue<Allocation> top) throws IOException {
+        long totalBytes = 0;
+        try(BinaryReport.Reader reader = new BinaryReport.Reader(binaryReport)) {
+            for(int index = 0; reader.next(); index++) {
+                long bytes = reader.totalBytes();
+                totalBytes += bytes;
+                if(top.size() < TOP || bytes > top.peek().bytesAllocated) {
+                    String[] stack = new String[Math.min(reader.depth(), 10)];
+                    for (int i = 0; i < stack.length; i++) {
+                        stack[i] = reader.frame(i);
+                    }
+                    top.add(new Allocation(index, reader.obj(), bytes, stack));
+                    if(top.size() > TOP) {
+                        top.poll();
+                    }
+                }
+            }
+        }
+        return totalBytes;
+    }
+
     private static LinkedList<Allocation> getTopAllocs(JsonParser parser, Set<Integer> topAllocators) throws IOException {
         LinkedList<Allocation> allocs = new LinkedList<>();
         State state = State.START;
@@ -120,8 +160,14 @@ public class ReportSummarizer {
                         case FIELD_NAME:
                             break;
                         case VALUE_NUMBER_INT:
+                        case VALUE_NUMBER_FLOAT:
                             break;
                         case VALUE_STRING:
+                        case VALUE_NULL:
+                            break;
+                        case START_OBJECT:
+                            // Sizes, rate and such, which the summary doesn't give
+                            parser.skipChildren();
                             break;
                         case START_ARRAY:
                             state = State.IN_STACK;
@@ -142,11 +188,18 @@ public class ReportSummarizer {
                                 bytesAllocated = parser.getLongValue();
                             }
                             break;
+                        case VALUE_NUMBER_FLOAT:
+                            break;
                         case VALUE_STRING:
                             if(parser.getCurrentName().equals("obj")) {
                                 obj = parser.getText();
                             }
                             break;
+                        case VALUE_NULL:
+                            break;
+                        case START_OBJECT:
+                            parser.skipChildren();
+                            break;
                         case START_ARRAY:
                             stack = new String[10];
                             state = State.IN_TOP_STACK;
@@ -228,7 +281,13 @@ public class ReportSummarizer {
                                 counts.add(new Allocation(counts.size(), null, bytes, null));
                             }
                             break;
+                        case VALUE_NUMBER_FLOAT:
+                            break;
                         case VALUE_STRING:
+                        case VALUE_NULL:
+                            break;
+                        case START_OBJECT:
+                            parser.skipChildren();
                             break;
                         case START_ARRAY:
                             state = State.IN_STACK;
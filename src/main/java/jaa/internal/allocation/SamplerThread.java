@@ -0,0 +1,13 @@
+package jaa.internal.allocation;
+
+/**
+ * A thread the sampler runs on its own behalf, like to write report segments; what these threads allocate is
+ * not part of what is measured, so the sampler ignores it.
+ */
+abstract class SamplerThread extends Thread
+{
+    SamplerThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+}
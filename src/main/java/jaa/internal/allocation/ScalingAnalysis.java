@@ -0,0 +1,174 @@
+package jaa.internal.allocation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Relates allocations to the parameters of an analysis. Given ledgers for the same method run with
+ * different values of a numeric parameter, this gives each allocation site's bytes per operation as a
+ * function of the parameter, along with the exponent of its growth: 0 for constant, 1 for linear, 2 for
+ * quadratic and so on, found by a least squares fit of log(bytes/op) against log(n).
+ */
+public class ScalingAnalysis
+{
+    /** Sites growing with an exponent above this are considered to grow superlinearly. */
+    public static final double SUPERLINEAR_EXPONENT = 1.2;
+
+    public static class Curve
+    {
+        private final String param;
+        private final Map<String, String> otherParams;
+        private final String obj;
+        private final List<String> stackTrace;
+        private final double[] n;
+        private final double[] bytesPerOp;
+        private final double exponent;
+
+        Curve(String param, Map<String, String> otherParams, String obj, List<String> stackTrace,
+              double[] n, double[] bytesPerOp) {
+            this.param = param;
+            this.otherParams = otherParams;
+            this.obj = obj;
+            this.stackTrace = stackTrace;
+            this.n = n;
+            this.bytesPerOp = bytesPerOp;
+            this.exponent = exponent(n, bytesPerOp);
+        }
+
+        /** The parameter allocations are related to. */
+        public String getParam() { return param; }
+        /** Values of the other parameters, which were the same for all points of the curve. */
+        public Map<String, String> getOtherParams() { return otherParams; }
+        public String getObj() { return obj; }
+        public List<String> getStackTrace() { return stackTrace; }
+        /** Parameter values, in ascending order. */
+        public double[] getN() { return n; }
+        /** Bytes allocated per operation at the site, at each parameter value. */
+        public double[] getBytesPerOp() { return bytesPerOp; }
+        /** Estimated growth exponent, or NaN if the site allocated at fewer than two parameter values. */
+        public double getExponent() { return exponent; }
+
+        public boolean isSuperlinear() {
+            return exponent > SUPERLINEAR_EXPONENT;
+        }
+
+        @Override
+        public String toString() {
+            return "Curve{" +
+                    "param='" + param + '\'' +
+                    ", obj='" + obj + '\'' +
+                    ", exponent=" + exponent +
+                    '}';
+        }
+    }
+
+    /**
+     * @param params the parameters of each run, same order as ledgers
+     * @param ledgers the allocations of each run
+     * @return a curve per allocation site for each numeric parameter that took at least two values,
+     *         with the other parameters held fixed
+     */
+    public static List<Curve> curves(List<Map<String, String>> params, List<AllocationLedger> ledgers) {
+        Set<String> names = new LinkedHashSet<>();
+        params.forEach(p -> names.addAll(p.keySet()));
+
+        List<Curve> curves = new ArrayList<>();
+        for (String name : names) {
+            if(!params.stream().allMatch(p -> isNumber(p.get(name)))) {
+                continue;
+            }
+
+            // Group runs where everything but this parameter was the same
+            Map<Map<String, String>, List<Integer>> groups = new LinkedHashMap<>();
+            for (int i = 0; i < params.size(); i++) {
+                Map<String, String> others = new LinkedHashMap<>(params.get(i));
+                others.remove(name);
+                groups.computeIfAbsent(others, k -> new ArrayList<>()).add(i);
+            }
+
+            for (Map.Entry<Map<String, String>, List<Integer>> group : groups.entrySet()) {
+                List<Integer> runs = new ArrayList<>(group.getValue());
+                if(runs.size() < 2) {
+                    continue;
+                }
+                runs.sort((a, b) -> Double.compare(
+                        Double.parseDouble(params.get(a).get(name)),
+                        Double.parseDouble(params.get(b).get(name))));
+                curves.addAll(curves(name, group.getKey(), runs, params, ledgers));
+            }
+        }
+        return curves;
+    }
+
+    private static List<Curve> curves(String name, Map<String, String> others, List<Integer> runs,
+                                      List<Map<String, String>> params, List<AllocationLedger> ledgers) {
+        double[] n = new double[runs.size()];
+        Map<List<Object>, double[]> sites = new LinkedHashMap<>();
+        Map<List<Object>, AllocationLedger.Record> siteRecords = new HashMap<>();
+        for (int i = 0; i < runs.size(); i++) {
+            int run = runs.get(i);
+            n[i] = Double.parseDouble(params.get(run).get(name));
+            final int point = i;
+            ledgers.get(run).records().forEach(r -> {
+                List<Object> site = siteKey(r);
+                siteRecords.putIfAbsent(site, r);
+                sites.computeIfAbsent(site, k -> new double[runs.size()])[point] += r.getBytesPerOp();
+            });
+        }
+
+        List<Curve> curves = new ArrayList<>();
+        sites.forEach((site, bytesPerOp) -> {
+            AllocationLedger.Record r = siteRecords.get(site);
+            curves.add(new Curve(name, Collections.unmodifiableMap(others), r.getObj(), r.getStackTrace(), n, bytesPerOp));
+        });
+        return curves;
+    }
+
+    private static List<Object> siteKey(AllocationLedger.Record r) {
+        List<Object> key = new ArrayList<>();
+        key.add(r.getObj());
+        key.add(r.getStackTrace());
+        return key;
+    }
+
+    static double exponent(double[] n, double[] y) {
+        // Points where nothing was allocated have no logarithm; the fit is over the rest
+        int points = 0;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (int i = 0; i < n.length; i++) {
+            if(n[i] <= 0 || y[i] <= 0) {
+                continue;
+            }
+            double x = Math.log(n[i]);
+            double logY = Math.log(y[i]);
+            points++;
+            sumX += x;
+            sumY += logY;
+            sumXX += x * x;
+            sumXY += x * logY;
+        }
+        double denominator = points * sumXX - sumX * sumX;
+        if(points < 2 || denominator == 0) {
+            return Double.NaN;
+        }
+        return (points * sumXY - sumX * sumY) / denominator;
+    }
+
+    private static boolean isNumber(String value) {
+        if(value == null) {
+            return false;
+        }
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
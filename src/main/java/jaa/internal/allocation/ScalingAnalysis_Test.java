@@ -0,0 +1,65 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScalingAnalysis_Test {
+    @Test
+    public void shouldFlagSitesThatGrowFasterThanLinearly() throws Exception
+    {
+        // Given
+        List<Map<String, String>> params = new ArrayList<>();
+        List<AllocationLedger> ledgers = new ArrayList<>();
+        for (long n : new long[]{10, 100, 1000}) {
+            AllocationLedger ledger = new AllocationLedger();
+            ledger.record("java/lang/Object", 16, asList("a.Constant"));
+            ledger.record("[J", 8 * n, asList("a.Linear"));
+            ledger.record("[J", 8 * n * n, asList("a.Quadratic"));
+            params.add(Collections.singletonMap("n", Long.toString(n)));
+            ledgers.add(ledger);
+        }
+
+        // When
+        List<ScalingAnalysis.Curve> curves = ScalingAnalysis.curves(params, ledgers);
+
+        // Then
+        assertEquals(3, curves.size());
+        ScalingAnalysis.Curve constant = curve(curves, "a.Constant");
+        ScalingAnalysis.Curve linear = curve(curves, "a.Linear");
+        ScalingAnalysis.Curve quadratic = curve(curves, "a.Quadratic");
+        assertEquals(0.0, constant.getExponent(), 0.001);
+        assertEquals(1.0, linear.getExponent(), 0.001);
+        assertEquals(2.0, quadratic.getExponent(), 0.001);
+        assertFalse(linear.isSuperlinear());
+        assertTrue(quadratic.isSuperlinear());
+    }
+
+    @Test
+    public void shouldIgnoreParametersThatAreNotNumeric() throws Exception
+    {
+        // Given
+        AllocationLedger ledger = new AllocationLedger();
+        ledger.record("java/lang/Object", 16, asList("a.B"));
+
+        // When
+        List<ScalingAnalysis.Curve> curves = ScalingAnalysis.curves(
+                asList(Collections.singletonMap("kind", "small"), Collections.singletonMap("kind", "large")),
+                asList(ledger, ledger));
+
+        // Then
+        assertTrue(curves.isEmpty());
+    }
+
+    private static ScalingAnalysis.Curve curve(List<ScalingAnalysis.Curve> curves, String frame) {
+        return curves.stream().filter(c -> c.getStackTrace().contains(frame)).findFirst().get();
+    }
+}
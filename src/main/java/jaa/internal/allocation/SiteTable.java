@@ -0,0 +1,427 @@
+package jaa.internal.allocation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocation counts by allocation site, kept in fixed size records of primitive fields so that recording an
+ * allocation at a site seen before does not allocate. The records can be kept off the heap, see
+ * {@link RecordBuffer}, so that however many sites a program allocates at, the table adds nothing to the heap
+ * of the program it measures but the strings of object descriptions.
+ *
+ * Stack traces are stored as a tree of frame ids, walked from the allocating frame outwards, so traces share
+ * storage for the frames they have in common. A trace is identified by the tree node of its last frame.
+ * Both the tree and the sites are open addressing hash tables, keyed by 64 bit keys combining a node with a
+ * frame id or an object description id.
+ *
+ * Allocations at a site are counted separately per power of two bucket of their size, see {@link SizeHistogram},
+ * so a site allocating objects of a single size takes a single slot, and sizes cost nothing to keep track of.
+ *
+ * If asked to, sites also count bytes per time window, in a ring of the last {@link AllocationRate#WINDOWS}
+ * windows kept in the site's record, along with the most bytes of any window the ring has let go of. Windows are
+ * numbered by the caller, so finding the window of an allocation is up to whatever clock suits it.
+ *
+ * There is only so much room for sites, traces and their records; once out of it, allocations at sites not seen
+ * before are counted as dropped, under {@link #DROPPED_SITES}, rather than at their site.
+ *
+ * Not thread safe; the sampler keeps one table per thread, and merges them when sampling stops.
+ */
+class SiteTable
+{
+    /** Node of the empty trace, the node walks through the tree start from. */
+    static final int ROOT = 0;
+    /** Node of traces the tree has no room for; allocations with it are counted as dropped. */
+    static final int DROPPED = -1;
+    /** Object description of the record allocations at sites there was no room for are counted under. */
+    static final String DROPPED_SITES = "(dropped sites)";
+
+    private static final float MAX_LOAD = 0.5f;
+    private static final int INITIAL_SITES = 256;
+
+    // Trace tree nodes, by node id
+    private static final int NODE_PARENT = 0, NODE_FRAME = 1, NODE_FIELDS = 2;
+    private RecordBuffer nodes;
+    private int nodeCount = 1;
+
+    // Children in the trace tree, keyed by parent node and frame id; key 0 marks an empty slot
+    private static final int CHILD_KEY = 0, CHILD_NODE = 1, CHILD_FIELDS = 2;
+    private RecordBuffer children;
+
+    // Sites, keyed by trace node, object description and size bucket; node 0 marks an empty slot, so nodes are
+    // stored plus one. Counts are weighted when allocations are sampled, see ByteIntervalSampling
+    private static final int SITE_NODE = 0, SITE_OBJECT = 1, SITE_SIZE_BUCKET = 2, SITE_MAX_SIZE = 3,
+            SITE_BYTES = 4, SITE_ALLOCS = 5, SITE_BYTES_VARIANCE = 6, SITE_FIELDS = 7;
+    // Fields following those of every site, when counting bytes per window: the last window recorded, the most
+    // bytes of a window let go of, and then bytes per window in a ring, window w at SITE_RING + w % WINDOWS
+    private static final int SITE_WINDOW = 7, SITE_EVICTED_PEAK = 8, SITE_RING = 9;
+    private static final int WINDOWS = AllocationRate.WINDOWS;
+    private final long windowMillis;
+    private final int siteFields;
+    private RecordBuffer sites;
+    private int siteCount;
+    private final int maxSites;
+    private double droppedBytes;
+    private double droppedAllocs;
+
+    // Object descriptions, by the ids sites refer to them by
+    private final Map<String, Integer> objectIds = new HashMap<>();
+    private String[] objects = new String[64];
+
+    SiteTable() {
+        this(false);
+    }
+
+    /** @param offHeap keep the table in direct memory, rather than on the heap */
+    SiteTable(boolean offHeap) {
+        this(offHeap, 0);
+    }
+
+    /**
+     * @param offHeap keep the table in direct memory, rather than on the heap
+     * @param windowMillis length of the windows the caller numbers, to count bytes per window; 0 not to
+     */
+    SiteTable(boolean offHeap, long windowMillis) {
+        this(offHeap, windowMillis, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param offHeap keep the table in direct memory, rather than on the heap
+     * @param windowMillis length of the windows the caller numbers, to count bytes per window; 0 not to
+     * @param maxSites most sites to keep, if there is room for that many
+     */
+    SiteTable(boolean offHeap, long windowMillis, int maxSites) {
+        this.windowMillis = windowMillis;
+        this.siteFields = windowMillis > 0 ? SITE_RING + WINDOWS : SITE_FIELDS;
+        this.maxSites = Math.min(maxSites, (int) (RecordBuffer.maxCapacity(siteFields) * MAX_LOAD));
+        nodes = new RecordBuffer(256, NODE_FIELDS, offHeap);
+        children = new RecordBuffer(512, CHILD_FIELDS, offHeap);
+        sites = new RecordBuffer(INITIAL_SITES, siteFields, offHeap);
+    }
+
+    /** @return the node of the trace made of the given node's trace, followed by the given frame */
+    int child(int node, int frameId) {
+        if(node == DROPPED) {
+            return DROPPED;
+        }
+        long key = ((long) node << 32) | (frameId & 0xFFFFFFFFL);
+        int mask = children.capacity() - 1;
+        for (int slot = (int) mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long slotKey = children.getLong(slot, CHILD_KEY);
+            if(slotKey == key) {
+                return children.getInt(slot, CHILD_NODE);
+            }
+            if(slotKey == 0) {
+                return addChild(slot, key, node, frameId);
+            }
+        }
+    }
+
+    void record(String objectDescription, int node, long bytes, long allocs) {
+        record(objectDescription, node, bytes, allocs, 0);
+    }
+
+    /**
+     * Record sampled allocations, all of the same size.
+     * @param bytes estimated bytes the sample stands for
+     * @param allocs estimated allocations the sample stands for
+     * @param bytesVariance variance the sample adds to the estimate of bytes
+     */
+    void record(String objectDescription, int node, double bytes, double allocs, double bytesVariance) {
+        record(objectDescription, node, bytes, allocs, bytesVariance, 0);
+    }
+
+    /**
+     * Record sampled allocations, all of the same size.
+     * @param bytes estimated bytes the sample stands for
+     * @param allocs estimated allocations the sample stands for
+     * @param bytesVariance variance the sample adds to the estimate of bytes
+     * @param window window the allocations were made in; never less than that of earlier allocations
+     */
+    void record(String objectDescription, int node, double bytes, double allocs, double bytesVariance, int window) {
+        if(node == DROPPED) {
+            drop(bytes, allocs);
+            return;
+        }
+        long size = allocs == 0 ? 0 : Math.round(bytes / allocs);
+        int sizeBucket = SizeHistogram.bucket(size);
+        int object = objectId(objectDescription);
+        int mask = sites.capacity() - 1;
+        for (int slot = (int) mix(siteKey(node, object, sizeBucket)) & mask; ; slot = (slot + 1) & mask) {
+            int slotNode = sites.getInt(slot, SITE_NODE);
+            if(slotNode == 0) {
+                if(siteCount == maxSites) {
+                    drop(bytes, allocs);
+                    return;
+                }
+                addSite(slot, object, node, sizeBucket, size, bytes, allocs, bytesVariance, window);
+                return;
+            }
+            if(slotNode == node + 1 && sites.getInt(slot, SITE_OBJECT) == object
+                    && sites.getInt(slot, SITE_SIZE_BUCKET) == sizeBucket) {
+                sites.addDouble(slot, SITE_BYTES, bytes);
+                sites.addDouble(slot, SITE_ALLOCS, allocs);
+                sites.addDouble(slot, SITE_BYTES_VARIANCE, bytesVariance);
+                if(size > sites.getLong(slot, SITE_MAX_SIZE)) {
+                    sites.putLong(slot, SITE_MAX_SIZE, size);
+                }
+                if(windowMillis > 0) {
+                    recordWindow(slot, window, bytes);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param depth stack traces are cut or padded with empty frames to this length, like traces in ledgers are
+     */
+    AllocationLedger toLedger(FrameIds frames, int depth) {
+        AllocationLedger ledger = new AllocationLedger();
+        addTo(ledger, frames, depth);
+        return ledger;
+    }
+
+    /**
+     * Add the allocations in this table to a ledger, merging them with allocations already there.
+     * @param depth stack traces are cut or padded with empty frames to this length, like traces in ledgers are
+     */
+    void addTo(AllocationLedger ledger, FrameIds frames, int depth) {
+        addTo(ledger, frames, depth, -1);
+    }
+
+    /**
+     * Add the allocations in this table to a ledger, merging them with allocations already there.
+     * @param depth stack traces are cut or padded with empty frames to this length, like traces in ledgers are
+     * @param thread index of the analysis thread the allocations were made by, or -1 if not an analysis thread
+     */
+    void addTo(AllocationLedger ledger, FrameIds frames, int depth, int thread) {
+        List<String> stackTrace = new ArrayList<>(depth);
+        for (int slot = 0; slot < sites.capacity(); slot++) {
+            int node = sites.getInt(slot, SITE_NODE);
+            if(node == 0) {
+                continue;
+            }
+            stackTrace(node - 1, frames, depth, stackTrace);
+            // Estimates are rounded once per site and size bucket, so rounding doesn't add up to a bias
+            long allocs = Math.round(sites.getDouble(slot, SITE_ALLOCS));
+            long bytes = Math.round(sites.getDouble(slot, SITE_BYTES));
+            SizeHistogram sizes = new SizeHistogram();
+            if(allocs > 0) {
+                sizes.add(sites.getInt(slot, SITE_SIZE_BUCKET), allocs, sites.getLong(slot, SITE_MAX_SIZE), bytes);
+            }
+            AllocationLedger.Record record = ledger.record(objects[sites.getInt(slot, SITE_OBJECT)], bytes, allocs,
+                    sites.getDouble(slot, SITE_BYTES_VARIANCE), sizes, stackTrace);
+            if(windowMillis > 0) {
+                record.getRate().add(rate(slot));
+            }
+            if(thread >= 0) {
+                record.addThreadBytes(thread, bytes);
+            }
+        }
+        if(droppedAllocs > 0) {
+            stackTrace(ROOT, frames, depth, stackTrace);
+            AllocationLedger.Record record = ledger.record(DROPPED_SITES, Math.round(droppedBytes), Math.round(droppedAllocs), stackTrace);
+            if(thread >= 0) {
+                record.addThreadBytes(thread, Math.round(droppedBytes));
+            }
+        }
+    }
+
+    /** Estimated allocations at sites there was no room for, since the table was created or last cleared. */
+    double droppedAllocs() {
+        return droppedAllocs;
+    }
+
+    private void drop(double bytes, double allocs) {
+        droppedBytes += bytes;
+        droppedAllocs += allocs;
+    }
+
+    private AllocationRate rate(int slot) {
+        AllocationRate rate = new AllocationRate(windowMillis);
+        int last = sites.getInt(slot, SITE_WINDOW);
+        for (int window = Math.max(0, last - WINDOWS + 1); window <= last; window++) {
+            rate.add(window, Math.round(sites.getDouble(slot, SITE_RING + window % WINDOWS)));
+        }
+        rate.addPeak(Math.round(sites.getDouble(slot, SITE_EVICTED_PEAK)));
+        return rate;
+    }
+
+    private void recordWindow(int slot, int window, double bytes) {
+        int last = sites.getInt(slot, SITE_WINDOW);
+        if(window > last) {
+            // Moving the ring on to this window lets go of the windows a ring's length before the ones skipped
+            double evictedPeak = sites.getDouble(slot, SITE_EVICTED_PEAK);
+            for (int next = last + 1; next <= Math.min(window, last + WINDOWS); next++) {
+                int field = SITE_RING + next % WINDOWS;
+                evictedPeak = Math.max(evictedPeak, sites.getDouble(slot, field));
+                sites.putDouble(slot, field, 0);
+            }
+            sites.putDouble(slot, SITE_EVICTED_PEAK, evictedPeak);
+            sites.putInt(slot, SITE_WINDOW, window);
+            last = window;
+        }
+        sites.addDouble(slot, SITE_RING + last % WINDOWS, bytes);
+    }
+
+    /**
+     * Forget all allocations recorded so far, giving back the memory of the sites they were recorded at. The
+     * trace tree is kept, since it is bounded by the code paths that allocate rather than by how often they do.
+     */
+    void clearSites() {
+        RecordBuffer old = sites;
+        sites = new RecordBuffer(INITIAL_SITES, siteFields, old.isOffHeap());
+        old.free();
+        siteCount = 0;
+        droppedBytes = 0;
+        droppedAllocs = 0;
+    }
+
+    /**
+     * @return the stack trace of the given node, outermost frame first
+     * @param depth the trace is cut or padded with empty frames to this length, like traces in ledgers are
+     */
+    List<String> stackTrace(int node, FrameIds frames, int depth) {
+        List<String> stackTrace = new ArrayList<>(depth);
+        stackTrace(node, frames, depth, stackTrace);
+        return stackTrace;
+    }
+
+    private void stackTrace(int node, FrameIds frames, int depth, List<String> out) {
+        stackTrace(node, frames, out);
+        while(out.size() > depth) {
+            out.remove(out.size() - 1);
+        }
+        while(out.size() < depth) {
+            out.add("");
+        }
+    }
+
+    private void stackTrace(int node, FrameIds frames, List<String> out) {
+        out.clear();
+        for (; node != ROOT; node = nodes.getInt(node, NODE_PARENT)) {
+            out.add(frames.name(nodes.getInt(node, NODE_FRAME)));
+        }
+        // Walking up the tree gives the outermost frame first
+        for (int i = 0, j = out.size() - 1; i < j; i++, j--) {
+            String frame = out.get(i);
+            out.set(i, out.get(j));
+            out.set(j, frame);
+        }
+    }
+
+    private int objectId(String objectDescription) {
+        // String caches its hash code, and descriptions are mostly the same instances, so this is cheap
+        Integer id = objectIds.get(objectDescription);
+        return id != null ? id : addObject(objectDescription);
+    }
+
+    private int addObject(String objectDescription) {
+        int id = objectIds.size();
+        if(id == objects.length) {
+            objects = Arrays.copyOf(objects, id * 2);
+        }
+        objects[id] = objectDescription;
+        objectIds.put(objectDescription, id);
+        return id;
+    }
+
+    private int addChild(int slot, long key, int parent, int frameId) {
+        // Children run out of room before nodes do, since they are kept at most half full
+        if(nodeCount > RecordBuffer.maxCapacity(CHILD_FIELDS) * MAX_LOAD) {
+            return DROPPED;
+        }
+        if(nodeCount == nodes.capacity()) {
+            RecordBuffer old = nodes;
+            nodes = old.copy(nodeCount * 2);
+            old.free();
+        }
+        int node = nodeCount++;
+        nodes.putInt(node, NODE_PARENT, parent);
+        nodes.putInt(node, NODE_FRAME, frameId);
+
+        children.putLong(slot, CHILD_KEY, key);
+        children.putInt(slot, CHILD_NODE, node);
+        if(node > children.capacity() * MAX_LOAD) {
+            growChildren();
+        }
+        return node;
+    }
+
+    private void growChildren() {
+        RecordBuffer old = children;
+        children = new RecordBuffer(old.capacity() * 2, CHILD_FIELDS, old.isOffHeap());
+        int mask = children.capacity() - 1;
+        for (int i = 0; i < old.capacity(); i++) {
+            long key = old.getLong(i, CHILD_KEY);
+            if(key == 0) {
+                continue;
+            }
+            int slot = (int) mix(key) & mask;
+            while(children.getLong(slot, CHILD_KEY) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            children.putLong(slot, CHILD_KEY, key);
+            children.putInt(slot, CHILD_NODE, old.getInt(i, CHILD_NODE));
+        }
+        old.free();
+    }
+
+    private void addSite(int slot, int object, int node, int sizeBucket, long size,
+                         double bytes, double allocs, double bytesVariance, int window) {
+        sites.putInt(slot, SITE_NODE, node + 1);
+        sites.putInt(slot, SITE_OBJECT, object);
+        sites.putInt(slot, SITE_SIZE_BUCKET, sizeBucket);
+        sites.putLong(slot, SITE_MAX_SIZE, size);
+        sites.putDouble(slot, SITE_BYTES, bytes);
+        sites.putDouble(slot, SITE_ALLOCS, allocs);
+        sites.putDouble(slot, SITE_BYTES_VARIANCE, bytesVariance);
+        if(windowMillis > 0) {
+            sites.putInt(slot, SITE_WINDOW, window);
+            sites.putDouble(slot, SITE_RING + window % WINDOWS, bytes);
+        }
+        if(++siteCount > sites.capacity() * MAX_LOAD) {
+            growSites();
+        }
+    }
+
+    private void growSites() {
+        RecordBuffer old = sites;
+        sites = new RecordBuffer(old.capacity() * 2, siteFields, old.isOffHeap());
+        int mask = sites.capacity() - 1;
+        for (int i = 0; i < old.capacity(); i++) {
+            int node = old.getInt(i, SITE_NODE);
+            if(node == 0) {
+                continue;
+            }
+            int object = old.getInt(i, SITE_OBJECT);
+            int sizeBucket = old.getInt(i, SITE_SIZE_BUCKET);
+            int slot = (int) mix(siteKey(node - 1, object, sizeBucket)) & mask;
+            while(sites.getInt(slot, SITE_NODE) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            for (int field = 0; field < siteFields; field++) {
+                sites.putLong(slot, field, old.getLong(i, field));
+            }
+        }
+        old.free();
+    }
+
+    private static long siteKey(int node, int object, int sizeBucket) {
+        return ((long) node << 32) ^ ((long) sizeBucket << 56) ^ (object & 0xFFFFFFFFL);
+    }
+
+    /** Spread the bits of a key, so keys differing only in their high bits end up in different slots. */
+    private static long mix(long key) {
+        // Finalizer of MurmurHash3
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,275 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class SiteTable_Test {
+    @Test
+    public void shouldGiveTheSameNodeForTheSameTrace() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+
+        // When
+        int trace = trace(sites, frames, String.class, List.class, Thread.class);
+        int same = trace(sites, frames, String.class, List.class, Thread.class);
+        int sharedPrefix = trace(sites, frames, String.class, List.class, Object.class);
+
+        // Then
+        assertEquals(trace, same);
+        assertNotEquals(trace, sharedPrefix);
+    }
+
+    @Test
+    public void shouldConvertToLedgerWithPaddedStackTraces() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+        int trace = trace(sites, frames, String.class, List.class);
+        sites.record("java/lang/Object", trace, 16, 1);
+        sites.record("java/lang/Object", trace, 16, 1);
+        sites.record("[J", trace, 1024, 1);
+
+        // When
+        AllocationLedger ledger = sites.toLedger(frames, 3);
+
+        // Then
+        assertEquals(1056, ledger.totalBytes());
+        assertEquals(3, ledger.totalAllocs());
+        ledger.records().forEach(r ->
+                assertEquals(asList("java.lang.String", "java.util.List", ""), r.getStackTrace()));
+    }
+
+    @Test
+    public void shouldMergeTablesIntoOneLedger() throws Exception
+    {
+        // Given tables from two threads, sharing frame ids
+        FrameIds frames = new FrameIds();
+        SiteTable first = new SiteTable();
+        SiteTable second = new SiteTable();
+        second.child(SiteTable.ROOT, frames.id(Thread.class)); // so the same trace has different nodes
+        first.record("java/lang/Object", trace(first, frames, String.class, List.class), 16, 1);
+        second.record("java/lang/Object", trace(second, frames, String.class, List.class), 16, 1);
+        second.record("[J", trace(second, frames, String.class), 1024, 1);
+
+        // When
+        AllocationLedger ledger = new AllocationLedger();
+        first.addTo(ledger, frames, 2);
+        second.addTo(ledger, frames, 2);
+
+        // Then
+        assertEquals(2, ledger.records().count());
+        assertEquals(1056, ledger.totalBytes());
+        assertEquals(3, ledger.totalAllocs());
+    }
+
+    @Test
+    public void shouldCountBytesOfEachAnalysisThread() throws Exception
+    {
+        // Given tables of the first and third analysis thread, and of a thread that isn't one
+        FrameIds frames = new FrameIds();
+        SiteTable first = new SiteTable();
+        SiteTable third = new SiteTable();
+        SiteTable other = new SiteTable();
+        first.record("java/lang/Object", trace(first, frames, String.class), 16, 1);
+        third.record("java/lang/Object", trace(third, frames, String.class), 48, 3);
+        third.record("[J", trace(third, frames, List.class), 1024, 1);
+        other.record("java/lang/Object", trace(other, frames, String.class), 16, 1);
+
+        // When
+        AllocationLedger ledger = new AllocationLedger();
+        first.addTo(ledger, frames, 1, 0);
+        third.addTo(ledger, frames, 1, 2);
+        other.addTo(ledger, frames, 1, -1);
+
+        // Then
+        assertArrayEquals(new long[]{16, 0, 1072}, ledger.threadBytes());
+        assertArrayEquals(new long[]{0, 0, 1024},
+                ledger.records().filter(r -> r.getObj().equals("[J")).findFirst().get().getThreadBytes());
+    }
+
+    @Test
+    public void shouldKeepSizesOfAllocationsAtEachSite() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+        int trace = trace(sites, frames, String.class);
+        for (int i = 0; i < 99; i++) {
+            sites.record("[B", trace, 64, 1);
+        }
+        sites.record("[B", trace, 64 << 20, 1);
+
+        // When
+        AllocationLedger ledger = sites.toLedger(frames, 1);
+
+        // Then sizes are counted apart, but end up in one record
+        assertEquals(1, ledger.records().count());
+        SizeHistogram sizes = ledger.records().findFirst().get().getSizes();
+        assertEquals(100, sizes.getCount());
+        assertEquals(64, sizes.percentile(50));
+        assertEquals(64 << 20, sizes.percentile(100));
+    }
+
+    @Test
+    public void shouldCountBytesPerWindow() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable(false, 100);
+        int trace = trace(sites, frames, String.class);
+        sites.record("[B", trace, 64, 1, 0, 0);
+        sites.record("[B", trace, 1 << 20, 1, 0, 3);
+        // More windows later than the ring keeps, in two size buckets
+        sites.record("[B", trace, 64, 1, 0, 3 + AllocationRate.WINDOWS);
+        sites.record("[B", trace, 1024, 1, 0, 3 + AllocationRate.WINDOWS);
+
+        // When
+        AllocationRate rate = sites.toLedger(frames, 1).rate();
+
+        // Then size buckets of the site add up per window, and the burst let go of still gives the peak
+        assertEquals(100, rate.getWindowMillis());
+        assertEquals(3 + AllocationRate.WINDOWS, rate.getFirstWindow());
+        assertArrayEquals(new long[]{64 + 1024}, rate.getWindowBytes());
+        assertEquals(1 << 20, rate.getPeakWindowBytes());
+        assertEquals(10_485_760.0, rate.getPeakBytesPerSecond(), 0.001);
+    }
+
+    @Test
+    public void shouldKeepAllSitesWhenGrowing() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+        Class<?>[] classes = {String.class, List.class, Thread.class, Object.class, Integer.class, Long.class};
+
+        // When
+        int recorded = 0;
+        for (Class<?> a : classes) {
+            for (Class<?> b : classes) {
+                for (Class<?> c : classes) {
+                    for (Class<?> d : classes) {
+                        sites.record("java/lang/Object", trace(sites, frames, a, b, c, d), 16, 1);
+                        recorded++;
+                    }
+                }
+            }
+        }
+
+        // Then
+        AllocationLedger ledger = sites.toLedger(frames, 4);
+        assertEquals(recorded, ledger.records().count());
+        assertEquals(recorded * 16, ledger.totalBytes());
+    }
+
+    @Test
+    public void shouldCountTheSameOffHeap() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable onHeap = new SiteTable(false);
+        SiteTable offHeap = new SiteTable(true);
+        Class<?>[] classes = {String.class, List.class, Thread.class, Object.class, Integer.class, Long.class};
+
+        // When enough is recorded for the tables to grow
+        for (SiteTable sites : asList(onHeap, offHeap)) {
+            for (Class<?> a : classes) {
+                for (Class<?> b : classes) {
+                    for (Class<?> c : classes) {
+                        int trace = trace(sites, frames, a, b, c);
+                        sites.record("java/lang/Object", trace, 16, 1);
+                        sites.record("[J", trace, 1024, 1);
+                        sites.record("[J", trace, 1024, 1);
+                    }
+                }
+            }
+        }
+
+        // Then
+        AllocationLedger expected = onHeap.toLedger(frames, 3);
+        AllocationLedger actual = offHeap.toLedger(frames, 3);
+        assertEquals(expected.records().count(), actual.records().count());
+        assertEquals(expected.totalBytes(), actual.totalBytes());
+        assertEquals(expected.totalAllocs(), actual.totalAllocs());
+        assertEquals(0, actual.subtract(expected).records().count());
+    }
+
+    @Test
+    public void shouldCountAllocationsAtSitesBeyondRoomAsDropped() throws Exception
+    {
+        // Given
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable(true, 0, 2);
+        int string = trace(sites, frames, String.class), list = trace(sites, frames, List.class);
+
+        // When
+        sites.record("java/lang/Object", string, 16, 1);
+        sites.record("java/lang/Object", list, 16, 1);
+        sites.record("[J", list, 1024, 1);
+        sites.record("[J", SiteTable.DROPPED, 1024, 1);
+        sites.record("java/lang/Object", string, 16, 1);
+
+        // Then
+        AllocationLedger ledger = sites.toLedger(frames, 1);
+        assertEquals(3, ledger.records().count());
+        assertEquals(2096, ledger.totalBytes());
+        assertEquals(2, sites.droppedAllocs(), 0.001);
+        assertEquals(2048, ledger.records().filter(r -> r.getObj().equals(SiteTable.DROPPED_SITES))
+                .mapToLong(AllocationLedger.Record::getTotalBytes).sum());
+
+        // And when cleared, there is room again
+        sites.clearSites();
+        sites.record("[J", list, 1024, 1);
+        assertEquals(0, sites.droppedAllocs(), 0.001);
+        assertEquals(1024, sites.toLedger(frames, 1).totalBytes());
+    }
+
+    @Test
+    public void shouldNotAllocateWhenRecordingKnownSites() throws Exception
+    {
+        // Given
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        FrameIds frames = new FrameIds();
+        SiteTable sites = new SiteTable();
+        int string = frames.id(String.class), list = frames.id(List.class), thread = frames.id(Thread.class);
+        sites.record("java/lang/Object", sites.child(sites.child(sites.child(SiteTable.ROOT, string), list), thread), 16, 1);
+
+        // When; compiling and deoptimizing can allocate now and then, but allocating per record would show in
+        // every round, so the round allocating least is the one that tells
+        long overhead = -threads.getThreadAllocatedBytes(threadId) + threads.getThreadAllocatedBytes(threadId);
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            recordKnownSites(sites, frames);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(threadId) - before - overhead);
+        }
+
+        // Then
+        assertEquals(0, allocated);
+    }
+
+    private static void recordKnownSites(SiteTable sites, FrameIds frames) {
+        for (int i = 0; i < 10_000; i++) {
+            int node = sites.child(sites.child(sites.child(SiteTable.ROOT, frames.id(String.class)), frames.id(List.class)), frames.id(Thread.class));
+            sites.record("java/lang/Object", node, 16, 1);
+        }
+    }
+
+    private static int trace(SiteTable sites, FrameIds frames, Class<?> ... stack) {
+        int node = SiteTable.ROOT;
+        for (Class<?> frame : stack) {
+            node = sites.child(node, frames.id(frame));
+        }
+        return node;
+    }
+}
@@ -0,0 +1,186 @@
+package jaa.internal.allocation;
+
+import java.util.Arrays;
+
+/**
+ * Number of allocations by size, in power of two buckets: bucket 0 counts allocations of 0 bytes, and bucket b
+ * allocations of 2^(b-1) up to 2^b - 1 bytes. Only buckets up to the largest size seen are stored, so a
+ * histogram of a site allocating objects of one size is a handful of longs.
+ *
+ * Each bucket also keeps the largest size counted in it, and percentiles are given as that; so they are within
+ * a factor two of the exact percentile, and exact for buckets that only count a single size. Each bucket also
+ * keeps the total of the sizes counted in it, so what allocations above some power of two add up to is exact,
+ * see {@link AllocationClasses}.
+ */
+public class SizeHistogram
+{
+    static final int BUCKETS = 64;
+
+    // Guarded by this
+    private long[] counts = new long[0];
+    private long[] maxes = new long[0];
+    private long[] bytes = new long[0];
+
+    public SizeHistogram() {
+
+    }
+
+    /**
+     * Histogram without totals per bucket, like those of reports written by older versions; totals are taken to
+     * be as if all allocations in a bucket were of its largest size.
+     * @param counts allocations per bucket, as given by {@link #getCounts()}
+     * @param maxes largest size per bucket, as given by {@link #getMaxes()}
+     */
+    public SizeHistogram(long[] counts, long[] maxes) {
+        this(counts, maxes, null);
+    }
+
+    /**
+     * @param counts allocations per bucket, as given by {@link #getCounts()}
+     * @param maxes largest size per bucket, as given by {@link #getMaxes()}
+     * @param bytes total size per bucket, as given by {@link #getBytes()}, or null if not known
+     */
+    public SizeHistogram(long[] counts, long[] maxes, long[] bytes) {
+        for (int bucket = 0; bucket < Math.min(counts.length, BUCKETS); bucket++) {
+            if(counts[bucket] != 0) {
+                long max = bucket < maxes.length ? maxes[bucket] : bucketLimit(bucket);
+                add(bucket, counts[bucket], max, bytes != null && bucket < bytes.length ? bytes[bucket] : counts[bucket] * max);
+            }
+        }
+    }
+
+    /** Histogram of the given number of allocations of the same size; empty if there are none. */
+    public static SizeHistogram of(long size, long count) {
+        SizeHistogram histogram = new SizeHistogram();
+        if(count > 0) {
+            histogram.add(bucket(size), count, size, size * count);
+        }
+        return histogram;
+    }
+
+    static int bucket(long size) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(0, size));
+    }
+
+    /** Largest size counted in the given bucket. */
+    static long bucketLimit(int bucket) {
+        // Overflows to Long.MAX_VALUE for the last bucket
+        return (1L << bucket) - 1;
+    }
+
+    /**
+     * @param count allocations to add to the bucket
+     * @param maxSize largest size among them
+     * @param bytes total size of them
+     */
+    synchronized void add(int bucket, long count, long maxSize, long bytes) {
+        if(bucket >= counts.length) {
+            counts = Arrays.copyOf(counts, bucket + 1);
+            maxes = Arrays.copyOf(maxes, bucket + 1);
+            this.bytes = Arrays.copyOf(this.bytes, bucket + 1);
+        }
+        counts[bucket] += count;
+        maxes[bucket] = Math.max(maxes[bucket], maxSize);
+        this.bytes[bucket] += bytes;
+    }
+
+    public void add(SizeHistogram other) {
+        // Copied out of the other histogram first, so no thread holds the locks of two histograms
+        long[] otherCounts;
+        long[] otherMaxes;
+        long[] otherBytes;
+        synchronized (other) {
+            otherCounts = other.getCounts();
+            otherMaxes = other.getMaxes();
+            otherBytes = other.getBytes();
+        }
+        synchronized (this) {
+            for (int bucket = 0; bucket < otherCounts.length; bucket++) {
+                if(otherCounts[bucket] != 0) {
+                    add(bucket, otherCounts[bucket], otherMaxes[bucket], otherBytes[bucket]);
+                }
+            }
+        }
+    }
+
+    /**
+     * This histogram sans the allocations in another, with no bucket going below zero. Largest sizes are
+     * kept, since which allocations the other histogram stands for isn't known.
+     */
+    public SizeHistogram minus(SizeHistogram other) {
+        long[] otherCounts = other.getCounts();
+        long[] otherBytes = other.getBytes();
+        long[] difference = getCounts();
+        long[] bytesDifference = getBytes();
+        for (int bucket = 0; bucket < Math.min(difference.length, otherCounts.length); bucket++) {
+            difference[bucket] = Math.max(0, difference[bucket] - otherCounts[bucket]);
+            bytesDifference[bucket] = difference[bucket] == 0 ? 0 : Math.max(0, bytesDifference[bucket] - otherBytes[bucket]);
+        }
+        return new SizeHistogram(difference, getMaxes(), bytesDifference);
+    }
+
+    /** Allocations per bucket, up to the last bucket with any. */
+    public synchronized long[] getCounts() {
+        return Arrays.copyOf(counts, length());
+    }
+
+    /** Largest size per bucket, up to the last bucket with any allocations. */
+    public synchronized long[] getMaxes() {
+        return Arrays.copyOf(maxes, length());
+    }
+
+    /** Total size per bucket, up to the last bucket with any allocations. */
+    public synchronized long[] getBytes() {
+        return Arrays.copyOf(bytes, length());
+    }
+
+    public synchronized long getMax() {
+        int length = length();
+        return length == 0 ? 0 : maxes[length - 1];
+    }
+
+    private int length() {
+        int length = counts.length;
+        while(length > 0 && counts[length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    public synchronized long getCount() {
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return size at or below which the given percentage of allocations are, or 0 if there are none
+     */
+    public synchronized long percentile(double percentile) {
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        double rank = Math.max(1, Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if(seen >= rank) {
+                return maxes[bucket];
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SizeHistogram{" +
+                "counts=" + Arrays.toString(getCounts()) +
+                ", maxes=" + Arrays.toString(getMaxes()) +
+                ", bytes=" + Arrays.toString(getBytes()) +
+                '}';
+    }
+}
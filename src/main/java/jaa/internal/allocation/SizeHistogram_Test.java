@@ -0,0 +1,62 @@
+package jaa.internal.allocation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SizeHistogram_Test {
+    @Test
+    public void shouldGivePercentilesBoundedByTheLargestSize() throws Exception
+    {
+        // Given a million 64 byte arrays, and one 64 MB one
+        SizeHistogram sizes = SizeHistogram.of(64, 1_000_000);
+        sizes.add(SizeHistogram.of(64 << 20, 1));
+
+        // Then
+        assertEquals(1_000_001, sizes.getCount());
+        assertEquals(64, sizes.percentile(50));
+        assertEquals(64, sizes.percentile(99));
+        assertEquals(64 << 20, sizes.percentile(100));
+        assertEquals(64 << 20, sizes.getMax());
+    }
+
+    @Test
+    public void shouldBucketByPowersOfTwo() throws Exception
+    {
+        assertEquals(0, SizeHistogram.bucket(0));
+        assertEquals(1, SizeHistogram.bucket(1));
+        assertEquals(5, SizeHistogram.bucket(16));
+        assertEquals(5, SizeHistogram.bucket(31));
+        assertEquals(6, SizeHistogram.bucket(32));
+        assertEquals(63, SizeHistogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, SizeHistogram.bucketLimit(63));
+        assertEquals(31, SizeHistogram.bucketLimit(5));
+
+        // Sizes 16 and 24 share a bucket, whose largest size is 31, but none in it are above 24
+        SizeHistogram sizes = SizeHistogram.of(16, 3);
+        sizes.add(SizeHistogram.of(24, 1));
+        assertEquals(24, sizes.percentile(50));
+    }
+
+    @Test
+    public void shouldSubtractBucketsWithoutGoingNegative() throws Exception
+    {
+        // Given
+        SizeHistogram sizes = SizeHistogram.of(16, 10);
+        sizes.add(SizeHistogram.of(1024, 2));
+        SizeHistogram other = SizeHistogram.of(16, 3);
+        other.add(SizeHistogram.of(1024, 5));
+
+        // When
+        SizeHistogram difference = sizes.minus(other);
+
+        // Then
+        long[] expected = new long[SizeHistogram.bucket(16) + 1];
+        expected[SizeHistogram.bucket(16)] = 7;
+        assertArrayEquals(expected, difference.getCounts());
+        assertEquals(7, difference.getCount());
+        assertEquals(16, difference.getMax());
+        assertEquals(7 * 16, difference.getBytes()[SizeHistogram.bucket(16)]);
+    }
+}
@@ -0,0 +1,58 @@
+package jaa.internal.allocation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Captures class, method and line of each frame from a regular stack trace, for JVMs without StackWalker.
+ * The JVM fills in the whole stack trace however deep the captured depth, so this is the slowest capture;
+ * frame strings are cached per stack trace element, so at least they are only formatted once.
+ */
+class StackTraceCapture implements FrameCapture
+{
+    private final FrameIds frames;
+    private final Map<StackTraceElement, Integer> ids = new ConcurrentHashMap<>();
+
+    StackTraceCapture(FrameIds frames) {
+        this.frames = frames;
+    }
+
+    @Override
+    public boolean allocates() {
+        return true;
+    }
+
+    @Override
+    public int capture(SiteTable sites, int depth)
+    {
+        StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+        int node = SiteTable.ROOT;
+        for (int i = 0, captured = 0; i < stackTrace.length && captured < depth; i++)
+        {
+            StackTraceElement element = stackTrace[i];
+            // Skip instrumentation, and reflection frames, which class-only traces don't see either
+            if(FrameCapture.isInstrumentation(element.getClassName()) || isReflection(element.getClassName()))
+            {
+                continue;
+            }
+
+            node = sites.child(node, id(element));
+            captured++;
+        }
+        return node;
+    }
+
+    private int id(StackTraceElement element) {
+        Integer id = ids.get(element);
+        if(id == null) {
+            id = ids.computeIfAbsent(element, e -> frames.register(
+                    String.format("%s#%s L%d", e.getClassName(), e.getMethodName(), e.getLineNumber())));
+        }
+        return id;
+    }
+
+    private static boolean isReflection(String className) {
+        return className.startsWith("sun.reflect.") || className.startsWith("jdk.internal.reflect.")
+                || className.equals("java.lang.reflect.Method");
+    }
+}
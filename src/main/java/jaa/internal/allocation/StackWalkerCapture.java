@@ -0,0 +1,237 @@
+package jaa.internal.allocation;
+
+import jaa.Options;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Captures each frame with StackWalker, which only walks as many frames as are asked for and resolves them
+ * lazily. With {@link Options.FrameDetail#CLASSES} only the class of each frame is captured, which is what
+ * stands in for {@link CallerClassCapture} from Java 9 on. With {@link Options.FrameDetail#METHODS} class,
+ * method, line and bytecode index are captured. Resolving the line of a frame is the expensive part, so
+ * frame strings are cached per method and bytecode index, and the line is only looked up the first time.
+ *
+ * Capturing allocates, even for frames seen before: StackWalker hands out a buffer of frames per walk. The
+ * function walking the stack is reused per thread and frame ids are looked up without making keys, so that
+ * is all that is allocated, a few hundred bytes per capture.
+ *
+ * JAA is built for Java 8, so StackWalker is used through method handles. It is available from Java 9 on,
+ * but method frames need Java 10, which is when frames started telling which of several overloads they are in.
+ */
+class StackWalkerCapture implements FrameCapture
+{
+    private static final MethodHandle NEW_WALKER;
+    private static final MethodHandle WALK;
+    private static final MethodHandle DECLARING_CLASS;
+    private static final MethodHandle METHOD_NAME;
+    private static final MethodHandle DESCRIPTOR;
+    private static final MethodHandle BYTE_CODE_INDEX;
+    private static final MethodHandle LINE_NUMBER;
+    private static final Object RETAIN_CLASS_REFERENCE;
+    private static final int FRAMES_PER_BATCH = 8;
+
+    static {
+        MethodHandle newWalker = null, walk = null, declaringClass = null, methodName = null, descriptor = null,
+                byteCodeIndex = null, lineNumber = null;
+        Object retainClassReference = null;
+        try {
+            // StackWalker#walk is caller sensitive, so it can't be looked up with the public lookup
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> walker = Class.forName("java.lang.StackWalker");
+            Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+            newWalker = lookup.findStatic(walker, "getInstance", methodType(walker, Set.class, int.class))
+                    .asType(methodType(Object.class, Set.class, int.class));
+            walk = lookup.findVirtual(walker, "walk", methodType(Object.class, Function.class))
+                    .asType(methodType(Object.class, Object.class, Function.class));
+            declaringClass = lookup.findVirtual(frame, "getDeclaringClass", methodType(Class.class))
+                    .asType(methodType(Class.class, Object.class));
+            retainClassReference = optionNamed("RETAIN_CLASS_REFERENCE");
+        } catch (ReflectiveOperationException e) {
+            // Before Java 9; not available
+            newWalker = null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+            methodName = lookup.findVirtual(frame, "getMethodName", methodType(String.class))
+                    .asType(methodType(String.class, Object.class));
+            descriptor = lookup.findVirtual(frame, "getDescriptor", methodType(String.class))
+                    .asType(methodType(String.class, Object.class));
+            byteCodeIndex = lookup.findVirtual(frame, "getByteCodeIndex", methodType(int.class))
+                    .asType(methodType(int.class, Object.class));
+            lineNumber = lookup.findVirtual(frame, "getLineNumber", methodType(int.class))
+                    .asType(methodType(int.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            // Before Java 10; method frames are not available
+            descriptor = null;
+        }
+        NEW_WALKER = newWalker;
+        WALK = walk;
+        DECLARING_CLASS = declaringClass;
+        METHOD_NAME = methodName;
+        DESCRIPTOR = descriptor;
+        BYTE_CODE_INDEX = byteCodeIndex;
+        LINE_NUMBER = lineNumber;
+        RETAIN_CLASS_REFERENCE = retainClassReference;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object optionNamed(String name) throws ClassNotFoundException {
+        return Enum.valueOf((Class) Class.forName("java.lang.StackWalker$Option"), name);
+    }
+
+    static boolean isAvailable(Options.FrameDetail detail) {
+        return NEW_WALKER != null && (detail == Options.FrameDetail.CLASSES || DESCRIPTOR != null);
+    }
+
+    /** Ids of the frames of one method, by bytecode index, so looking one up takes no key object. */
+    private static class MethodFrames {
+        // 0 for positions not seen yet; replaced rather than changed, so readers need no lock
+        volatile int[] ids = new int[0];
+
+        int id(int byteCodeIndex) {
+            int[] ids = this.ids;
+            return byteCodeIndex < ids.length ? ids[byteCodeIndex] : 0;
+        }
+
+        synchronized void put(int byteCodeIndex, int id) {
+            int[] grown = Arrays.copyOf(ids, Math.max(ids.length, byteCodeIndex + 1));
+            grown[byteCodeIndex] = id;
+            ids = grown;
+        }
+    }
+
+    /** Walks the stack of one thread; reused by all captures of the thread, so a capture allocates no function. */
+    private class Walk implements Function<Stream<?>, Object> {
+        SiteTable sites;
+        int depth;
+        int node;
+
+        @Override
+        public Object apply(Stream<?> stack) {
+            node = descend(stack, sites, depth);
+            return null;
+        }
+    }
+
+    private final FrameIds frames;
+    private final boolean methods;
+    private final Object walker;
+    private final ThreadLocal<Walk> walks = ThreadLocal.withInitial(Walk::new);
+    // Frames of each method of a class, by method name and descriptor
+    private final ClassValue<Map<String, Map<String, MethodFrames>>> ids = new ClassValue<Map<String, Map<String, MethodFrames>>>() {
+        @Override
+        protected Map<String, Map<String, MethodFrames>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    private final ClassValue<Boolean> skipped = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return FrameCapture.isInstrumentation(type.getName());
+        }
+    };
+
+    StackWalkerCapture(FrameIds frames, Options.FrameDetail detail) {
+        if(!isAvailable(detail)) {
+            throw new IllegalStateException(String.format("StackWalker capture of %s requires Java %d or later",
+                    detail, detail == Options.FrameDetail.CLASSES ? 9 : 10));
+        }
+        this.frames = frames;
+        this.methods = detail == Options.FrameDetail.METHODS;
+        try {
+            // The depth is only a hint of how many frames to fetch in the first batch; each walk allocates buffers
+            // for a batch, so fetch the fewest StackWalker will, and let deeper walks take further batches
+            this.walker = (Object) NEW_WALKER.invokeExact((Set) Collections.singleton(RETAIN_CLASS_REFERENCE), FRAMES_PER_BATCH);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public boolean allocates() {
+        return true;
+    }
+
+    @Override
+    public int capture(SiteTable sites, int depth)
+    {
+        Walk walk = walks.get();
+        walk.sites = sites;
+        walk.depth = depth;
+        try {
+            Object ignored = (Object) WALK.invokeExact(walker, (Function) walk);
+            return walk.node;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        } finally {
+            walk.sites = null;
+        }
+    }
+
+    private int descend(Stream<?> stack, SiteTable sites, int depth) {
+        int node = SiteTable.ROOT;
+        Iterator<?> frames = stack.iterator();
+        for (int captured = 0; captured < depth && frames.hasNext(); )
+        {
+            Object frame = frames.next();
+            try {
+                Class<?> declaringClass = (Class<?>) DECLARING_CLASS.invokeExact(frame);
+                // Skip instrumentation
+                if(skipped.get(declaringClass))
+                {
+                    continue;
+                }
+
+                node = sites.child(node, methods ? id(declaringClass, frame) : this.frames.id(declaringClass));
+                captured++;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return node;
+    }
+
+    private int id(Class<?> declaringClass, Object frame) throws Throwable {
+        String methodName = (String) METHOD_NAME.invokeExact(frame);
+        String descriptor = (String) DESCRIPTOR.invokeExact(frame);
+        int byteCodeIndex = (int) BYTE_CODE_INDEX.invokeExact(frame);
+        MethodFrames method = method(ids.get(declaringClass), methodName, descriptor);
+        int id = method.id(byteCodeIndex);
+        if(id != 0) {
+            return id;
+        }
+        synchronized (method) {
+            id = method.id(byteCodeIndex);
+            if(id == 0) {
+                int line = (int) LINE_NUMBER.invokeExact(frame);
+                id = frames.register(String.format("%s#%s L%d @%d", declaringClass.getName(), methodName, line, byteCodeIndex));
+                method.put(byteCodeIndex, id);
+            }
+            return id;
+        }
+    }
+
+    private static MethodFrames method(Map<String, Map<String, MethodFrames>> classIds, String methodName, String descriptor) {
+        Map<String, MethodFrames> overloads = classIds.get(methodName);
+        if(overloads == null) {
+            overloads = classIds.computeIfAbsent(methodName, name -> new ConcurrentHashMap<>());
+        }
+        MethodFrames method = overloads.get(descriptor);
+        if(method == null) {
+            method = overloads.computeIfAbsent(descriptor, d -> new MethodFrames());
+        }
+        return method;
+    }
+}
@@ -74,8 +74,8 @@ public class EliminationParser
                         .filter(stackTracesMatch(allocation.getStackTrace()))
                         .count();
                 if (count >= 1) {
-                    // Not sure that > is ok here; overall, need to swap to Java 9 so we can get stack
-                    // traces with method names from the allocation tracker, class-names only is prone to error.
+                    // Not sure that > is ok here; with class-names only stack traces this is prone to error,
+                    // stack traces with method names from the allocation tracker narrow it down.
                     return false;
                 }
             }
@@ -110,9 +110,15 @@ public class EliminationParser
         return elimination -> {
             for (int i = 0; i < elimination.allocationPoint().size(); i++) {
                 String allocationStackFrame = allocationStackTrace.get(i);
-                String eliminationStackFrame = elimination.allocationPoint().get(i).className;
+                EliminatedAllocation.Position eliminationStackFrame = elimination.allocationPoint().get(i);
 
-                if(!allocationStackFrame.contains(eliminationStackFrame)) {
+                if(!allocationStackFrame.contains(eliminationStackFrame.className)) {
+                    return false;
+                }
+                // Frames captured with method detail look like class#method L<line> @<bci>; the bytecode index
+                // is not compared, since instrumentation moves bytecode around
+                if(allocationStackFrame.contains("#")
+                        && !allocationStackFrame.contains("#" + eliminationStackFrame.methodName + " ")) {
                     return false;
                 }
             }
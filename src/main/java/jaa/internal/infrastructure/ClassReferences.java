@@ -0,0 +1,151 @@
+package jaa.internal.infrastructure;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Minimal class file reader that lists the classes a class refers to, by reading the class
+ * entries in its constant pool. Every class a method calls into, instantiates, reads fields from or
+ * extends has such an entry, so this gives the classes the bytecode depends on without a full
+ * bytecode library.
+ *
+ * Classes that only come up in the types of fields and methods - like the parameter type of a method
+ * called, or the type of a field read - have no class entry of their own, so the descriptors of the
+ * fields and methods the class declares or refers to are read as well.
+ *
+ * Classes loaded reflectively, by a name put together at runtime, through a service loader or the like,
+ * are out of reach of this: nothing in the class file names them.
+ */
+public class ClassReferences {
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Float = 4;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Double = 6;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_String = 8;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+    private static final int CONSTANT_MethodHandle = 15;
+    private static final int CONSTANT_MethodType = 16;
+    private static final int CONSTANT_Dynamic = 17;
+    private static final int CONSTANT_InvokeDynamic = 18;
+    private static final int CONSTANT_Module = 19;
+    private static final int CONSTANT_Package = 20;
+
+    /**
+     * @param classFile bytes of a class file
+     * @return internal names, like java/lang/String, of the classes referenced; array types are
+     *         reported as their element type, primitive arrays are left out
+     */
+    public static Set<String> referencedClasses(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if(in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int poolSize = in.readUnsignedShort();
+        String[] utf8 = new String[poolSize];
+        int[] classNameIndexes = new int[poolSize];
+        int classes = 0;
+        int[] descriptorIndexes = new int[poolSize];
+        int descriptors = 0;
+
+        for (int i = 1; i < poolSize; i++) {
+            int tag = in.readUnsignedByte();
+            switch(tag) {
+                case CONSTANT_Utf8:
+                    utf8[i] = in.readUTF();
+                    break;
+                case CONSTANT_Class:
+                    classNameIndexes[classes++] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_MethodType:
+                    descriptorIndexes[descriptors++] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_NameAndType:
+                    in.skipBytes(2); // name
+                    descriptorIndexes[descriptors++] = in.readUnsignedShort();
+                    break;
+                case CONSTANT_String:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    in.skipBytes(2);
+                    break;
+                case CONSTANT_MethodHandle:
+                    in.skipBytes(3);
+                    break;
+                case CONSTANT_Integer:
+                case CONSTANT_Float:
+                case CONSTANT_Fieldref:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                    in.skipBytes(4);
+                    break;
+                case CONSTANT_Long:
+                case CONSTANT_Double:
+                    in.skipBytes(8);
+                    i++; // These take up two slots in the pool
+                    break;
+                default:
+                    throw new IOException(String.format("Unknown constant pool tag %d at index %d", tag, i));
+            }
+        }
+
+        in.skipBytes(6); // access flags, this class, super class
+        in.skipBytes(in.readUnsignedShort() * 2); // interfaces
+        // Fields, then methods
+        for (int members = 0; members < 2; members++) {
+            for (int count = in.readUnsignedShort(); count > 0; count--) {
+                in.skipBytes(4); // access flags, name
+                if(descriptors == descriptorIndexes.length) {
+                    descriptorIndexes = Arrays.copyOf(descriptorIndexes, descriptors * 2 + 1);
+                }
+                descriptorIndexes[descriptors++] = in.readUnsignedShort();
+                skipAttributes(in);
+            }
+        }
+
+        Set<String> referenced = new LinkedHashSet<>();
+        for (int i = 0; i < classes; i++) {
+            String name = utf8[classNameIndexes[i]];
+            if(name.startsWith("[")) {
+                addClassesOf(name, referenced);
+                continue;
+            }
+            referenced.add(name);
+        }
+        for (int i = 0; i < descriptors; i++) {
+            addClassesOf(utf8[descriptorIndexes[i]], referenced);
+        }
+        return referenced;
+    }
+
+    /** Add the classes named in a field or method descriptor, like (I[Ljava/lang/String;)Ljava/util/List; */
+    private static void addClassesOf(String descriptor, Set<String> referenced) {
+        for (int i = 0; i < descriptor.length(); i++) {
+            if(descriptor.charAt(i) == 'L') {
+                int end = descriptor.indexOf(';', i);
+                referenced.add(descriptor.substring(i + 1, end));
+                i = end;
+            }
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        for (int count = in.readUnsignedShort(); count > 0; count--) {
+            in.skipBytes(2); // name
+            in.skipBytes(in.readInt());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package jaa.internal.infrastructure;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+public class ClassReferences_Test {
+    @Test
+    public void shouldFindClassesReferencedFromBytecode() throws Exception
+    {
+        // When
+        Set<String> referenced = ClassReferences.referencedClasses(classBytes(Referencing.class));
+
+        // Then
+        assertThat(referenced, hasItem("java/util/ArrayList"));
+        assertThat(referenced, hasItem("java/lang/StringBuilder"));
+        assertThat(referenced, hasItem("jaa/internal/infrastructure/ClassReferences_Test$Referencing"));
+    }
+
+    @Test
+    public void shouldReportArraysAsTheirElementType() throws Exception
+    {
+        // When
+        Set<String> referenced = ClassReferences.referencedClasses(classBytes(Referencing.class));
+
+        // Then
+        assertThat(referenced, hasItem("java/lang/Thread"));
+        assertThat(referenced, not(hasItem("[[Ljava/lang/Thread;")));
+        assertThat(referenced, not(hasItem("[J")));
+    }
+
+    @Test
+    public void shouldFindClassesOnlyNamedInTypesOfFieldsAndMethods() throws Exception
+    {
+        // When
+        Set<String> referenced = ClassReferences.referencedClasses(classBytes(Referencing.class));
+
+        // Then the types of fields read, and the parameter type of a method called
+        assertThat(referenced, hasItem("java/util/concurrent/Phaser"));
+        assertThat(referenced, hasItem("java/util/concurrent/Exchanger"));
+        assertThat(referenced, hasItem("java/util/concurrent/CyclicBarrier"));
+        // and the types in the signatures of methods declared
+        assertThat(referenced, hasItem("java/util/concurrent/Semaphore"));
+        assertThat(referenced, not(hasItem("java/util/concurrent/Phaser;")));
+    }
+
+    static class Referencing {
+        // Long and double constants take two constant pool slots, which the parser needs to get right
+        long aLong = 1234567890123L;
+        double aDouble = 3.1415;
+
+        Object refer() {
+            ArrayList<Object> list = new ArrayList<>();
+            list.add(new Thread[2][2]);
+            list.add(new long[2][2]);
+            return list + new StringBuilder().append(aLong).append(aDouble).toString();
+        }
+
+        Object passAlong(Holder holder) {
+            Holder.await(null);
+            return take(holder.phaser) + String.valueOf(holder.exchanger);
+        }
+
+        String take(Object phaser) {
+            return String.valueOf(phaser);
+        }
+
+        java.util.concurrent.Semaphore declared(int[] counts) {
+            return null;
+        }
+    }
+
+    static class Holder {
+        java.util.concurrent.Phaser phaser;
+        java.util.concurrent.Exchanger<String> exchanger;
+
+        static void await(java.util.concurrent.CyclicBarrier barrier) {
+        }
+    }
+
+    private static byte[] classBytes(Class<?> cls) throws Exception {
+        try (InputStream in = cls.getResourceAsStream('/' + cls.getName().replace('.', '/') + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
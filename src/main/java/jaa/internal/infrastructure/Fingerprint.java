@@ -0,0 +1,62 @@
+package jaa.internal.infrastructure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Incrementally built SHA-256 hash, used to tell whether inputs to an analysis have changed. */
+public class Fingerprint {
+    private final MessageDigest digest;
+
+    public Fingerprint() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is required to be available on all JVMs", e);
+        }
+    }
+
+    public Fingerprint add(String value) {
+        return add(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Fingerprint add(byte[] bytes) {
+        // Length-prefix each part, so that ("ab", "c") and ("a", "bc") differ
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) ':');
+        digest.update(bytes);
+        return this;
+    }
+
+    public Fingerprint addFile(Path file) throws IOException {
+        return add(Files.readAllBytes(file));
+    }
+
+    /** Add the bytecode of a class, as found by its class loader. */
+    public Fingerprint addClass(Class<?> cls) throws IOException {
+        String resource = '/' + cls.getName().replace('.', '/') + ".class";
+        try (InputStream in = cls.getResourceAsStream(resource)) {
+            if(in == null) {
+                return add(cls.getName());
+            }
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return this;
+        }
+    }
+
+    public String hex() {
+        StringBuilder out = new StringBuilder();
+        for (byte b : digest.digest()) {
+            out.append(String.format("%02x", b));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,159 @@
+package jaa.internal.runner;
+
+import jaa.internal.allocation.AllocationLedger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Measures bytes allocated per operation using HotSpot's per-thread allocation counters, without
+ * instrumentation. Runs on a regular JVM with escape analysis active, so it gives the true number
+ * of bytes a method allocates in production - but not where the allocations happen.
+ *
+ * What the harness allocates itself is measured by counting the allocations of a method that makes none,
+ * with as many iterations and threads, and taken out of each thread's count.
+ */
+public class AllocationCounterAnalyzer {
+    public static class Result {
+        public final long totalBytes;
+        public final long operations;
+        /** Bytes allocated by each of the threads invoking the method, which each did an equal share of the operations. */
+        public final long[] threadBytes;
+
+        Result(long totalBytes, long operations, long[] threadBytes) {
+            this.totalBytes = totalBytes;
+            this.operations = operations;
+            this.threadBytes = threadBytes;
+        }
+
+        public double bytesPerOp() {
+            return totalBytes / (double) operations;
+        }
+
+        public double minThreadBytesPerOp() {
+            return LongStream.of(threadBytes).min().orElse(0) / operationsPerThread();
+        }
+
+        public double maxThreadBytesPerOp() {
+            return LongStream.of(threadBytes).max().orElse(0) / operationsPerThread();
+        }
+
+        /**
+         * The result as a ledger with a single record, for all allocations; the counters can't tell
+         * what was allocated where, or how many objects.
+         */
+        public AllocationLedger toLedger() {
+            AllocationLedger ledger = new AllocationLedger();
+            ledger.record("(all objects)", totalBytes, 0, Collections.emptyList());
+            ledger.setOperations(operations);
+            return ledger;
+        }
+
+        private double operationsPerThread() {
+            return operations / (double) Math.max(1, threadBytes.length);
+        }
+
+        /** This result, sans what each thread of the given result allocated on average. */
+        Result minus(Result other) {
+            long otherThreadBytes = other.totalBytes / Math.max(1, other.threadBytes.length);
+            long[] difference = LongStream.of(threadBytes).map(b -> Math.max(0, b - otherThreadBytes)).toArray();
+            return new Result(LongStream.of(difference).sum(), operations, difference);
+        }
+    }
+
+    // Counted harness allocations, by java executable and the arguments of the calibration settings
+    private static final Map<List<String>, Result> allocationsByHarness = new ConcurrentHashMap<>();
+
+    private final Duration forkTimeout;
+
+    public AllocationCounterAnalyzer(Duration forkTimeout) {
+        this.forkTimeout = forkTimeout;
+    }
+
+    public Result analyze(String classPath, Path javaExecutable, Method method) throws IOException, InterruptedException {
+        return analyze(classPath, javaExecutable, method, AnalysisSettings.of(method));
+    }
+
+    public Result analyze(String classPath, Path javaExecutable, Method method, AnalysisSettings settings) throws IOException, InterruptedException {
+        return count(classPath, javaExecutable, method, settings)
+                .minus(allocationsDoneByHarness(classPath, javaExecutable, settings));
+    }
+
+    /**
+     * Count the allocations of a method known to make no allocations the same way an analysis is counted, so
+     * what the harness allocates per invocation and per thread can be taken out of it.
+     */
+    private Result allocationsDoneByHarness(String classPath, Path javaExecutable, AnalysisSettings settings) throws IOException, InterruptedException {
+        AnalysisSettings calibrationSettings = MethodAllocationAnalyzer.calibrationSettings(settings);
+        List<String> key = new ArrayList<>(calibrationSettings.args());
+        key.add(javaExecutable.toAbsolutePath().toString());
+        Result calibrated = allocationsByHarness.get(key);
+        if(calibrated == null) {
+            Method noop;
+            try {
+                noop = MethodAllocationAnalyzer.class.getMethod("noop");
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Programming error, unable to find noop method, can't calibrate allocation counters.", e);
+            }
+            calibrated = count(classPath, javaExecutable, noop, calibrationSettings);
+            allocationsByHarness.put(key, calibrated);
+        }
+        return calibrated;
+    }
+
+    private Result count(String classPath, Path javaExecutable, Method method, AnalysisSettings settings) throws IOException, InterruptedException {
+        String methodDescription = method.getDeclaringClass().getName() + "#" + method.getName();
+        List<String> command = new ArrayList<>(asList(
+                javaExecutable.toAbsolutePath().toString(),
+                "-classpath", classPath,
+                EntryPoint.class.getName(),
+                "count-allocated-bytes",
+                methodDescription));
+        command.addAll(settings.args());
+
+        ObjectMapper mapper = new ObjectMapper();
+        AtomicReference<Result> result = new AtomicReference<>();
+        Proc proc = Proc.exec(forkTimeout, command.toArray(new String[0]));
+        proc.stdout().forEach(line -> {
+            if(!line.startsWith("__jaa ")) {
+                System.out.println(line);
+                return;
+            }
+            try {
+                JsonNode message = mapper.readTree(line.substring("__jaa ".length()));
+                if(message.get(0).asText().equals("allocated-bytes")) {
+                    long[] threadBytes = new long[message.get(3).size()];
+                    for (int i = 0; i < threadBytes.length; i++) {
+                        threadBytes[i] = message.get(3).get(i).asLong();
+                    }
+                    result.set(new Result(message.get(1).asLong(), message.get(2).asLong(), threadBytes));
+                } else if(message.get(0).asText().equals("error")) {
+                    throw new AssertionError(String.format("Counting allocations of %s failed: %s",
+                            methodDescription, message.get(1).asText()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        proc.awaitSuccessfulExit();
+
+        if(result.get() == null) {
+            throw new AssertionError(String.format("Counting allocations of %s did not produce a result", methodDescription));
+        }
+        return result.get();
+    }
+}
@@ -0,0 +1,25 @@
+package jaa.internal.runner;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AllocationCounterAnalyzer_Test {
+    @Test
+    public void shouldTakeHarnessAllocationsOutOfEachThread() throws Exception
+    {
+        // Given
+        AllocationCounterAnalyzer.Result measured = new AllocationCounterAnalyzer.Result(360, 10, new long[]{200, 160});
+        AllocationCounterAnalyzer.Result harness = new AllocationCounterAnalyzer.Result(80, 10, new long[]{50, 30});
+
+        // When
+        AllocationCounterAnalyzer.Result result = measured.minus(harness);
+
+        // Then
+        assertArrayEquals(new long[]{160, 120}, result.threadBytes);
+        assertEquals(280, result.totalBytes);
+        assertEquals(28, result.bytesPerOp(), 0.001);
+        assertEquals(24, result.minThreadBytesPerOp(), 0.001);
+    }
+}
@@ -0,0 +1,270 @@
+package jaa.internal.runner;
+
+import jaa.AllocationAnalysis;
+import jaa.Options;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * How an analysis method should be executed in the analysis JVMs. These are passed to {@link EntryPoint}
+ * commands as trailing name=value arguments, so settings can be added without changing the commands.
+ */
+public class AnalysisSettings {
+    private static final String WARMUP = "warmup";
+    private static final String MEASUREMENT = "measurement";
+    private static final String FORCE_COMPILATION = "force-compilation";
+    private static final String THREADS = "threads";
+    private static final String SAMPLING_INTERVAL = "sampling-interval";
+    private static final String FRAME_DETAIL = "frame-detail";
+    private static final String STACK_DEPTH = "stack-depth";
+    private static final int DEFAULT_STACK_DEPTH = 15;
+    private static final String OFF_HEAP = "off-heap";
+    private static final String FLUSH_INTERVAL = "flush-interval";
+    private static final String RATE_WINDOW = "rate-window";
+    private static final String LIFETIME_SAMPLING_INTERVAL = "lifetime-sampling-interval";
+    private static final String REPORT_FORMAT = "report-format";
+    private static final String PARAM_PREFIX = "param.";
+
+    public final long warmupIterations;
+    public final long measurementIterations;
+    /** Compile the method with C2 through the WhiteBox API after warmup, before measuring. */
+    public final boolean forceCompilation;
+    /** Number of threads invoking the method concurrently, each for the given number of iterations. */
+    public final int threads;
+    /** Values for the {@link jaa.Param} fields of the analysis instance, by field name. */
+    public final Map<String, String> params;
+    /** Sample about one allocation per this many bytes in instrumented runs, rather than recording all; 0 records all. */
+    public final long samplingInterval;
+    /** What instrumented runs record about each stack frame. */
+    public final Options.FrameDetail frameDetail;
+    /** Number of frames of stack traces to record, counting from the allocating frame. */
+    public final int stackDepth;
+    /** Count allocations of instrumented runs off the heap of the analysis JVM. */
+    public final boolean offHeap;
+    /** Write the report of instrumented runs a segment this often while sampling, rather than all at once; 0 writes it at once. */
+    public final long flushIntervalMillis;
+    /** Count allocations of instrumented runs per window of this length, to give allocation rates; 0 doesn't. */
+    public final long rateWindowMillis;
+    /** Track the lifetime of about one object per this many bytes allocated in instrumented runs; 0 tracks none. */
+    public final long lifetimeSamplingInterval;
+    /** Format the analysis JVM writes its report in. */
+    public final Options.ReportFormat reportFormat;
+
+    public AnalysisSettings(long warmupIterations, long measurementIterations) {
+        this(warmupIterations, measurementIterations, false);
+    }
+
+    public AnalysisSettings(long warmupIterations, long measurementIterations, boolean forceCompilation) {
+        this(new Builder(warmupIterations, measurementIterations, forceCompilation));
+    }
+
+    private AnalysisSettings(Builder settings) {
+        this.warmupIterations = settings.warmupIterations;
+        this.measurementIterations = settings.measurementIterations;
+        this.forceCompilation = settings.forceCompilation;
+        this.threads = settings.threads;
+        this.params = Collections.unmodifiableMap(new LinkedHashMap<>(settings.params));
+        this.samplingInterval = settings.samplingInterval;
+        this.frameDetail = settings.frameDetail;
+        this.stackDepth = settings.stackDepth;
+        this.offHeap = settings.offHeap;
+        this.flushIntervalMillis = settings.flushIntervalMillis;
+        this.rateWindowMillis = settings.rateWindowMillis;
+        this.lifetimeSamplingInterval = settings.lifetimeSamplingInterval;
+        this.reportFormat = settings.reportFormat;
+    }
+
+    /** Settings being put together; each {@code with} method copies the settings and changes one. */
+    private static class Builder {
+        long warmupIterations;
+        long measurementIterations;
+        boolean forceCompilation;
+        int threads = 1;
+        Map<String, String> params = Collections.emptyMap();
+        long samplingInterval;
+        Options.FrameDetail frameDetail = Options.FrameDetail.CLASSES;
+        int stackDepth = DEFAULT_STACK_DEPTH;
+        boolean offHeap;
+        long flushIntervalMillis;
+        long rateWindowMillis;
+        long lifetimeSamplingInterval;
+        Options.ReportFormat reportFormat = Options.ReportFormat.JSON;
+
+        Builder(long warmupIterations, long measurementIterations, boolean forceCompilation) {
+            this.warmupIterations = warmupIterations;
+            this.measurementIterations = measurementIterations;
+            this.forceCompilation = forceCompilation;
+        }
+
+        Builder(AnalysisSettings source) {
+            this(source.warmupIterations, source.measurementIterations, source.forceCompilation);
+            this.threads = source.threads;
+            this.params = source.params;
+            this.samplingInterval = source.samplingInterval;
+            this.frameDetail = source.frameDetail;
+            this.stackDepth = source.stackDepth;
+            this.offHeap = source.offHeap;
+            this.flushIntervalMillis = source.flushIntervalMillis;
+            this.rateWindowMillis = source.rateWindowMillis;
+            this.lifetimeSamplingInterval = source.lifetimeSamplingInterval;
+            this.reportFormat = source.reportFormat;
+        }
+    }
+
+    private AnalysisSettings with(Consumer<Builder> change) {
+        Builder settings = new Builder(this);
+        change.accept(settings);
+        return new AnalysisSettings(settings);
+    }
+
+    public AnalysisSettings withForcedCompilation() {
+        return with(s -> s.forceCompilation = true);
+    }
+
+    public AnalysisSettings withParams(Map<String, String> params) {
+        return with(s -> s.params = params);
+    }
+
+    public AnalysisSettings withThreads(int threads) {
+        return with(s -> s.threads = threads);
+    }
+
+    public AnalysisSettings withFrameDetail(Options.FrameDetail frameDetail) {
+        return with(s -> s.frameDetail = frameDetail);
+    }
+
+    public AnalysisSettings withStackDepth(int stackDepth) {
+        return with(s -> s.stackDepth = stackDepth);
+    }
+
+    public AnalysisSettings withSamplingInterval(long samplingInterval) {
+        return with(s -> s.samplingInterval = samplingInterval);
+    }
+
+    public AnalysisSettings withOffHeap(boolean offHeap) {
+        return with(s -> s.offHeap = offHeap);
+    }
+
+    public AnalysisSettings withFlushInterval(Duration flushInterval) {
+        return with(s -> s.flushIntervalMillis = flushInterval.toMillis());
+    }
+
+    public AnalysisSettings withRateWindow(Duration rateWindow) {
+        return with(s -> s.rateWindowMillis = rateWindow.toMillis());
+    }
+
+    public AnalysisSettings withLifetimeSamplingInterval(long lifetimeSamplingInterval) {
+        return with(s -> s.lifetimeSamplingInterval = lifetimeSamplingInterval);
+    }
+
+    public AnalysisSettings withReportFormat(Options.ReportFormat reportFormat) {
+        return with(s -> s.reportFormat = reportFormat);
+    }
+
+    /** Total number of invocations measured, across all threads. */
+    public long operations() {
+        return measurementIterations * threads;
+    }
+
+    /**
+     * Thread counts to analyze a method with, doubling from one up to the number of threads it is
+     * annotated with; so how allocations change with contention can be seen.
+     */
+    public static List<Integer> threadLadder(Method method) {
+        int threads = of(method).threads;
+        List<Integer> ladder = new ArrayList<>();
+        for (int n = 1; n < threads; n *= 2) {
+            ladder.add(n);
+        }
+        ladder.add(threads);
+        return ladder;
+    }
+
+    /** Settings given by the {@link AllocationAnalysis} annotation on the method, or the defaults if there is none. */
+    public static AnalysisSettings of(Method method) {
+        AllocationAnalysis annotation = method.getAnnotation(AllocationAnalysis.class);
+        if(annotation == null) {
+            return new AnalysisSettings(0, 1);
+        }
+        if(annotation.warmupIterations() < 0 || annotation.measurementIterations() < 1 || annotation.threads() < 1) {
+            throw new IllegalArgumentException(String.format("%s#%s needs at least one measurement iteration and thread, " +
+                    "and can't have negative warmup iterations.", method.getDeclaringClass().getName(), method.getName()));
+        }
+        return new AnalysisSettings(annotation.warmupIterations(), annotation.measurementIterations())
+                .withThreads(annotation.threads());
+    }
+
+    static AnalysisSettings parse(String[] argv, int offset) {
+        Map<String, String> values = new HashMap<>();
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = offset; i < argv.length; i++) {
+            String[] nameAndValue = argv[i].split("=", 2);
+            if(nameAndValue[0].startsWith(PARAM_PREFIX)) {
+                params.put(nameAndValue[0].substring(PARAM_PREFIX.length()), nameAndValue[1]);
+            } else {
+                values.put(nameAndValue[0], nameAndValue[1]);
+            }
+        }
+        Builder settings = new Builder(
+                Long.parseLong(values.getOrDefault(WARMUP, "0")),
+                Long.parseLong(values.getOrDefault(MEASUREMENT, "1")),
+                Boolean.parseBoolean(values.getOrDefault(FORCE_COMPILATION, "false")));
+        settings.threads = Integer.parseInt(values.getOrDefault(THREADS, "1"));
+        settings.params = params;
+        settings.samplingInterval = Long.parseLong(values.getOrDefault(SAMPLING_INTERVAL, "0"));
+        settings.frameDetail = Options.FrameDetail.valueOf(values.getOrDefault(FRAME_DETAIL, "classes").toUpperCase());
+        settings.stackDepth = Integer.parseInt(values.getOrDefault(STACK_DEPTH, Integer.toString(DEFAULT_STACK_DEPTH)));
+        settings.offHeap = Boolean.parseBoolean(values.getOrDefault(OFF_HEAP, "false"));
+        settings.flushIntervalMillis = Long.parseLong(values.getOrDefault(FLUSH_INTERVAL, "0"));
+        settings.rateWindowMillis = Long.parseLong(values.getOrDefault(RATE_WINDOW, "0"));
+        settings.lifetimeSamplingInterval = Long.parseLong(values.getOrDefault(LIFETIME_SAMPLING_INTERVAL, "0"));
+        settings.reportFormat = Options.ReportFormat.valueOf(values.getOrDefault(REPORT_FORMAT, "json").toUpperCase());
+        return new AnalysisSettings(settings);
+    }
+
+    public List<String> args() {
+        List<String> args = new ArrayList<>();
+        args.add(WARMUP + "=" + warmupIterations);
+        args.add(MEASUREMENT + "=" + measurementIterations);
+        if(forceCompilation) {
+            args.add(FORCE_COMPILATION + "=true");
+        }
+        if(threads != 1) {
+            args.add(THREADS + "=" + threads);
+        }
+        if(samplingInterval != 0) {
+            args.add(SAMPLING_INTERVAL + "=" + samplingInterval);
+        }
+        if(frameDetail != Options.FrameDetail.CLASSES) {
+            args.add(FRAME_DETAIL + "=" + frameDetail.name().toLowerCase());
+        }
+        if(stackDepth != DEFAULT_STACK_DEPTH) {
+            args.add(STACK_DEPTH + "=" + stackDepth);
+        }
+        if(offHeap) {
+            args.add(OFF_HEAP + "=true");
+        }
+        if(flushIntervalMillis != 0) {
+            args.add(FLUSH_INTERVAL + "=" + flushIntervalMillis);
+        }
+        if(rateWindowMillis != 0) {
+            args.add(RATE_WINDOW + "=" + rateWindowMillis);
+        }
+        if(lifetimeSamplingInterval != 0) {
+            args.add(LIFETIME_SAMPLING_INTERVAL + "=" + lifetimeSamplingInterval);
+        }
+        if(reportFormat != Options.ReportFormat.JSON) {
+            args.add(REPORT_FORMAT + "=" + reportFormat.name().toLowerCase());
+        }
+        params.forEach((name, value) -> args.add(PARAM_PREFIX + name + "=" + value));
+        return args;
+    }
+}
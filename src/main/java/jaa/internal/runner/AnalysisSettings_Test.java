@@ -0,0 +1,65 @@
+package jaa.internal.runner;
+
+import jaa.Options;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class AnalysisSettings_Test {
+    @Test
+    public void shouldKeepAllSettingsWhenPassedAsArguments() throws Exception
+    {
+        // Given
+        AnalysisSettings settings = new AnalysisSettings(10, 20)
+                .withForcedCompilation()
+                .withThreads(4)
+                .withParams(Collections.singletonMap("size", "64"))
+                .withSamplingInterval(512)
+                .withFrameDetail(Options.FrameDetail.METHODS)
+                .withStackDepth(3)
+                .withOffHeap(true)
+                .withFlushInterval(Duration.ofMillis(1000))
+                .withRateWindow(Duration.ofMillis(100))
+                .withLifetimeSamplingInterval(4096)
+                .withReportFormat(Options.ReportFormat.BINARY);
+
+        // When
+        AnalysisSettings parsed = AnalysisSettings.parse(settings.args().toArray(new String[0]), 0);
+
+        // Then
+        assertEquals(settings.args(), parsed.args());
+        assertEquals(10, parsed.warmupIterations);
+        assertEquals(20, parsed.measurementIterations);
+        assertEquals(true, parsed.forceCompilation);
+        assertEquals(4, parsed.threads);
+        assertEquals("64", parsed.params.get("size"));
+        assertEquals(512, parsed.samplingInterval);
+        assertEquals(Options.FrameDetail.METHODS, parsed.frameDetail);
+        assertEquals(3, parsed.stackDepth);
+        assertEquals(true, parsed.offHeap);
+        assertEquals(1000, parsed.flushIntervalMillis);
+        assertEquals(100, parsed.rateWindowMillis);
+        assertEquals(4096, parsed.lifetimeSamplingInterval);
+        assertEquals(Options.ReportFormat.BINARY, parsed.reportFormat);
+    }
+
+    @Test
+    public void shouldChangeOnlyTheGivenSetting() throws Exception
+    {
+        // Given
+        AnalysisSettings settings = new AnalysisSettings(10, 20).withSamplingInterval(512);
+
+        // When
+        AnalysisSettings changed = settings.withLifetimeSamplingInterval(4096);
+
+        // Then
+        assertEquals(512, changed.samplingInterval);
+        assertEquals(4096, changed.lifetimeSamplingInterval);
+        assertEquals(0, settings.lifetimeSamplingInterval);
+        assertEquals(0, changed.rateWindowMillis);
+        assertEquals(0, changed.flushIntervalMillis);
+    }
+}
@@ -0,0 +1,130 @@
+package jaa.internal.runner;
+
+import jaa.internal.allocation.AllocationLedger;
+import jaa.internal.allocation.AllocationSampler;
+import jaa.internal.infrastructure.Fingerprint;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Harness calibration ledgers, kept in memory for the duration of the process and on disk
+ * under ~/.jaa between runs.
+ *
+ * The allocations made by the harness depend only on the JVM running it, the allocation
+ * instrumenter and the version of JAA itself, so those are what calibrations are keyed by; along
+ * with the detail and depth of stack traces, as that is what harness allocations are told apart by,
+ * and the iteration and thread counts, as the harness allocates per invocation and per thread.
+ */
+class CalibrationCache {
+    // Calibrations done or under way; callers wanting one under way wait for it, rather than calibrate again
+    private static final Map<String, CompletableFuture<AllocationLedger>> calibrations = new ConcurrentHashMap<>();
+
+    interface Calibration {
+        AllocationLedger run() throws IOException, InterruptedException;
+    }
+
+    private final Path directory;
+
+    CalibrationCache() {
+        this(Paths.get(System.getProperty("user.home"), ".jaa", "calibration"));
+    }
+
+    CalibrationCache(Path directory) {
+        this.directory = directory;
+    }
+
+    AllocationLedger get(Path javaExecutable, Path allocationInstrumenterJar, AnalysisSettings settings,
+                         Calibration calibration) throws IOException, InterruptedException {
+        String key = key(javaExecutable, allocationInstrumenterJar, settings);
+        CompletableFuture<AllocationLedger> calibrating = new CompletableFuture<>();
+        CompletableFuture<AllocationLedger> existing = calibrations.putIfAbsent(key, calibrating);
+        if(existing != null) {
+            // Only callers wanting the same calibration wait for each other; other calibrations run in parallel
+            return await(existing);
+        }
+
+        try {
+            AllocationLedger ledger;
+            Path stored = directory.resolve(key + ".json");
+            if(Files.exists(stored)) {
+                ledger = AllocationLedger.read(stored);
+            } else {
+                ledger = calibration.run();
+                store(ledger, stored);
+            }
+            calibrating.complete(ledger);
+            return ledger;
+        } catch (Throwable e) {
+            // Those waiting get the failure, later callers try again
+            calibrations.remove(key, calibrating);
+            calibrating.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static AllocationLedger await(CompletableFuture<AllocationLedger> calibration) throws IOException, InterruptedException {
+        try {
+            return calibration.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void store(AllocationLedger ledger, Path target) throws IOException {
+        Files.createDirectories(directory);
+        // Write to the side and move in place, so a concurrent JAA run never sees a half-written file
+        Path temp = Files.createTempFile(directory, "calibration", ".tmp");
+        try {
+            ledger.write(temp);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String key(Path javaExecutable, Path allocationInstrumenterJar, AnalysisSettings settings) throws IOException {
+        return environment(javaExecutable, allocationInstrumenterJar)
+                .add(settings.frameDetail.name())
+                .add(Integer.toString(settings.stackDepth))
+                .add(Long.toString(settings.warmupIterations))
+                .add(Long.toString(settings.measurementIterations))
+                .add(Integer.toString(settings.threads))
+                .hex();
+    }
+
+    /** Fingerprint of the JVM, instrumenter and JAA version analyses are run with. */
+    static Fingerprint environment(Path javaExecutable, Path allocationInstrumenterJar) throws IOException {
+        return new Fingerprint()
+                .add(javaExecutable.toRealPath().toString())
+                .addFile(javaExecutable)
+                .addFile(allocationInstrumenterJar)
+                .add(jaaVersion())
+                // The version is not bumped for local builds of JAA, so include the harness code itself
+                .addClass(EntryPoint.class)
+                .addClass(AllocationSampler.class)
+                .addClass(AllocationLedger.class);
+    }
+
+    private static String jaaVersion() {
+        String version = CalibrationCache.class.getPackage().getImplementationVersion();
+        return version == null ? "unknown" : version;
+    }
+}
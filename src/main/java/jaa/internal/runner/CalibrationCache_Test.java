@@ -0,0 +1,94 @@
+package jaa.internal.runner;
+
+import jaa.internal.allocation.AllocationLedger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CalibrationCache_Test {
+    @Rule
+    public TemporaryFolder folders = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void shouldRunCalibrationsOfDifferentSettingsInParallel() throws Exception
+    {
+        // Given a calibration that can only finish once another has started
+        CalibrationCache cache = new CalibrationCache(folders.newFolder().toPath());
+        Path java = folders.newFile("java").toPath();
+        Path instrumenter = folders.newFile("instrumenter.jar").toPath();
+        CountDownLatch secondStarted = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+
+        // When
+        try {
+            Future<AllocationLedger> first = callers.submit(() -> cache.get(java, instrumenter, new AnalysisSettings(1, 2), () -> {
+                assertTrue(secondStarted.await(20, TimeUnit.SECONDS));
+                return new AllocationLedger();
+            }));
+            Future<AllocationLedger> second = callers.submit(() -> cache.get(java, instrumenter, new AnalysisSettings(1, 3), () -> {
+                secondStarted.countDown();
+                return new AllocationLedger();
+            }));
+
+            // Then
+            first.get();
+            second.get();
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void shouldCalibrateOnceForCallersWantingTheSameCalibration() throws Exception
+    {
+        // Given
+        CalibrationCache cache = new CalibrationCache(folders.newFolder().toPath());
+        Path java = folders.newFile("java").toPath();
+        Path instrumenter = folders.newFile("instrumenter.jar").toPath();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch bothCalling = new CountDownLatch(2);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+
+        // When
+        AllocationLedger[] ledgers = new AllocationLedger[2];
+        try {
+            CalibrationCache.Calibration calibration = () -> {
+                runs.incrementAndGet();
+                AllocationLedger ledger = new AllocationLedger();
+                ledger.record("[J", 24, asList("a.B"));
+                return ledger;
+            };
+            Future<?> first = callers.submit(() -> {
+                bothCalling.countDown();
+                bothCalling.await();
+                return ledgers[0] = cache.get(java, instrumenter, new AnalysisSettings(1, 4), calibration);
+            });
+            Future<?> second = callers.submit(() -> {
+                bothCalling.countDown();
+                bothCalling.await();
+                return ledgers[1] = cache.get(java, instrumenter, new AnalysisSettings(1, 4), calibration);
+            });
+            first.get();
+            second.get();
+        } finally {
+            callers.shutdownNow();
+        }
+
+        // Then
+        assertEquals(1, runs.get());
+        assertSame(ledgers[0], ledgers[1]);
+    }
+}
@@ -4,15 +4,25 @@ import com.google.monitoring.runtime.instrumentation.AllocationRecorder;
 import jaa.SetUp;
 import jaa.TearDown;
 import jaa.internal.allocation.AllocationSampler;
+import jaa.internal.allocation.AllocationSites;
+import jaa.internal.allocation.JfrAllocationRecorder;
 import org.codehaus.jackson.map.ObjectMapper;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -20,18 +30,16 @@ import static jaa.internal.infrastructure.Reflection.invoke;
 import static java.util.Arrays.asList;
 
 public class EntryPoint {
+    // Shared, so invoking the analysis method doesn't allocate a varargs array per iteration
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    /** Threads invoking the analyzed method are named this, followed by their index. */
+    private static final String ANALYSIS_THREAD = "jaa.AnalysisThread-";
+    /** Threads counting their invocations publish the count this often, so other threads seldom have to read it. */
+    private static final long PUBLISH_INVOKED_EVERY = 4096;
+
     public static void main(String ... argv) {
         try {
-            switch (argv[0]) {
-                case "analyze-escapes":
-                    new EntryPoint().execute(argv[1], Long.parseLong(argv[2]));
-                    break;
-                case "analyze-allocation":
-                    new EntryPoint().allocationTrackingExecute(argv[1], argv[2]);
-                    break;
-                default:
-                    stdout(asList("error", String.format("Unknown command %s", argv[0])));
-            }
+            new EntryPoint().run(argv);
         }
         catch(Throwable e)
         {
@@ -40,6 +48,49 @@ public class EntryPoint {
         }
     }
 
+    private void run(String ... argv) throws Throwable {
+        switch (argv[0]) {
+            case "analyze-escapes":
+                execute(argv[1], AnalysisSettings.parse(argv, 2));
+                break;
+            case "analyze-allocation":
+                allocationTrackingExecute(argv[1], argv[2], AnalysisSettings.parse(argv, 3));
+                break;
+            case "record-allocations":
+                allocationRecordingExecute(argv[1], argv[2], AnalysisSettings.parse(argv, 3));
+                break;
+            case "count-allocated-bytes":
+                countAllocatedBytes(argv[1], AnalysisSettings.parse(argv, 2));
+                break;
+            case "worker":
+                serveJobs();
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown command %s", argv[0]));
+        }
+    }
+
+    /**
+     * Stay alive and execute jobs read from stdin, one JSON array of command arguments per line,
+     * until stdin is closed. Each job is acknowledged with a "done" or an "error" message, so a
+     * {@link WorkerPool} knows when the output of one job ends.
+     */
+    private void serveJobs() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        BufferedReader jobs = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        for(String job = jobs.readLine(); job != null; job = jobs.readLine()) {
+            try {
+                run(mapper.readValue(job, String[].class));
+                stdout(asList("done"));
+            }
+            catch(Throwable e)
+            {
+                e.printStackTrace();
+                stdout(asList("error", e.getMessage()));
+            }
+        }
+    }
+
     private static void stdout(List<Object> message) {
         try {
             System.out.println("__jaa " + new ObjectMapper().writeValueAsString(message));
@@ -56,45 +107,318 @@ public class EntryPoint {
         }
     }
 
-    private void allocationTrackingExecute(String methodDescription, String outputPath) throws Throwable
+    private void allocationTrackingExecute(String methodDescription, String outputPath, AnalysisSettings settings) throws Throwable
     {
         Method method = findMethod(methodDescription);
-        BlackHole hole = new BlackHole();
-        Object instance = newInstance(method);
-        AllocationSampler sampler = new AllocationSampler(new File(outputPath), 15);
+        Object instance = newInstance(method, settings);
+        BlackHole[] holes = blackHoles(settings.threads);
+        AllocationSampler sampler = new AllocationSampler(new File(outputPath), settings.stackDepth, settings.samplingInterval, settings.frameDetail, settings.offHeap,
+                settings.flushIntervalMillis, settings.rateWindowMillis, settings.lifetimeSamplingInterval, settings.reportFormat,
+                ANALYSIS_THREAD);
 
+        // Whichever of the two agents the JVM runs with calls the sampler
         AllocationRecorder.addSampler(sampler);
+        AllocationSites.setListener(sampler);
 
         try
         {
             executeFixture(instance, SetUp.class);
-            sampler.start();
-            hole.consume(method.invoke(instance));
+            invokeConcurrently(instance, method, holes, settings.warmupIterations, NOT_MEASURED, null);
+            invokeConcurrently(instance, method, holes, settings.measurementIterations, new Measurement() {
+                @Override
+                public void start(LongSupplier operations) {
+                    sampler.start(operations);
+                }
+
+                @Override
+                public boolean countsOperations() {
+                    // Only segments written while invoking need the running count
+                    return settings.flushIntervalMillis > 0;
+                }
+
+                @Override
+                public void stop() {
+                    sampler.stop(settings.operations());
+                }
+            }, null);
+        }
+        finally
+        {
+            AllocationRecorder.removeSampler(sampler);
+            AllocationSites.setListener(null);
+            executeFixture(instance, TearDown.class);
+        }
+    }
+
+    /**
+     * Like {@link #allocationTrackingExecute}, but recording allocations with Java Flight Recorder
+     * on an uninstrumented JVM.
+     */
+    private void allocationRecordingExecute(String methodDescription, String outputPath, AnalysisSettings settings) throws Throwable
+    {
+        Method method = findMethod(methodDescription);
+        Object instance = newInstance(method, settings);
+        BlackHole[] holes = blackHoles(settings.threads);
+        JfrAllocationRecorder recorder = new JfrAllocationRecorder(new File(outputPath), settings.stackDepth, settings.reportFormat, ANALYSIS_THREAD);
+
+        executeFixture(instance, SetUp.class);
+        try
+        {
+            invokeConcurrently(instance, method, holes, settings.warmupIterations, NOT_MEASURED, null);
+            invokeConcurrently(instance, method, holes, settings.measurementIterations, new Measurement() {
+                @Override
+                public void start(LongSupplier operations) {
+                    recorder.start();
+                }
+
+                @Override
+                public void stop() {
+                    recorder.stop(settings.operations());
+                }
+            }, null);
         }
         finally
         {
-            sampler.stop();
             executeFixture(instance, TearDown.class);
         }
     }
 
-    private void execute(String methodDescription, long iterations) throws ClassNotFoundException, IllegalAccessException, InstantiationException, InvocationTargetException {
+    /**
+     * Measure allocations with the per-thread allocation counter HotSpot maintains anyway, rather than
+     * with instrumentation. This gives no detail on where allocations happen, but it's cheap, works on any
+     * HotSpot JVM and counts allocations after escape analysis, exactly as the program would make them.
+     */
+    private void countAllocatedBytes(String methodDescription, AnalysisSettings settings) throws Throwable {
         Method method = findMethod(methodDescription);
-        execute(new BlackHole(), newInstance(method), method, iterations);
+        Object instance = newInstance(method, settings);
+        BlackHole[] holes = blackHoles(settings.threads);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("This JVM does not support counting allocated bytes per thread");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        executeFixture(instance, SetUp.class);
+        try {
+            invokeConcurrently(instance, method, holes, settings.warmupIterations, NOT_MEASURED, null);
+            long[] allocated = invokeConcurrently(instance, method, holes, settings.measurementIterations,
+                    NOT_MEASURED, threads);
+
+            long total = 0;
+            List<Object> perThread = new ArrayList<>();
+            for (long bytes : allocated) {
+                total += bytes;
+                perThread.add(bytes);
+            }
+            stdout(asList("allocated-bytes", total, settings.operations(), perThread));
+        }
+        finally {
+            executeFixture(instance, TearDown.class);
+        }
     }
 
-    private void execute(BlackHole hole, Object instance, Method method, long iterations) throws ClassNotFoundException, IllegalAccessException, InstantiationException, InvocationTargetException {
+    private void execute(String methodDescription, AnalysisSettings settings) throws Throwable {
+        Method method = findMethod(methodDescription);
+        Object instance = newInstance(method, settings);
+        BlackHole[] holes = blackHoles(settings.threads);
         executeFixture(instance, SetUp.class);
         try {
-            for (int i = 0; i < iterations; i++) {
-                hole.consume(method.invoke(instance));
+            invokeConcurrently(instance, method, holes, settings.warmupIterations, NOT_MEASURED, null);
+            if(settings.forceCompilation) {
+                new WhiteBoxCompilation().compile(method);
             }
+            invokeConcurrently(instance, method, holes, settings.measurementIterations, NOT_MEASURED, null);
         }
         finally {
             executeFixture(instance, TearDown.class);
         }
     }
 
+    /** Started right before the first measured invocation, and stopped right after the last one. */
+    private interface Measurement {
+        /**
+         * @param operations number of invocations measured so far, across all threads, if
+         *                   {@link #countsOperations()}; otherwise 0
+         */
+        void start(LongSupplier operations);
+        void stop();
+
+        /** Whether threads should count their invocations while measuring, which costs a little per invocation. */
+        default boolean countsOperations() {
+            return false;
+        }
+    }
+
+    private static final Measurement NOT_MEASURED = new Measurement() {
+        @Override
+        public void start(LongSupplier operations) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    };
+
+    /**
+     * Invoke the method the given number of times from each of the given number of threads, concurrently,
+     * against the same instance, each thread with its own black hole. Even a single thread is a new one, so allocation sites look the same
+     * regardless of thread count.
+     *
+     * Threads are started and lined up before the measurement starts, and the measurement stops before they
+     * exit, so the cost of starting and stopping threads is not part of it. They line up by spinning on
+     * counters rather than with a barrier, since barriers allocate.
+     *
+     * @param counters if given, count the bytes each thread allocates while invoking the method
+     * @return bytes allocated by each thread, if counted
+     */
+    private long[] invokeConcurrently(Object instance, Method method, BlackHole[] holes, long iterations,
+                                      Measurement measurement, com.sun.management.ThreadMXBean counters) throws Throwable {
+        int threads = holes.length;
+        Lineup lineup = new Lineup();
+        AnalysisThread[] workers = new AnalysisThread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new AnalysisThread(i, lineup, instance, method, holes[i], iterations, counters,
+                    measurement.countsOperations());
+            workers[i].start();
+        }
+
+        lineup.await(lineup.ready, threads);
+        measurement.start(() -> {
+            long invoked = 0;
+            for (AnalysisThread worker : workers) {
+                invoked += worker.invoked;
+            }
+            return invoked;
+        });
+        lineup.started.set(true);
+        try {
+            lineup.await(lineup.finished, threads);
+        } finally {
+            measurement.stop();
+            lineup.stopped.set(true);
+        }
+
+        long[] allocated = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            allocated[i] = workers[i].allocated;
+        }
+        if(lineup.failure.get() != null) {
+            throw lineup.failure.get();
+        }
+        return allocated;
+    }
+
+    /**
+     * One black hole per thread, kept from warmup through measurement; a black hole allocates less often
+     * the more it is used, so a fresh one would allocate during measurement.
+     */
+    private static BlackHole[] blackHoles(int threads) {
+        BlackHole[] holes = new BlackHole[threads];
+        for (int i = 0; i < threads; i++) {
+            holes[i] = new BlackHole();
+        }
+        return holes;
+    }
+
+    /** Lines up analysis threads before and after the measured invocations. */
+    private static class Lineup {
+        final AtomicInteger ready = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicBoolean started = new AtomicBoolean();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        void await(AtomicBoolean flag) {
+            while(!flag.get()) {
+                Thread.yield();
+            }
+        }
+
+        void await(AtomicInteger count, int expected) {
+            while(count.get() < expected) {
+                Thread.yield();
+            }
+        }
+    }
+
+    // A class of its own rather than a lambda, since lambda class names differ between runs, and so would the
+    // stack traces that harness allocations are told apart from the allocations of the analyzed method by.
+    private class AnalysisThread extends Thread {
+        private final Lineup lineup;
+        private final Object instance;
+        private final Method method;
+        private final BlackHole hole;
+        private final long iterations;
+        private final com.sun.management.ThreadMXBean counters;
+        private final boolean countInvocations;
+        private volatile long allocated;
+        // Invocations so far, if counted; published now and then rather than each time, see PUBLISH_INVOKED_EVERY
+        private volatile long invoked;
+
+        AnalysisThread(int index, Lineup lineup, Object instance, Method method, BlackHole hole, long iterations,
+                       com.sun.management.ThreadMXBean counters, boolean countInvocations) {
+            super(ANALYSIS_THREAD + index);
+            this.lineup = lineup;
+            this.instance = instance;
+            this.method = method;
+            this.hole = hole;
+            this.iterations = iterations;
+            this.counters = counters;
+            this.countInvocations = countInvocations;
+        }
+
+        @Override
+        public void run() {
+            lineup.ready.incrementAndGet();
+            lineup.await(lineup.started);
+            try {
+                allocated = invokeRepeatedly(this, counters);
+            } catch (Throwable e) {
+                lineup.failure.compareAndSet(null, e);
+            }
+            lineup.finished.incrementAndGet();
+            lineup.await(lineup.stopped);
+        }
+    }
+
+    private long invokeRepeatedly(AnalysisThread thread, com.sun.management.ThreadMXBean counters) throws IllegalAccessException, InvocationTargetException {
+        if(counters == null) {
+            invokeRepeatedly(thread);
+            return 0;
+        }
+        long threadId = Thread.currentThread().getId();
+
+        // Reading the counter allocates a little, measure how much so it can be taken out
+        long overhead = -counters.getThreadAllocatedBytes(threadId) + counters.getThreadAllocatedBytes(threadId);
+
+        long before = counters.getThreadAllocatedBytes(threadId);
+        invokeRepeatedly(thread);
+        long after = counters.getThreadAllocatedBytes(threadId);
+        return Math.max(0, after - before - overhead);
+    }
+
+    private void invokeRepeatedly(AnalysisThread thread) throws IllegalAccessException, InvocationTargetException {
+        BlackHole hole = thread.hole;
+        Object instance = thread.instance;
+        Method method = thread.method;
+        long iterations = thread.iterations;
+        if(!thread.countInvocations) {
+            for (long i = 0; i < iterations; i++) {
+                hole.consume(method.invoke(instance, NO_ARGUMENTS));
+            }
+            return;
+        }
+        // Counted in a local, and published to the thread's own field, so threads don't contend on a shared counter
+        for (long i = 0; i < iterations; i++) {
+            hole.consume(method.invoke(instance, NO_ARGUMENTS));
+            if((i + 1) % PUBLISH_INVOKED_EVERY == 0) {
+                thread.invoked = i + 1;
+            }
+        }
+        thread.invoked = iterations;
+    }
+
     private Method findMethod(String methodDescription) throws ClassNotFoundException {
         String[] parts = methodDescription.split("#");
         String className = parts[0];
@@ -117,8 +441,10 @@ public class EntryPoint {
         return methods.get(0);
     }
 
-    private Object newInstance(Method method) throws InstantiationException, IllegalAccessException {
-        return method.getDeclaringClass().newInstance();
+    private Object newInstance(Method method, AnalysisSettings settings) throws ReflectiveOperationException {
+        Object instance = method.getDeclaringClass().newInstance();
+        Parameters.apply(instance, settings.params);
+        return instance;
     }
 }
 
@@ -0,0 +1,142 @@
+package jaa.internal.runner;
+
+import jaa.Options;
+import jaa.internal.infrastructure.ClassReferences;
+import jaa.internal.infrastructure.Fingerprint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides if the reports from a previous analysis of a method are still valid, so the method
+ * does not need to be analyzed again.
+ *
+ * This is done by fingerprinting everything the analysis depends on: the bytecode of the class
+ * declaring the method and of every class on the classpath it transitively refers to, the annotations
+ * on the method, and the JVM and instrumenter running the analysis. The fingerprint is stored next to
+ * the reports; if it matches on the next run, the reports are reused as-is.
+ *
+ * Classes provided by the JVM itself are covered by the JVM fingerprint rather than read one by one.
+ * Classes the method only loads reflectively aren't covered at all, see {@link ClassReferences}; changing
+ * one of those alone doesn't make the method be analyzed again.
+ *
+ * Reused reports are summarized without running anything, so along with the fingerprint the allocations
+ * of the method before escape analysis, less those of the harness, are stored; otherwise summarizing
+ * would need the harness calibrated all over again.
+ */
+public class IncrementalAnalysis {
+    private final Path reportFolder;
+    private final String reportSuffix;
+    private final String environment;
+
+    public IncrementalAnalysis(Path reportFolder, Options.ReportFormat reportFormat, Path javaExecutable,
+                               Path allocationInstrumenterJar) throws IOException {
+        this.reportFolder = reportFolder;
+        this.reportSuffix = reportFormat.suffix();
+        this.environment = CalibrationCache.environment(javaExecutable, allocationInstrumenterJar).hex();
+    }
+
+    /**
+     * @param method the analysis method
+     * @param settings any other settings that change the result of the analysis
+     */
+    public String fingerprint(Method method, String ... settings) throws IOException {
+        Fingerprint fingerprint = new Fingerprint()
+                .add(environment)
+                .add(method.getDeclaringClass().getName() + "#" + method.getName())
+                .add(Arrays.toString(method.getDeclaredAnnotations()));
+        for (String setting : settings) {
+            fingerprint.add(setting);
+        }
+        for (Map.Entry<String, byte[]> cls : classesReachableFrom(method.getDeclaringClass()).entrySet()) {
+            fingerprint.add(cls.getKey()).add(cls.getValue());
+        }
+        return fingerprint.hex();
+    }
+
+    /** True if the method was last analyzed with the same fingerprint, and its reports are still there. */
+    public boolean isUpToDate(String methodDescription, String fingerprint) throws IOException {
+        Path stored = fingerprintPath(methodDescription);
+        if(!Files.exists(stored)
+                || !Files.exists(reportFolder.resolve(methodDescription + reportSuffix))
+                || !Files.exists(reportFolder.resolve(methodDescription + ".full" + reportSuffix))) {
+            return false;
+        }
+        // Fingerprints stored by earlier versions come without the bytes allocated
+        List<String> lines = Files.readAllLines(stored, StandardCharsets.UTF_8);
+        return lines.size() > 1 && lines.get(0).trim().equals(fingerprint);
+    }
+
+    /**
+     * Record that the reports for the method in the report folder were produced from the given fingerprint.
+     * @param fullBytes bytes allocated by the method before escape analysis, less those of the harness
+     */
+    public void markUpToDate(String methodDescription, String fingerprint, long fullBytes) throws IOException {
+        Files.write(fingerprintPath(methodDescription),
+                (fingerprint + "\n" + fullBytes + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Bytes allocated by the method before escape analysis, less those of the harness, as recorded by
+     * {@link #markUpToDate}; only call for methods that are up to date.
+     */
+    public long fullBytes(String methodDescription) throws IOException {
+        return Long.parseLong(Files.readAllLines(fingerprintPath(methodDescription), StandardCharsets.UTF_8).get(1).trim());
+    }
+
+    private Path fingerprintPath(String methodDescription) {
+        return reportFolder.resolve(methodDescription + ".fingerprint");
+    }
+
+    private static Map<String, byte[]> classesReachableFrom(Class<?> root) throws IOException {
+        ClassLoader loader = root.getClassLoader() == null ? ClassLoader.getSystemClassLoader() : root.getClassLoader();
+        ClassLoader platform = ClassLoader.getSystemClassLoader().getParent();
+
+        // Sorted by name, so the fingerprint doesn't depend on the order classes were discovered in
+        Map<String, byte[]> reachable = new TreeMap<>();
+        Deque<String> toVisit = new ArrayDeque<>();
+        toVisit.add(root.getName().replace('.', '/'));
+        while(!toVisit.isEmpty()) {
+            String name = toVisit.poll();
+            if(reachable.containsKey(name)) {
+                continue;
+            }
+            String resource = name + ".class";
+            if(platform != null && platform.getResource(resource) != null) {
+                continue;
+            }
+            byte[] bytecode = read(loader, resource);
+            if(bytecode == null) {
+                continue;
+            }
+            reachable.put(name, bytecode);
+            toVisit.addAll(ClassReferences.referencedClasses(bytecode));
+        }
+        return reachable;
+    }
+
+    private static byte[] read(ClassLoader loader, String resource) throws IOException {
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if(in == null) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
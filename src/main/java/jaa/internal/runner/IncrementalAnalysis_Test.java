@@ -0,0 +1,61 @@
+package jaa.internal.runner;
+
+import jaa.Options;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalAnalysis_Test {
+    @Rule
+    public TemporaryFolder folders = new TemporaryFolder();
+
+    @Test
+    public void shouldKeepBytesAllocatedWithTheFingerprint() throws Exception
+    {
+        // Given
+        Path reports = folders.newFolder().toPath();
+        IncrementalAnalysis incremental = incremental(reports);
+        String fingerprint = incremental.fingerprint(IncrementalAnalysis_Test.class.getMethod("shouldKeepBytesAllocatedWithTheFingerprint"));
+        writeReports(reports, "a.B#c");
+
+        // When
+        incremental.markUpToDate("a.B#c", fingerprint, 1234);
+
+        // Then
+        assertTrue(incremental.isUpToDate("a.B#c", fingerprint));
+        assertFalse(incremental.isUpToDate("a.B#c", fingerprint + "0"));
+        assertEquals(1234, incremental.fullBytes("a.B#c"));
+    }
+
+    @Test
+    public void shouldAnalyzeAgainIfTheFingerprintWasStoredWithoutBytesAllocated() throws Exception
+    {
+        // Given a fingerprint stored by an earlier version
+        Path reports = folders.newFolder().toPath();
+        IncrementalAnalysis incremental = incremental(reports);
+        String fingerprint = incremental.fingerprint(IncrementalAnalysis_Test.class.getMethod("shouldKeepBytesAllocatedWithTheFingerprint"));
+        writeReports(reports, "a.B#c");
+        Files.write(reports.resolve("a.B#c.fingerprint"), fingerprint.getBytes(StandardCharsets.UTF_8));
+
+        // Then
+        assertFalse(incremental.isUpToDate("a.B#c", fingerprint));
+    }
+
+    private IncrementalAnalysis incremental(Path reports) throws Exception {
+        return new IncrementalAnalysis(reports, Options.ReportFormat.JSON,
+                folders.newFile("java").toPath(), folders.newFile("instrumenter.jar").toPath());
+    }
+
+    private static void writeReports(Path reports, String methodDescription) throws Exception {
+        Files.write(reports.resolve(methodDescription + ".json"), "[]".getBytes(StandardCharsets.UTF_8));
+        Files.write(reports.resolve(methodDescription + ".full.json"), "[]".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -77,6 +77,13 @@ public class JaaResources {
                 "noting your os.name is '%s', and your os.arch is '%s' to allow automating this in the future.\n");
     }
 
+    /** The `java` executable of the JVM running right now, the regular JVM the user runs their code on. */
+    public Path runningJavaExecutable() {
+        Path bin = Paths.get(System.getProperty("java.home"), "bin");
+        Path java = bin.resolve("java");
+        return Files.exists(java) ? java : bin.resolve("java.exe");
+    }
+
     public Path javaExecutable(Path javaHome) throws IOException {
         try (Stream<Path> stream = Files.find(javaHome, 5,
                 (path, attr) ->
@@ -0,0 +1,54 @@
+package jaa.internal.runner;
+
+import jaa.internal.allocation.AllocationLedger;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Produces an allocation profile by recording allocation events with Java Flight Recorder, on a regular JVM
+ * without instrumentation. Much cheaper than {@link MethodAllocationAnalyzer} and, since escape analysis
+ * stays active, the profile only contains allocations that actually happen; but it is sampled, so byte counts
+ * are estimates and small or short-running methods may not be seen at all.
+ */
+public class JfrAllocationAnalyzer {
+    private final Duration forkTimeout;
+
+    public JfrAllocationAnalyzer(Duration forkTimeout) {
+        this.forkTimeout = forkTimeout;
+    }
+
+    public AllocationLedger analyze(String classPath, Path javaExecutable, Path reportPath, Method method) throws IOException, InterruptedException {
+        return analyze(classPath, javaExecutable, reportPath, method, AnalysisSettings.of(method));
+    }
+
+    public AllocationLedger analyze(String classPath, Path javaExecutable, Path reportPath, Method method,
+                                    AnalysisSettings settings) throws IOException, InterruptedException {
+        String methodDescription = method.getDeclaringClass().getName() + "#" + method.getName();
+        List<String> command = new ArrayList<>(asList(
+                javaExecutable.toAbsolutePath().toString(),
+                "-classpath", classPath,
+                EntryPoint.class.getName(),
+                "record-allocations",
+                methodDescription,
+                reportPath.toAbsolutePath().toString()));
+        command.addAll(settings.args());
+
+        Proc proc = Proc.exec(forkTimeout, command.toArray(new String[0]));
+        proc.stdout().forEach(line -> {
+            if(line.startsWith("__jaa [\"error\"")) {
+                throw new AssertionError(String.format("Recording allocations of %s failed: %s", methodDescription, line));
+            }
+            System.out.println(line);
+        });
+        proc.awaitSuccessfulExit();
+
+        return AllocationLedger.read(reportPath);
+    }
+}
@@ -11,19 +11,81 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import static jaa.internal.runner.Proc.exec;
+import static java.util.Arrays.asList;
 
 public class MethodAllocationAnalyzer {
-    private AllocationLedger allocationsByHarness;
+    private final Duration forkTimeout;
+    private final WorkerPool workers;
+    // Harness allocations by the arguments of the calibration settings they were measured with
+    private final Map<List<String>, AllocationLedger> allocationsByHarness = new ConcurrentHashMap<>();
+
+    public MethodAllocationAnalyzer() {
+        this(Duration.ofMinutes(30));
+    }
+
+    /**
+     * @param forkTimeout maximum time each analysis JVM may run before it is killed
+     */
+    public MethodAllocationAnalyzer(Duration forkTimeout) {
+        this(forkTimeout, null);
+    }
+
+    /**
+     * @param forkTimeout maximum time each analysis JVM may run before it is killed
+     * @param workers warm instrumented JVMs to run the analysis in, started with {@link #instrumentedJvm};
+     *                if null, a new JVM is started for each analysis
+     */
+    public MethodAllocationAnalyzer(Duration forkTimeout, WorkerPool workers) {
+        this.forkTimeout = forkTimeout;
+        this.workers = workers;
+    }
+
+    /** The java command, sans main class, to run allocation tracking with. */
+    public static List<String> instrumentedJvm(String classPath, Path javaExecutable, Path allocationInstrumenterJar) {
+        return asList(javaExecutable.toAbsolutePath().toString(),
+                "-classpath", classPath,
+                "-javaagent:" + allocationInstrumenterJar.toAbsolutePath().toString());
+    }
 
     public AllocationLedger analyze(String classPath, Path javaExecutable,
                                     Path allocationInstrumenterJar, Path reportPath,
                                     Method method) throws IOException, InterruptedException {
-        AllocationLedger ledger = analyze0(classPath, javaExecutable, allocationInstrumenterJar, reportPath, method);
-        return ledger.subtract(allocationsDoneByHarness());
+        return analyze(classPath, javaExecutable, allocationInstrumenterJar, reportPath, method, AnalysisSettings.of(method));
+    }
+
+    public AllocationLedger analyze(String classPath, Path javaExecutable,
+                                    Path allocationInstrumenterJar, Path reportPath,
+                                    Method method, AnalysisSettings settings) throws IOException, InterruptedException {
+        AllocationLedger ledger = analyze0(classPath, javaExecutable, allocationInstrumenterJar, reportPath, method, settings);
+        return ledger.subtract(allocationsDoneByHarness(classPath, javaExecutable, allocationInstrumenterJar, settings));
+    }
+
+    /**
+     * Load the allocation profile written to the report path by an earlier call to
+     * {@link #analyze(String, Path, Path, Path, Method)}, with harness allocations removed just like that
+     * method does.
+     */
+    public AllocationLedger previousAnalysis(String classPath, Path javaExecutable,
+                                             Path allocationInstrumenterJar, Path reportPath) throws IOException, InterruptedException {
+        return previousAnalysis(classPath, javaExecutable, allocationInstrumenterJar, reportPath, new AnalysisSettings(0, 1));
+    }
+
+    /**
+     * Like {@link #previousAnalysis(String, Path, Path, Path)}, for an analysis made with the given settings.
+     */
+    public AllocationLedger previousAnalysis(String classPath, Path javaExecutable, Path allocationInstrumenterJar,
+                                             Path reportPath, AnalysisSettings settings) throws IOException, InterruptedException {
+        return AllocationLedger.read(reportPath)
+                .subtract(allocationsDoneByHarness(classPath, javaExecutable, allocationInstrumenterJar, settings));
     }
 
     public AllocationLedger analyze(Method method) throws IOException, InterruptedException {
@@ -42,30 +104,52 @@ public class MethodAllocationAnalyzer {
     /**
      * Determine allocations made by the test harness itself by analyzing a method known to
      * make no allocations; this is used to remove these allocations from the report.
+     *
+     * The method is run with as many warmup and measurement iterations, and threads, as the analysis was,
+     * since the harness allocates per invocation as well as per run - boxing and reflection of Method#invoke -
+     * and the two can only be told apart by running as many invocations.
+     *
+     * Calibrations are shared between analyzers and cached on disk, since they only change if the JVM,
+     * the instrumenter or JAA itself changes - or the detail or depth of stack traces, since harness
+     * allocations are matched by their stack traces.
      * @return
      * @throws IOException
      * @throws InterruptedException
      */
-    private AllocationLedger allocationsDoneByHarness() throws IOException, InterruptedException {
-        if(allocationsByHarness != null) {
-            return allocationsByHarness;
+    private AllocationLedger allocationsDoneByHarness(String classPath, Path javaExecutable,
+                                                      Path allocationInstrumenterJar,
+                                                      AnalysisSettings settings) throws IOException, InterruptedException {
+        AnalysisSettings calibrationSettings = calibrationSettings(settings);
+        AllocationLedger calibrated = allocationsByHarness.get(calibrationSettings.args());
+        if(calibrated != null) {
+            return calibrated;
         }
 
-        Path reportPath = Files.createTempFile("jaa.calibration", getClass().getSimpleName());
-        try {
-            JaaResources jvmFetcher = new JaaResources();
-            return allocationsByHarness = analyze0(System.getProperty("java.class.path"),
-                    jvmFetcher.javaExecutable(jvmFetcher.javaHome()),
-                    defaultAllocationInstrumenterJarPath(),
-                    reportPath, getClass().getMethod("noop"));
-        } catch (NoSuchMethodException e) {
-            throw new RuntimeException("Programming error, unable to find noop method, " +
-                    "can't calibrate allocation test. Please ensure you are using the latest " +
-                    "version of JAA. If you are, please help the community by " +
-                    "filing a ticket for this.", e);
-        } finally {
-            Files.delete(reportPath);
-        }
+        calibrated = new CalibrationCache().get(javaExecutable, allocationInstrumenterJar, calibrationSettings, () -> {
+            Path reportPath = Files.createTempFile("jaa.calibration", getClass().getSimpleName());
+            try {
+                Method noop = getClass().getMethod("noop");
+                return analyze0(classPath, javaExecutable, allocationInstrumenterJar,
+                        reportPath, noop, calibrationSettings);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Programming error, unable to find noop method, " +
+                        "can't calibrate allocation test. Please ensure you are using the latest " +
+                        "version of JAA. If you are, please help the community by " +
+                        "filing a ticket for this.", e);
+            } finally {
+                Files.delete(reportPath);
+            }
+        });
+        allocationsByHarness.put(calibrationSettings.args(), calibrated);
+        return calibrated;
+    }
+
+    /** The settings of an analysis that matter to how much the harness allocates while running it. */
+    static AnalysisSettings calibrationSettings(AnalysisSettings settings) {
+        return new AnalysisSettings(settings.warmupIterations, settings.measurementIterations)
+                .withThreads(settings.threads)
+                .withFrameDetail(settings.frameDetail)
+                .withStackDepth(settings.stackDepth);
     }
 
     // Used to calibrate the allocation, to remove any allocation made by the test infrastructure.
@@ -75,15 +159,19 @@ public class MethodAllocationAnalyzer {
 
     private AllocationLedger analyze0(String classPath, Path javaExecutable,
                                     Path allocationInstrumenterJar, Path reportPath,
-                                    Method method) throws IOException, InterruptedException {
+                                    Method method, AnalysisSettings settings) throws IOException, InterruptedException {
         String methodDescription = method.getDeclaringClass().getName() + "#" + method.getName();
-        Proc allocProc = exec(javaExecutable.toAbsolutePath().toString(),
-                "-classpath", classPath,
-                "-javaagent:" + allocationInstrumenterJar.toAbsolutePath().toString(),
-                EntryPoint.class.getName(),
-                "analyze-allocation",
-                methodDescription,
-                reportPath.toAbsolutePath().toString());
+        List<String> job = new ArrayList<>(asList("analyze-allocation", methodDescription, reportPath.toAbsolutePath().toString()));
+        job.addAll(settings.args());
+        if(workers != null) {
+            workers.execute(forwardUserOutputTo(System.out), job.toArray(new String[0]));
+            return AllocationLedger.read(reportPath);
+        }
+
+        List<String> command = new ArrayList<>(instrumentedJvm(classPath, javaExecutable, allocationInstrumenterJar));
+        command.add(EntryPoint.class.getName());
+        command.addAll(job);
+        Proc allocProc = exec(forkTimeout, command.toArray(new String[0]));
         allocProc.stdout().forEach(forwardUserOutputTo(System.out));
         allocProc.awaitSuccessfulExit();
         return AllocationLedger.read(reportPath);
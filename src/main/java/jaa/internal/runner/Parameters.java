@@ -0,0 +1,78 @@
+package jaa.internal.runner;
+
+import jaa.Param;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/** Expands {@link Param} fields into the parameter combinations to run an analysis with, and applies them. */
+public class Parameters {
+    /**
+     * @return every combination of the parameter values declared on the class, as field name to value, in
+     *         declaration order; a single, empty, combination if the class has no parameters
+     */
+    public static List<Map<String, String>> combinations(Class<?> cls) {
+        List<Map<String, String>> combinations = new ArrayList<>();
+        combinations.add(Collections.emptyMap());
+        for (Field field : cls.getDeclaredFields()) {
+            Param param = field.getAnnotation(Param.class);
+            if(param == null) {
+                continue;
+            }
+            if(param.value().length == 0) {
+                throw new IllegalArgumentException(String.format("@Param %s in %s needs at least one value.",
+                        field.getName(), cls.getName()));
+            }
+
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> combination : combinations) {
+                for (String value : param.value()) {
+                    Map<String, String> next = new LinkedHashMap<>(combination);
+                    next.put(field.getName(), value);
+                    expanded.add(next);
+                }
+            }
+            combinations = expanded;
+        }
+        return combinations;
+    }
+
+    /** Name an analysis run with the given parameters, like {@code com.example.Test#method[n=10]}. */
+    public static String describe(String methodDescription, Map<String, String> params) {
+        if(params.isEmpty()) {
+            return methodDescription;
+        }
+        return methodDescription + params.entrySet().stream()
+                .map(e -> e.getKey() + "=" + e.getValue())
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    /** Set the parameter fields of an analysis instance. */
+    static void apply(Object instance, Map<String, String> params) throws ReflectiveOperationException {
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            Field field = instance.getClass().getDeclaredField(param.getKey());
+            field.setAccessible(true);
+            field.set(instance, convert(field.getType(), param.getValue()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object convert(Class<?> type, String value) {
+        if(type == String.class) return value;
+        if(type == int.class || type == Integer.class) return Integer.parseInt(value);
+        if(type == long.class || type == Long.class) return Long.parseLong(value);
+        if(type == short.class || type == Short.class) return Short.parseShort(value);
+        if(type == byte.class || type == Byte.class) return Byte.parseByte(value);
+        if(type == double.class || type == Double.class) return Double.parseDouble(value);
+        if(type == float.class || type == Float.class) return Float.parseFloat(value);
+        if(type == boolean.class || type == Boolean.class) return Boolean.parseBoolean(value);
+        if(type == char.class || type == Character.class) return value.charAt(0);
+        if(type.isEnum()) return Enum.valueOf((Class<Enum>) type, value);
+        throw new IllegalArgumentException(String.format("Don't know how to convert @Param value %s to %s", value, type.getName()));
+    }
+}
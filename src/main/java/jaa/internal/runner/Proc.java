@@ -4,10 +4,28 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 public class Proc {
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "jaa.ProcWatchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Processes started and not known to have exited, so they can be killed if the analysis fails
+    private static final Set<Proc> live = ConcurrentHashMap.newKeySet();
+
     public final Process process;
+    private volatile Duration killedAfter;
+    private ScheduledFuture<?> deadline;
 
     public static Proc exec(String ... command) throws IOException {
         ProcessBuilder builder = new ProcessBuilder(command);
@@ -15,8 +33,42 @@ public class Proc {
         return new Proc(builder.start());
     }
 
+    /** Like {@link #exec(String...)}, but with stdin piped so the caller can send the process input. */
+    public static Proc execInteractive(String ... command) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.inheritIO()
+                .redirectOutput(ProcessBuilder.Redirect.PIPE)
+                .redirectInput(ProcessBuilder.Redirect.PIPE);
+        return new Proc(builder.start());
+    }
+
+    /**
+     * Start a subprocess that gets forcibly killed if it is still running after the given
+     * wall-clock timeout. Killing the process closes its stdout, so callers blocked reading
+     * output are released, and {@link #awaitSuccessfulExit()} then reports the timeout.
+     */
+    public static Proc exec(Duration timeout, String ... command) throws IOException {
+        Proc proc = exec(command);
+        proc.deadline(timeout);
+        return proc;
+    }
+
     public Proc(Process process) {
         this.process = process;
+        live.removeIf(p -> !p.process.isAlive());
+        live.add(this);
+    }
+
+    /**
+     * Forcibly kill every process started that is still running, like those of analyses that were abandoned when
+     * another failed, so no child JVM outlives the analysis.
+     */
+    public static void destroyAll() {
+        for (Proc proc : live) {
+            proc.clearDeadline();
+            proc.process.destroyForcibly();
+        }
+        live.clear();
     }
 
     public Stream<String> stdout() {
@@ -34,9 +86,35 @@ public class Proc {
 
     public void awaitSuccessfulExit() throws InterruptedException {
         process.waitFor();
+        live.remove(this);
+        clearDeadline();
+        if(killedAfter != null) {
+            throw new AssertionError(String.format("Subprocess did not finish within %s and was killed", killedAfter));
+        }
         if(process.exitValue() != 0) {
             // TODO include captured as a help here
             throw new AssertionError(String.format("Subprocess exited with error code %d", process.exitValue()));
         }
     }
+
+    /**
+     * Forcibly kill the process if it is still running once the timeout has passed. Calling this
+     * again replaces the previous deadline.
+     */
+    public synchronized void deadline(Duration timeout) {
+        clearDeadline();
+        deadline = watchdog.schedule(() -> {
+            if(process.isAlive()) {
+                killedAfter = timeout;
+                process.destroyForcibly();
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void clearDeadline() {
+        if(deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
 }
@@ -0,0 +1,32 @@
+package jaa.internal.runner;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Proc_Test {
+    @Test
+    public void shouldKillProcessesStillRunning() throws Exception
+    {
+        // Given a child JVM that would run for a minute
+        Proc proc = Proc.exec(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                Proc_Test.class.getName());
+
+        // When
+        Proc.destroyAll();
+
+        // Then
+        assertTrue(proc.process.waitFor(30, TimeUnit.SECONDS));
+        assertFalse(proc.process.isAlive());
+    }
+
+    public static void main(String... args) throws InterruptedException {
+        Thread.sleep(60_000);
+    }
+}
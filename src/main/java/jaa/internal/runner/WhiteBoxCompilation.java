@@ -0,0 +1,173 @@
+package jaa.internal.runner;
+
+import jaa.SetUp;
+import jaa.TearDown;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Forces C2 compilation of an analysis method through HotSpot's WhiteBox testing API, so escape analysis
+ * has run on it before measuring, rather than hoping enough warmup iterations trigger the compilation.
+ *
+ * The WhiteBox API is not part of the JDK proper; it requires the JVM to be started with
+ * -XX:+UnlockDiagnosticVMOptions -XX:+WhiteBoxAPI and the WhiteBox jar from the HotSpot test library on the
+ * boot class path. It is accessed reflectively here, since JAA itself can't depend on it. The WhiteBox class
+ * is jdk.test.whitebox.WhiteBox from JDK 17 on, and sun.hotspot.WhiteBox before that.
+ */
+class WhiteBoxCompilation {
+    private static final String[] WHITE_BOX_CLASSES = {"jdk.test.whitebox.WhiteBox", "sun.hotspot.WhiteBox"};
+    // HotSpot's COMP_LEVEL_FULL_OPTIMIZATION, meaning C2
+    private static final int C2 = 4;
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private final Object whiteBox;
+    private final Method enqueueMethodForCompilation;
+    private final Method getMethodCompilationLevel;
+    private final Method isMethodCompilable;
+
+    WhiteBoxCompilation() {
+        try {
+            Class<?> whiteBoxClass = whiteBoxClass();
+            this.whiteBox = whiteBoxClass.getMethod("getWhiteBox").invoke(null);
+            this.enqueueMethodForCompilation = whiteBoxClass.getMethod("enqueueMethodForCompilation", Executable.class, int.class);
+            this.getMethodCompilationLevel = whiteBoxClass.getMethod("getMethodCompilationLevel", Executable.class);
+            this.isMethodCompilable = whiteBoxClass.getMethod("isMethodCompilable", Executable.class, int.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException("Unable to access the WhiteBox API. Make sure the WhiteBox jar from the " +
+                    "HotSpot test library given in the Options matches the JVM used for analysis.", e);
+        }
+    }
+
+    private static Class<?> whiteBoxClass() throws ClassNotFoundException {
+        ClassNotFoundException notFound = new ClassNotFoundException(String.join(" or ", WHITE_BOX_CLASSES));
+        for (String name : WHITE_BOX_CLASSES) {
+            try {
+                return Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                notFound.addSuppressed(e);
+            }
+        }
+        throw notFound;
+    }
+
+    /**
+     * Compile the method with C2 and wait until the compiled code is installed. The methods it calls are queued
+     * for compilation first, so they are compiled even where C2 chooses not to inline them. Deeper callees are
+     * left to C2, which inlines them when it compiles the methods calling them.
+     */
+    void compile(Method method) throws ReflectiveOperationException, InterruptedException {
+        for (Executable callee : callees(method)) {
+            if(!callee.equals(method) && isCompilable(callee)) {
+                enqueueMethodForCompilation.invoke(whiteBox, callee, C2);
+            }
+        }
+
+        if(!(boolean) isMethodCompilable.invoke(whiteBox, method, C2)) {
+            throw new IllegalStateException(String.format("HotSpot refuses to compile %s with C2", method));
+        }
+        enqueueMethodForCompilation.invoke(whiteBox, method, C2);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while((int) getMethodCompilationLevel.invoke(whiteBox, method) != C2) {
+            if(System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(String.format("%s was not compiled with C2 within %dms",
+                        method, TIMEOUT_MILLIS));
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The methods and constructors the given method invokes, read from its bytecode, including the bodies of
+     * lambdas and method references it creates. Callees that can't be resolved are left out.
+     */
+    static Set<Executable> callees(Method method) {
+        Class<?> declaringClass = method.getDeclaringClass();
+        ClassLoader loader = declaringClass.getClassLoader();
+        String descriptor = Type.getMethodDescriptor(method);
+        Set<Executable> callees = new LinkedHashSet<>();
+        try(InputStream classFile = loader == null
+                ? ClassLoader.getSystemResourceAsStream(Type.getInternalName(declaringClass) + ".class")
+                : loader.getResourceAsStream(Type.getInternalName(declaringClass) + ".class")) {
+            if(classFile == null) {
+                return callees;
+            }
+            new ClassReader(classFile).accept(new ClassVisitor(Opcodes.ASM9) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                    if(!name.equals(method.getName()) || !desc.equals(descriptor)) {
+                        return null;
+                    }
+                    return new MethodVisitor(Opcodes.ASM9) {
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean isInterface) {
+                            add(callees, loader, owner, name, desc);
+                        }
+
+                        @Override
+                        public void visitInvokeDynamicInsn(String name, String desc, Handle bootstrap, Object... args) {
+                            for (Object arg : args) {
+                                if(arg instanceof Handle) {
+                                    Handle handle = (Handle) arg;
+                                    add(callees, loader, handle.getOwner(), handle.getName(), handle.getDesc());
+                                }
+                            }
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to read the bytecode of %s", method), e);
+        }
+        return callees;
+    }
+
+    private static void add(Set<Executable> callees, ClassLoader loader, String owner, String name, String desc) {
+        if(owner.startsWith("[") || name.equals("<clinit>")) {
+            return;
+        }
+        try {
+            Class<?> cls = Class.forName(Type.getObjectType(owner).getClassName(), false, loader);
+            for (Class<?> c = cls; c != null; c = c.getSuperclass()) {
+                for (Executable candidate : name.equals("<init>") ? c.getDeclaredConstructors() : c.getDeclaredMethods()) {
+                    if(matches(candidate, name, desc)) {
+                        callees.add(candidate);
+                        return;
+                    }
+                }
+                if(name.equals("<init>")) {
+                    return;
+                }
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            // Not compiled ahead, C2 still compiles or inlines it when it gets there
+        }
+    }
+
+    private static boolean matches(Executable candidate, String name, String desc) {
+        if(candidate instanceof Constructor) {
+            return Type.getConstructorDescriptor((Constructor<?>) candidate).equals(desc);
+        }
+        return candidate.getName().equals(name) && Type.getMethodDescriptor((Method) candidate).equals(desc);
+    }
+
+    private boolean isCompilable(Executable method) {
+        return !Modifier.isAbstract(method.getModifiers())
+                && !Modifier.isNative(method.getModifiers())
+                && method.getAnnotation(SetUp.class) == null
+                && method.getAnnotation(TearDown.class) == null;
+    }
+}
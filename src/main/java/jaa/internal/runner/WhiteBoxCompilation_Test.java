@@ -0,0 +1,44 @@
+package jaa.internal.runner;
+
+import org.junit.Test;
+
+import java.lang.reflect.Executable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WhiteBoxCompilation_Test {
+    @Test
+    public void shouldFindOnlyTheMethodsCalled() throws Exception
+    {
+        // When
+        Set<Executable> callees = WhiteBoxCompilation.callees(Analysis.class.getDeclaredMethod("analyzed"));
+
+        // Then
+        assertTrue(callees.contains(Analysis.class.getDeclaredMethod("helper", int.class)));
+        assertTrue(callees.contains(ArrayList.class.getDeclaredConstructor()));
+        assertTrue(callees.stream().anyMatch(c -> c.getName().startsWith("lambda$analyzed$")));
+        assertFalse(callees.contains(Analysis.class.getDeclaredMethod("sibling")));
+    }
+
+    public static class Analysis {
+        public Object analyzed() {
+            List<Integer> list = new ArrayList<>();
+            list.add(helper(1));
+            Collections.singletonList(2).forEach(i -> list.add(helper(i)));
+            return list;
+        }
+
+        public Object sibling() {
+            return helper(3);
+        }
+
+        private int helper(int i) {
+            return i * 2;
+        }
+    }
+}
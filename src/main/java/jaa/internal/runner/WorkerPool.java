@@ -0,0 +1,142 @@
+package jaa.internal.runner;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Long-lived JVMs that execute {@link EntryPoint} commands one after another, so the cost of
+ * starting a JVM and instrumenting the JDK is paid once per worker rather than once per job.
+ *
+ * Workers are started on demand, so the pool grows to however many jobs are run at the same time.
+ * Each worker is retired after a fixed number of jobs, to keep state leaking between jobs -
+ * JIT decisions, static caches in user code - from building up indefinitely.
+ */
+public class WorkerPool implements AutoCloseable {
+    private final List<String> jvmCommand;
+    private final int jobsPerWorker;
+    private final Duration jobTimeout;
+
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param jvmCommand the java executable and JVM arguments to start workers with, not including the
+     *                   main class
+     * @param jobsPerWorker number of jobs each worker runs before it is replaced with a fresh one
+     * @param jobTimeout a worker that spends longer than this on a single job is killed
+     */
+    public WorkerPool(List<String> jvmCommand, int jobsPerWorker, Duration jobTimeout) {
+        this.jvmCommand = jvmCommand;
+        this.jobsPerWorker = jobsPerWorker;
+        this.jobTimeout = jobTimeout;
+    }
+
+    /**
+     * Run one {@link EntryPoint} command on a warm worker, blocking until it's done.
+     * @param userOutput receives any output from the job that is not a jaa control message
+     * @param command the command and its arguments, as they would be passed to {@link EntryPoint#main(String...)}
+     */
+    public void execute(Consumer<String> userOutput, String ... command) throws IOException, InterruptedException {
+        Worker worker = idle.poll();
+        if(worker == null) {
+            worker = start();
+        }
+
+        boolean reusable = false;
+        try {
+            worker.execute(userOutput, command);
+            reusable = worker.jobsExecuted < jobsPerWorker;
+        } finally {
+            if(reusable) {
+                idle.add(worker);
+            } else {
+                retire(worker);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        workers.forEach(this::retire);
+    }
+
+    private Worker start() throws IOException {
+        List<String> command = new ArrayList<>(jvmCommand);
+        command.add(EntryPoint.class.getName());
+        command.add("worker");
+        Worker worker = new Worker(Proc.execInteractive(command.toArray(new String[0])));
+        workers.add(worker);
+        return worker;
+    }
+
+    private void retire(Worker worker) {
+        workers.remove(worker);
+        try {
+            worker.proc.process.getOutputStream().close();
+        } catch (IOException e) {
+            // Worker is already gone
+        }
+        worker.proc.deadline(Duration.ofSeconds(10));
+    }
+
+    private class Worker {
+        private final Proc proc;
+        private final BufferedReader stdout;
+        private final ObjectMapper mapper = new ObjectMapper();
+        private int jobsExecuted;
+
+        Worker(Proc proc) {
+            this.proc = proc;
+            this.stdout = new BufferedReader(new InputStreamReader(proc.process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void execute(Consumer<String> userOutput, String ... command) throws IOException, InterruptedException {
+            jobsExecuted++;
+            proc.deadline(jobTimeout);
+            try {
+                OutputStream stdin = proc.process.getOutputStream();
+                stdin.write((mapper.writeValueAsString(command) + "\n").getBytes(StandardCharsets.UTF_8));
+                stdin.flush();
+
+                for(String line = stdout.readLine(); line != null; line = stdout.readLine()) {
+                    if(!line.startsWith("__jaa ")) {
+                        userOutput.accept(line);
+                        continue;
+                    }
+
+                    JsonNode message = mapper.readTree(line.substring("__jaa ".length()));
+                    switch(message.get(0).asText()) {
+                        case "done":
+                            return;
+                        case "error":
+                            throw new AssertionError(String.format("Worker failed to execute %s: %s",
+                                    Arrays.toString(command), message.get(1).asText()));
+                        default:
+                            userOutput.accept(line);
+                    }
+                }
+            } finally {
+                proc.clearDeadline();
+            }
+
+            // Stdout closed before the job finished; this reports timeouts and crashes
+            proc.awaitSuccessfulExit();
+            throw new AssertionError(String.format("Worker exited while executing %s", Arrays.toString(command)));
+        }
+    }
+}